@@ -0,0 +1,85 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.mock.web.MockServletConfig;
+
+/**
+ * {@link ActionsServlet#doPost} end to end with mock request and response
+ * objects: reading the body, handling the intent and writing the (possibly
+ * gzipped) response. The mock request does not support async processing, so
+ * this runs the blocking path; the async path differs only in how the same
+ * buffers are filled and drained.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class ActionsServletBenchmark {
+
+  @Param({
+      "Default_Welcome_Intent",
+      "Transaction_Check_Complete",
+      "Delivery_Address_Complete",
+      "Transaction_Decision",
+      "Transaction_Decision_Complete"})
+  public String intent;
+
+  @Param({"identity", "gzip"})
+  public String acceptEncoding;
+
+  private ActionsServlet servlet;
+  private byte[] body;
+
+  @Setup
+  public void setUp() throws Exception {
+    // The same body is posted each time, so keep it from being replayed
+    System.setProperty("actions.responses.maxEntries", "0");
+    servlet = new ActionsServlet();
+    servlet.init(new MockServletConfig());
+    body = Payloads.request(intent).getBytes(StandardCharsets.UTF_8);
+    // Errors are reported as a 200 with a plain text body
+    MockHttpServletResponse response = doPost();
+    if (response.getStatus() != 200
+        || !response.getContentType().startsWith("application/json")) {
+      throw new IllegalStateException(intent + " returned "
+          + response.getStatus() + ": " + response.getContentAsString());
+    }
+  }
+
+  @Benchmark
+  public MockHttpServletResponse doPost() throws Exception {
+    MockHttpServletRequest request = new MockHttpServletRequest("POST", "/");
+    request.setContentType("application/json; charset=utf-8");
+    request.setContent(body);
+    request.addHeader("Accept-Encoding", acceptEncoding);
+    MockHttpServletResponse response = new MockHttpServletResponse();
+    servlet.doPost(request, response);
+    return response;
+  }
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import com.google.api.services.actions_fulfillment.v2.model.Location;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.reflect.TypeToken;
+import java.lang.reflect.Type;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * One turn of a conversation as far as its state is concerned: parsing the
+ * conversation data of the request, setting the order ID as the Transaction
+ * Decision handler does, and serializing the conversation data of the
+ * response. With {@code conversation} the state itself makes that round
+ * trip; with the session stores only its token does.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class ConversationStoreBenchmark {
+
+  private static final Type CONVERSATION_DATA =
+      new TypeToken<Map<String, Object>>() { }.getType();
+
+  @Param({"conversation", "offheap", "embedded"})
+  public String store;
+
+  private Gson gson;
+  private ConversationStore conversations;
+  private String conversationData;
+
+  @Setup
+  public void setUp() {
+    gson = new GsonBuilder()
+        .registerTypeAdapter(Location.class, new LocationTypeAdapter())
+        .create();
+    System.setProperty("actions.sessions.store", store);
+    conversations = new ConversationStore(SessionStore.fromSystemProperties());
+    Location location =
+        gson.fromJson(Payloads.deliveryLocation(), Location.class);
+    Map<String, Object> data = new HashMap<>();
+    conversations.update(data, state -> state.setLocation(location));
+    conversationData = gson.toJson(data);
+  }
+
+  @Benchmark
+  public String turn() {
+    Map<String, Object> data =
+        gson.fromJson(conversationData, CONVERSATION_DATA);
+    conversations.update(data, state -> state.setOrderId("0WMC72N9MB800"));
+    return gson.toJson(data);
+  }
+}
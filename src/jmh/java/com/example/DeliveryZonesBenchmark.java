@@ -0,0 +1,98 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import com.google.api.services.actions_fulfillment.v2.model.Location;
+import java.io.StringReader;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Resolving delivery addresses against {@code zones} generated octagonal
+ * zones scattered over the contiguous US, to check that lookups cost about
+ * the same however many zones there are.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class DeliveryZonesBenchmark {
+
+  @Param({"1000", "50000"})
+  public int zones;
+
+  private DeliveryZones.Index index;
+  private Location withoutCoordinates;
+
+  @Setup
+  public void setUp() {
+    Random random = new Random(1);
+    StringBuilder json = new StringBuilder("{\"type\":\"FeatureCollection\","
+        + "\"features\":[");
+    for (int i = 0; i < zones; i++) {
+      double longitude = -124 + random.nextDouble() * 57;
+      double latitude = 25 + random.nextDouble() * 24;
+      double radius = 0.02 + random.nextDouble() * 0.15;
+      json.append(i > 0 ? "," : "")
+          .append("{\"type\":\"Feature\",\"properties\":{\"id\":\"zone_")
+          .append(i).append("\",\"rate\":\"local\",\"zipCodes\":[\"")
+          .append(10000 + i).append("\"]},\"geometry\":{\"type\":\"Polygon\","
+              + "\"coordinates\":[[");
+      for (int k = 0; k <= 8; k++) {
+        double angle = (k % 8) * Math.PI / 4;
+        json.append(k > 0 ? "," : "")
+            .append('[').append(longitude + radius * Math.cos(angle))
+            .append(',').append(latitude + radius * Math.sin(angle))
+            .append(']');
+      }
+      json.append("]]}}");
+    }
+    json.append("]}");
+    Properties rates = new Properties();
+    rates.setProperty("local.fee", "2.00");
+    rates.setProperty("local.etaMinutes", "120");
+    index = DeliveryZones.parse(new StringReader(json.toString()), rates);
+    withoutCoordinates = new Location().setCity("Mountain View");
+  }
+
+  @Benchmark
+  public DeliveryZones.Zone coordinates() {
+    ThreadLocalRandom random = ThreadLocalRandom.current();
+    return index.find(25 + random.nextDouble() * 24,
+        -124 + random.nextDouble() * 57);
+  }
+
+  @Benchmark
+  public DeliveryZones.Zone zipCode() {
+    return index.find(new Location().setZipCode(String.valueOf(
+        10000 + ThreadLocalRandom.current().nextInt(zones))));
+  }
+
+  @Benchmark
+  public DeliveryZones.Zone rejected() {
+    return index.find(withoutCoordinates);
+  }
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Each {@code @ForIntent} handler of {@link TransactionsApp}, driven through
+ * {@code handleRequest} so that request parsing, routing and response
+ * serialization are included.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class IntentHandlerBenchmark {
+
+  @Param({
+      "Default_Welcome_Intent",
+      "Transaction_Merchant",
+      "Transaction_Google",
+      "Transaction_Check_Complete",
+      "Delivery_Address",
+      "Delivery_Address_Complete",
+      "Transaction_Decision",
+      "Transaction_Decision_Complete"})
+  public String intent;
+
+  private TransactionsApp app;
+  private String body;
+  private Map<String, String> headers;
+
+  @Setup
+  public void setUp() throws Exception {
+    // Every invocation repeats one request; run the handler, not a replay
+    System.setProperty("actions.responses.maxEntries", "0");
+    app = new TransactionsApp();
+    body = Payloads.request(intent);
+    headers = Collections.singletonMap("content-type", "application/json");
+    // Fail here rather than measure an error response
+    app.handleRequest(body, headers).get();
+  }
+
+  @Benchmark
+  public String handleRequest() throws Exception {
+    return app.handleRequest(body, headers).get();
+  }
+}
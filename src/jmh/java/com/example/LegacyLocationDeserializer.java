@@ -26,8 +26,11 @@ import com.google.gson.JsonObject;
 import com.google.gson.JsonParseException;
 import java.lang.reflect.Type;
 
-public class LocationDeserializer implements
-    JsonDeserializer<Location> {
+/**
+ * The tree-model deserializer that {@link LocationTypeAdapter} replaced, kept
+ * as a baseline for {@link LocationBenchmark}.
+ */
+final class LegacyLocationDeserializer implements JsonDeserializer<Location> {
 
   @Override
   public Location deserialize(JsonElement json, Type typeOfT,
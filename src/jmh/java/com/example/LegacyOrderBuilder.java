@@ -0,0 +1,300 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import com.google.api.services.actions_fulfillment.v2.model.Action;
+import com.google.api.services.actions_fulfillment.v2.model.LineItemV3;
+import com.google.api.services.actions_fulfillment.v2.model.Location;
+import com.google.api.services.actions_fulfillment.v2.model.MerchantV3;
+import com.google.api.services.actions_fulfillment.v2.model.MoneyV3;
+import com.google.api.services.actions_fulfillment.v2.model.OpenUrlAction;
+import com.google.api.services.actions_fulfillment.v2.model.OrderContents;
+import com.google.api.services.actions_fulfillment.v2.model.OrderV3;
+import com.google.api.services.actions_fulfillment.v2.model.PriceAttribute;
+import com.google.api.services.actions_fulfillment.v2.model.PurchaseFulfillmentInfo;
+import com.google.api.services.actions_fulfillment.v2.model.PurchaseItemExtension;
+import com.google.api.services.actions_fulfillment.v2.model.PurchaseItemExtensionItemOption;
+import com.google.api.services.actions_fulfillment.v2.model.PurchaseOrderExtension;
+import com.google.api.services.actions_fulfillment.v2.model.PurchaseReturnsInfo;
+import com.google.api.services.actions_fulfillment.v2.model.TimeV3;
+import com.google.api.services.actions_fulfillment.v2.model.UserInfo;
+import java.util.Arrays;
+import java.util.Collections;
+
+/**
+ * The builder chain that {@link OrderTemplate} replaced in
+ * {@code transactionDecision}, kept as a baseline for
+ * {@link OrderBenchmark}.
+ */
+final class LegacyOrderBuilder {
+
+  private LegacyOrderBuilder() {
+  }
+
+  static OrderV3 newOrder(String orderId, String now, Location location) {
+    // Transaction Merchant
+    MerchantV3 transactionMerchant = new MerchantV3()
+        .setId("http://www.example.com")
+        .setName("Example Merchant");
+
+    // Line Items
+    LineItemV3 firstItem = new LineItemV3()
+        .setId("memoirs_1")
+        .setName("My Memoirs")
+        .setPriceAttributes(Arrays.asList(
+            new PriceAttribute()
+                .setType("REGULAR")
+                .setName("Item Price")
+                .setState("ACTUAL")
+                .setAmount(new MoneyV3()
+                    .setCurrencyCode("USD")
+                    .setAmountInMicros(3990000L))
+                .setTaxIncluded(true),
+            new PriceAttribute()
+                .setType("TOTAL")
+                .setName("Total Price")
+                .setState("ACTUAL")
+                .setAmount(new MoneyV3()
+                    .setCurrencyCode("USD")
+                    .setAmountInMicros(3990000L))
+                .setTaxIncluded(true)))
+        .setNotes(Collections.singletonList("Note from the author."))
+        .setPurchase(new PurchaseItemExtension()
+            .setQuantity(1));
+
+    LineItemV3 secondItem = new LineItemV3()
+        .setId("memoirs_2")
+        .setName("Memoirs of a person")
+        .setPriceAttributes(Arrays.asList(
+            new PriceAttribute()
+                .setType("REGULAR")
+                .setName("Item Price")
+                .setState("ACTUAL")
+                .setAmount(new MoneyV3()
+                    .setCurrencyCode("USD")
+                    .setAmountInMicros(5990000L))
+                .setTaxIncluded(true),
+            new PriceAttribute()
+                .setType("TOTAL")
+                .setName("Total Price")
+                .setState("ACTUAL")
+                .setAmount(new MoneyV3()
+                    .setCurrencyCode("USD")
+                    .setAmountInMicros(5990000L))
+                .setTaxIncluded(true)))
+        .setNotes(Collections.singletonList("Special introduction by author."))
+        .setPurchase(new PurchaseItemExtension()
+            .setQuantity(1));
+
+    LineItemV3 thirdItem = new LineItemV3()
+        .setId("memoirs_3")
+        .setName("Their memoirs")
+        .setPriceAttributes(Arrays.asList(
+            new PriceAttribute()
+                .setType("REGULAR")
+                .setName("Item Price")
+                .setState("ACTUAL")
+                .setAmount(new MoneyV3()
+                    .setCurrencyCode("USD")
+                    .setAmountInMicros(15750000L))
+                .setTaxIncluded(true),
+            new PriceAttribute()
+                .setType("TOTAL")
+                .setName("Total Price")
+                .setState("ACTUAL")
+                .setAmount(new MoneyV3()
+                    .setCurrencyCode("USD")
+                    .setAmountInMicros(15750000L))
+                .setTaxIncluded(true)))
+        .setPurchase(new PurchaseItemExtension()
+            .setQuantity(1)
+            .setItemOptions(Collections.singletonList(
+                new PurchaseItemExtensionItemOption()
+                    .setId("memoirs_epilogue")
+                    .setName("Special memoir epilogue")
+                    .setPrices(Arrays.asList(
+                        new PriceAttribute()
+                            .setType("REGULAR")
+                            .setName("Item Price")
+                            .setState("ACTUAL")
+                            .setAmount(new MoneyV3()
+                                .setCurrencyCode("USD")
+                                .setAmountInMicros(3990000L))
+                            .setTaxIncluded(true),
+                        new PriceAttribute()
+                            .setType("TOTAL")
+                            .setName("Total Price")
+                            .setState("ACTUAL")
+                            .setAmount(new MoneyV3()
+                                .setCurrencyCode("USD")
+                                .setAmountInMicros(3990000L))
+                            .setTaxIncluded(true))))));
+
+    LineItemV3 fourthItem = new LineItemV3()
+        .setId("memoirs_4")
+        .setName("Our memoirs")
+        .setPriceAttributes(Arrays.asList(
+            new PriceAttribute()
+                .setType("REGULAR")
+                .setName("Item Price")
+                .setState("ACTUAL")
+                .setAmount(new MoneyV3()
+                    .setCurrencyCode("USD")
+                    .setAmountInMicros(6490000L))
+                .setTaxIncluded(true),
+            new PriceAttribute()
+                .setType("TOTAL")
+                .setName("Total Price")
+                .setState("ACTUAL")
+                .setAmount(new MoneyV3()
+                    .setCurrencyCode("USD")
+                    .setAmountInMicros(6490000L))
+                .setTaxIncluded(true)))
+        .setNotes(Collections.singletonList("Special introduction by author."))
+        .setPurchase(new PurchaseItemExtension()
+            .setQuantity(1));
+
+    // Order Contents
+    OrderContents contents = new OrderContents()
+        .setLineItems(
+            Arrays.asList(firstItem, secondItem, thirdItem, fourthItem));
+
+    // User Info
+    UserInfo buyerInfo = new UserInfo()
+        .setEmail("janedoe@gmail.com")
+        .setFirstName("Jane")
+        .setLastName("Doe")
+        .setDisplayName("Jane Doe");
+
+    // Price Attributes
+    PriceAttribute subTotal = new PriceAttribute()
+        .setType("SUBTOTAL")
+        .setName("Subtotal")
+        .setState("ESTIMATE")
+        .setAmount(new MoneyV3()
+            .setCurrencyCode("USD")
+            .setAmountInMicros(32220000L)
+        )
+        .setTaxIncluded(true);
+
+    PriceAttribute deliveryFee = new PriceAttribute()
+        .setType("DELIVERY")
+        .setName("Delivery")
+        .setState("ACTUAL")
+        .setAmount(new MoneyV3()
+            .setCurrencyCode("USD")
+            .setAmountInMicros(2000000L)
+        )
+        .setTaxIncluded(true);
+
+    PriceAttribute tax = new PriceAttribute()
+        .setType("TAX")
+        .setName("Tax")
+        .setState("ESTIMATE")
+        .setAmount(new MoneyV3()
+            .setCurrencyCode("USD")
+            .setAmountInMicros(2780000L)
+        )
+        .setTaxIncluded(true);
+
+    PriceAttribute totalPrice = new PriceAttribute()
+        .setType("TOTAL")
+        .setName("Total Price")
+        .setState("ESTIMATE")
+        .setAmount(new MoneyV3()
+            .setCurrencyCode("USD")
+            .setAmountInMicros(37000000L)
+        )
+        .setTaxIncluded(true);
+
+    // Follow up actions
+    Action viewDetails = new Action()
+        .setType("VIEW_DETAILS")
+        .setTitle("View details")
+        .setOpenUrlAction(new OpenUrlAction()
+            .setUrl("https://example.com"));
+
+    Action call = new Action()
+        .setType("CALL")
+        .setTitle("Call us")
+        .setOpenUrlAction(new OpenUrlAction()
+            .setUrl("tel:+16501112222"));
+
+    Action email = new Action()
+        .setType("EMAIL")
+        .setTitle("Email us")
+        .setOpenUrlAction(new OpenUrlAction()
+            .setUrl("mailto:person@example.com"));
+
+    // Terms of service and order note
+    String termsOfServiceUrl = "https://example.com";
+    String orderNote = "The Memoir collection";
+
+    // Purchase Order Extension
+    PurchaseOrderExtension purchaseOrderExtension = new PurchaseOrderExtension()
+        .setStatus("CREATED")
+        .setUserVisibleStatusLabel("CREATED")
+        .setType("RETAIL")
+        .setReturnsInfo(new PurchaseReturnsInfo()
+            .setIsReturnable(false)
+            .setDaysToReturn(1)
+            .setPolicyUrl("https://example.com"))
+        .setFulfillmentInfo(new PurchaseFulfillmentInfo()
+            .setId("FULFILLMENT_SERVICE_ID")
+            .setFulfillmentType("DELIVERY")
+            .setExpectedFulfillmentTime(new TimeV3()
+                .setTimeIso8601("2025-09-25T18:00:00.877Z"))
+            .setLocation(location)
+            .setPrice(new PriceAttribute()
+                .setType("REGULAR")
+                .setName("Delivery price")
+                .setState("ACTUAL")
+                .setAmount(new MoneyV3()
+                    .setCurrencyCode("USD")
+                    .setAmountInMicros(2000000L))
+                .setTaxIncluded(true))
+            .setFulfillmentContact(new UserInfo()
+                .setEmail("johnjohnson@gmail.com")
+                .setFirstName("John")
+                .setLastName("Johnson")
+                .setDisplayName("John Johnson")))
+        .setPurchaseLocationType("ONLINE_PURCHASE");
+
+    return new OrderV3()
+        .setCreateTime(now)
+        .setLastUpdateTime(now)
+        .setMerchantOrderId(orderId)
+        .setUserVisibleOrderId(orderId)
+        .setTransactionMerchant(transactionMerchant)
+        .setContents(contents)
+        .setBuyerInfo(buyerInfo)
+        .setPriceAttributes(Arrays.asList(
+            subTotal,
+            deliveryFee,
+            tax,
+            totalPrice
+        ))
+        .setFollowUpActions(Arrays.asList(
+            viewDetails,
+            call,
+            email
+        ))
+        .setTermsOfServiceUrl(termsOfServiceUrl)
+        .setNote(orderNote)
+        .setPurchase(purchaseOrderExtension);
+  }
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import com.google.api.services.actions_fulfillment.v2.model.Location;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Reading and writing the delivery address kept in conversation data, with
+ * {@link LocationTypeAdapter} and with the tree-model deserializer it
+ * replaced ({@link LegacyLocationDeserializer}).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class LocationBenchmark {
+
+  private Gson adapterGson;
+  private Gson legacyGson;
+  private String json;
+  private Location location;
+
+  @Setup
+  public void setUp() {
+    adapterGson = new GsonBuilder()
+        .registerTypeAdapter(Location.class, new LocationTypeAdapter())
+        .create();
+    legacyGson = new GsonBuilder()
+        .registerTypeAdapter(Location.class, new LegacyLocationDeserializer())
+        .create();
+    json = Payloads.deliveryLocation();
+    location = adapterGson.fromJson(json, Location.class);
+  }
+
+  @Benchmark
+  public Location readTypeAdapter() {
+    return adapterGson.fromJson(json, Location.class);
+  }
+
+  @Benchmark
+  public Location readLegacyDeserializer() {
+    return legacyGson.fromJson(json, Location.class);
+  }
+
+  @Benchmark
+  public String writeTypeAdapter() {
+    return adapterGson.toJson(location, Location.class);
+  }
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import java.text.MessageFormat;
+import java.util.Locale;
+import java.util.ResourceBundle;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Looking up and formatting the order confirmation message with
+ * {@link MessageCatalog}, and with the per-request {@link ResourceBundle}
+ * and {@link MessageFormat} it replaced.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class MessageCatalogBenchmark {
+
+  private static final String KEY = "transaction_decision_result_success";
+  private static final String ORDER_ID = "BV3ST005MZ";
+
+  private MessageCatalog catalog;
+  private Locale locale;
+
+  @Setup
+  public void setUp() {
+    catalog = MessageCatalog.load("resources");
+    locale = Locale.US;
+  }
+
+  @Benchmark
+  public String catalog() {
+    return catalog.forLocale(locale).format(KEY, ORDER_ID);
+  }
+
+  @Benchmark
+  public String resourceBundle() {
+    ResourceBundle rb = ResourceBundle.getBundle("resources", locale);
+    return MessageFormat.format(rb.getString(KEY), ORDER_ID);
+  }
+}
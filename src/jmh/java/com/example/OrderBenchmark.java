@@ -0,0 +1,103 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import com.google.api.services.actions_fulfillment.v2.model.Location;
+import com.google.api.services.actions_fulfillment.v2.model.OrderV3;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import java.time.Instant;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Building the order proposed in {@code transactionDecision} and
+ * serializing it with Gson, separately and together, from the
+ * {@link OrderTemplate} and from the builder chain it replaced
+ * ({@link LegacyOrderBuilder}).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class OrderBenchmark {
+
+  private static final Instant NOW =
+      Instant.parse("2019-09-24T18:00:00.877Z");
+
+  private Gson gson;
+  private OrderTemplate template;
+  private OrderIdGenerator orderIds;
+  private Location location;
+  private DeliveryZones.Zone zone;
+  private OrderV3 order;
+
+  @Setup
+  public void setUp() {
+    gson = new GsonBuilder()
+        .registerTypeAdapter(Location.class, new LocationTypeAdapter())
+        .create();
+    template = OrderTemplate.memoirCollection(
+        ProductCatalog.fromSystemProperties(),
+        PriceEngine.load("tax_rules.properties"));
+    orderIds = new OrderIdGenerator(0);
+    location = gson.fromJson(Payloads.deliveryLocation(), Location.class);
+    zone = DeliveryZones.fromSystemProperties().find(location);
+    order = newOrder();
+  }
+
+  @Benchmark
+  public OrderV3 build() {
+    return newOrder();
+  }
+
+  @Benchmark
+  public String serialize() {
+    return gson.toJson(order);
+  }
+
+  @Benchmark
+  public String buildAndSerialize() {
+    return gson.toJson(newOrder());
+  }
+
+  @Benchmark
+  public OrderV3 buildLegacy() {
+    return newLegacyOrder();
+  }
+
+  @Benchmark
+  public String buildAndSerializeLegacy() {
+    return gson.toJson(newLegacyOrder());
+  }
+
+  private OrderV3 newOrder() {
+    String orderId = orderIds.next();
+    return template.newOrder(orderId, OrderIdGenerator.userVisible(orderId),
+        NOW, location, zone, new PriceEngine.Quote());
+  }
+
+  private OrderV3 newLegacyOrder() {
+    return LegacyOrderBuilder.newOrder(orderIds.next(), NOW.toString(),
+        location);
+  }
+}
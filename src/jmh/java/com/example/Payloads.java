@@ -0,0 +1,67 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import com.google.gson.JsonParser;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Dialogflow webhook requests for the intents in {@code agent/intents} that
+ * use the webhook, as the Assistant sends them for one run through the
+ * Google Pay flow. They live in {@code src/jmh/resources/requests}, one file
+ * per intent with spaces in the display name replaced by underscores.
+ */
+final class Payloads {
+
+  private Payloads() {
+  }
+
+  /** The delivery address from the Delivery Address Complete request. */
+  static String deliveryLocation() {
+    return new JsonParser().parse(request("Delivery_Address_Complete"))
+        .getAsJsonObject()
+        .getAsJsonObject("originalDetectIntentRequest")
+        .getAsJsonObject("payload")
+        .getAsJsonArray("inputs").get(0).getAsJsonObject()
+        .getAsJsonArray("arguments").get(0).getAsJsonObject()
+        .getAsJsonObject("extension")
+        .getAsJsonObject("location")
+        .toString();
+  }
+
+  static String request(String intent) {
+    String resource = "/requests/" + intent + ".json";
+    try (InputStream in = Payloads.class.getResourceAsStream(resource)) {
+      if (in == null) {
+        throw new IllegalArgumentException("No payload " + resource);
+      }
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      byte[] buffer = new byte[8192];
+      int read;
+      while ((read = in.read(buffer)) != -1) {
+        out.write(buffer, 0, read);
+      }
+      return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+}
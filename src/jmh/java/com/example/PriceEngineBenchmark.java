@@ -0,0 +1,82 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import com.google.api.services.actions_fulfillment.v2.model.Location;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import java.math.BigDecimal;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Pricing the sample order for its delivery location with
+ * {@link PriceEngine}, and the same calculation with {@link BigDecimal}.
+ * Run with the GC profiler to see that {@code quote} does not allocate.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class PriceEngineBenchmark {
+
+  private static final long SUBTOTAL_MICROS = 36210000L;
+  private static final long DELIVERY_MICROS = 2000000L;
+
+  private PriceEngine prices;
+  private Location location;
+  private PriceEngine.Quote quote;
+
+  @Setup
+  public void setUp() {
+    Gson gson = new GsonBuilder()
+        .registerTypeAdapter(Location.class, new LocationTypeAdapter())
+        .create();
+    prices = PriceEngine.load("tax_rules.properties");
+    location = gson.fromJson(Payloads.deliveryLocation(), Location.class);
+    quote = new PriceEngine.Quote();
+  }
+
+  @Benchmark
+  public long quote() {
+    prices.quote(SUBTOTAL_MICROS, DELIVERY_MICROS,
+        prices.taxRule(location, "USD"), quote);
+    return quote.totalMicros;
+  }
+
+  @Benchmark
+  public String quoteAndFormat() {
+    quote();
+    return quote.totalPrice();
+  }
+
+  @Benchmark
+  public String bigDecimal() {
+    PriceEngine.TaxRule rule = prices.taxRule(location, "USD");
+    BigDecimal subtotal = BigDecimal.valueOf(SUBTOTAL_MICROS, 6);
+    BigDecimal tax = subtotal
+        .multiply(BigDecimal.valueOf(rule.ratePpm, 6))
+        .setScale(rule.fractionDigits, rule.rounding);
+    return subtotal.add(BigDecimal.valueOf(DELIVERY_MICROS, 6)).add(tax)
+        .setScale(rule.fractionDigits, rule.rounding).toPlainString();
+  }
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import com.google.api.services.actions_fulfillment.v2.model.LineItemV3;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Looking up random products in a memory-mapped {@link ProductCatalog} of
+ * {@code products} generated SKUs, to check that lookups cost the same
+ * however large the catalog is.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class ProductCatalogBenchmark {
+
+  @Param({"1000", "500000"})
+  public int products;
+
+  private Path file;
+  private ProductCatalog catalog;
+
+  @Setup
+  public void setUp() throws IOException {
+    StringBuilder jsonLines = new StringBuilder();
+    for (int i = 0; i < products; i++) {
+      jsonLines.append("{\"id\":\"sku_").append(i)
+          .append("\",\"name\":\"Product ").append(i)
+          .append("\",\"priceMicros\":").append(1000000L + i)
+          .append(",\"notes\":[\"Note\"]}\n");
+    }
+    file = Files.createTempFile("products", ".catalog");
+    ProductCatalog.build(
+        new BufferedReader(new StringReader(jsonLines.toString())), file);
+    catalog = ProductCatalog.open(file, 0);
+  }
+
+  @TearDown
+  public void tearDown() throws IOException {
+    catalog.close();
+    Files.deleteIfExists(file);
+  }
+
+  @Benchmark
+  public boolean contains() {
+    return catalog.current().contains(randomId());
+  }
+
+  @Benchmark
+  public LineItemV3 lineItem() {
+    return catalog.current().lineItem(randomId(), 1);
+  }
+
+  private String randomId() {
+    return "sku_" + ThreadLocalRandom.current().nextInt(products);
+  }
+}
@@ -0,0 +1,253 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import org.eclipse.jetty.client.HttpClient;
+import org.eclipse.jetty.client.api.Result;
+import org.eclipse.jetty.client.util.BufferingResponseListener;
+import org.eclipse.jetty.client.util.StringContentProvider;
+
+/**
+ * One simulated user going through a flow of {@link ConversationScript},
+ * one webhook request per turn. Between turns it keeps what Dialogflow and
+ * the Assistant would: the contexts, with their lifespans, including the
+ * conversation data in {@code _actions_on_google}; the user storage; and
+ * the order proposed by Transaction Decision, which comes back in the
+ * Transaction Decision Complete request.
+ *
+ * <p>Each turn's latency is measured from when it was meant to be sent, so
+ * a slow server shows up as latency rather than as a lower arrival rate.
+ */
+final class Conversation {
+
+  /** Receives the outcome of every turn. */
+  interface Listener {
+
+    void turnCompleted(String intent, long latencyNanos);
+
+    void turnFailed(String intent, String reason);
+
+    void conversationEnded(boolean completed);
+  }
+
+  private static final int MAX_RESPONSE_BYTES = 4 << 20;
+
+  private final ConversationScript script;
+  private final List<String> flow;
+  private final HttpClient client;
+  private final String url;
+  private final long timeoutMillis;
+  private final long thinkTimeMillis;
+  private final ScheduledExecutorService scheduler;
+  private final Listener listener;
+
+  private final String sessionId = UUID.randomUUID().toString();
+  private final Map<String, JsonObject> contexts = new LinkedHashMap<>();
+  private String sessionPath;
+  private String userStorage;
+  private JsonElement proposedOrder;
+
+  Conversation(ConversationScript script, List<String> flow,
+      HttpClient client, String url, long timeoutMillis, long thinkTimeMillis,
+      ScheduledExecutorService scheduler, Listener listener) {
+    this.script = script;
+    this.flow = flow;
+    this.client = client;
+    this.url = url;
+    this.timeoutMillis = timeoutMillis;
+    this.thinkTimeMillis = thinkTimeMillis;
+    this.scheduler = scheduler;
+    this.listener = listener;
+  }
+
+  /** Sends the first turn, which was due at {@code intendedNanos}. */
+  void start(long intendedNanos) {
+    send(0, intendedNanos);
+  }
+
+  private void send(int turn, long intendedNanos) {
+    String intent = flow.get(turn);
+    String body = request(intent, turn == 0);
+    client.POST(url)
+        .content(new StringContentProvider(
+            "application/json; charset=utf-8", body, StandardCharsets.UTF_8))
+        .timeout(timeoutMillis, TimeUnit.MILLISECONDS)
+        .send(new BufferingResponseListener(MAX_RESPONSE_BYTES) {
+          @Override
+          public void onComplete(Result result) {
+            long latency = System.nanoTime() - intendedNanos;
+            if (result.isFailed()) {
+              fail(intent, result.getFailure().toString());
+              return;
+            }
+            int status = result.getResponse().getStatus();
+            if (status != 200) {
+              fail(intent, "HTTP " + status);
+              return;
+            }
+            String failure = handleResponse(intent, getContentAsString());
+            if (failure != null) {
+              fail(intent, failure);
+              return;
+            }
+            listener.turnCompleted(intent, latency);
+            next(turn + 1);
+          }
+        });
+  }
+
+  private void next(int turn) {
+    if (turn == flow.size()) {
+      listener.conversationEnded(true);
+    } else if (thinkTimeMillis > 0) {
+      long intended = System.nanoTime()
+          + TimeUnit.MILLISECONDS.toNanos(thinkTimeMillis);
+      scheduler.schedule(() -> send(turn, intended), thinkTimeMillis,
+          TimeUnit.MILLISECONDS);
+    } else {
+      send(turn, System.nanoTime());
+    }
+  }
+
+  private void fail(String intent, String reason) {
+    listener.turnFailed(intent, reason);
+    listener.conversationEnded(false);
+  }
+
+  private String request(String intent, boolean first) {
+    JsonObject request = script.request(intent);
+    if (sessionPath == null) {
+      sessionPath = ConversationScript.sessionPath(request, sessionId);
+    }
+    request.addProperty("session", sessionPath);
+    request.addProperty("responseId", UUID.randomUUID().toString());
+
+    JsonArray outputContexts = request.getAsJsonObject("queryResult")
+        .getAsJsonArray("outputContexts");
+    for (JsonElement context : outputContexts) {
+      JsonObject fixed = context.getAsJsonObject();
+      fixed.addProperty("name", contextName(
+          ConversationScript.shortName(fixed.get("name").getAsString())));
+    }
+    for (Map.Entry<String, JsonObject> e : contexts.entrySet()) {
+      JsonObject context = e.getValue().deepCopy();
+      context.addProperty("name", contextName(e.getKey()));
+      outputContexts.add(context);
+    }
+
+    JsonObject payload = request.getAsJsonObject("originalDetectIntentRequest")
+        .getAsJsonObject("payload");
+    JsonObject conversation = payload.getAsJsonObject("conversation");
+    conversation.addProperty("conversationId", sessionId);
+    conversation.addProperty("type", first ? "NEW" : "ACTIVE");
+    if (userStorage != null) {
+      payload.getAsJsonObject("user").addProperty("userStorage", userStorage);
+    }
+    if (proposedOrder != null) {
+      for (JsonElement input : payload.getAsJsonArray("inputs")) {
+        for (JsonElement argument
+            : input.getAsJsonObject().getAsJsonArray("arguments")) {
+          JsonObject extension =
+              argument.getAsJsonObject().getAsJsonObject("extension");
+          if (extension != null && extension.has("order")) {
+            extension.add("order", proposedOrder);
+          }
+        }
+      }
+    }
+    return request.toString();
+  }
+
+  /** Applies a webhook response; returns why it is unusable, or null. */
+  private String handleResponse(String intent, String body) {
+    JsonObject response;
+    try {
+      response = JsonParser.parseString(body).getAsJsonObject();
+    } catch (RuntimeException e) {
+      return "Not a JSON object: "
+          + body.substring(0, Math.min(body.length(), 120));
+    }
+
+    // Contexts age by one turn, then the agent's and the webhook's apply
+    for (Iterator<JsonObject> it = contexts.values().iterator();
+        it.hasNext(); ) {
+      JsonObject context = it.next();
+      int lifespan = context.get("lifespanCount").getAsInt() - 1;
+      if (lifespan <= 0) {
+        it.remove();
+      } else {
+        context.addProperty("lifespanCount", lifespan);
+      }
+    }
+    for (JsonObject affected : script.affectedContexts(intent)) {
+      JsonObject context = new JsonObject();
+      context.addProperty("lifespanCount", affected.get("lifespan").getAsInt());
+      context.add("parameters", affected.has("parameters")
+          ? affected.get("parameters") : new JsonObject());
+      contexts.put(affected.get("name").getAsString(), context);
+    }
+    JsonArray outputContexts = response.getAsJsonArray("outputContexts");
+    if (outputContexts != null) {
+      for (JsonElement element : outputContexts) {
+        JsonObject context = element.getAsJsonObject().deepCopy();
+        String name = ConversationScript.shortName(
+            context.remove("name").getAsString());
+        int lifespan = context.has("lifespanCount")
+            ? context.get("lifespanCount").getAsInt() : 1;
+        if (lifespan <= 0) {
+          contexts.remove(name);
+        } else {
+          context.addProperty("lifespanCount", lifespan);
+          contexts.put(name, context);
+        }
+      }
+    }
+
+    JsonObject google = response.has("payload")
+        ? response.getAsJsonObject("payload").getAsJsonObject("google")
+        : null;
+    if (google != null) {
+      if (google.has("userStorage")) {
+        userStorage = google.get("userStorage").getAsString();
+      }
+      JsonObject systemIntent = google.getAsJsonObject("systemIntent");
+      if (systemIntent != null && systemIntent.has("data")) {
+        JsonObject data = systemIntent.getAsJsonObject("data");
+        if (data.has("order")) {
+          proposedOrder = data.get("order");
+        }
+      }
+    }
+    return null;
+  }
+
+  private String contextName(String shortName) {
+    return sessionPath + "/contexts/" + shortName;
+  }
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The turns of a conversation through the transactions flow, and for each
+ * turn the webhook request Dialogflow would send and the contexts the
+ * matched intent sets. Requests start from the payloads in
+ * {@code requests/} on the class path, one per intent; contexts come from
+ * the agent's intent files.
+ */
+final class ConversationScript {
+
+  static final List<String> MERCHANT_FLOW = Collections.unmodifiableList(
+      Arrays.asList(
+          "Default Welcome Intent",
+          "Transaction Merchant",
+          "Transaction Check Complete",
+          "Delivery Address",
+          "Delivery Address Complete",
+          "Transaction Decision",
+          "Transaction Decision Complete"));
+
+  static final List<String> GOOGLE_PAY_FLOW = Collections.unmodifiableList(
+      Arrays.asList(
+          "Default Welcome Intent",
+          "Transaction Google",
+          "Transaction Check Complete",
+          "Delivery Address",
+          "Delivery Address Complete",
+          "Transaction Decision",
+          "Transaction Decision Complete"));
+
+  /** Session ID used in the stored payloads, replaced per conversation. */
+  private static final String TEMPLATE_SESSION_MARKER = "/agent/sessions/";
+
+  private final Map<String, JsonObject> requests = new HashMap<>();
+  private final Map<String, List<JsonObject>> affectedContexts =
+      new HashMap<>();
+
+  private ConversationScript() {
+  }
+
+  /** Loads the request payloads and the agent in {@code intentsDirectory}. */
+  static ConversationScript load(Path intentsDirectory) throws IOException {
+    ConversationScript script = new ConversationScript();
+    List<String> intents = new ArrayList<>(MERCHANT_FLOW);
+    intents.add("Transaction Google");
+    for (String intent : intents) {
+      script.requests.put(intent, readRequest(intent));
+      script.affectedContexts.put(intent,
+          readAffectedContexts(intentsDirectory.resolve(intent + ".json")));
+    }
+    return script;
+  }
+
+  /**
+   * Returns a copy of the stored request for {@code intent}, without the
+   * contexts that the conversation carries between turns.
+   */
+  JsonObject request(String intent) {
+    JsonObject request = requests.get(intent).deepCopy();
+    JsonArray contexts = request.getAsJsonObject("queryResult")
+        .getAsJsonArray("outputContexts");
+    JsonArray fixed = new JsonArray();
+    for (JsonElement context : contexts) {
+      // Capability and event contexts have no lifespan
+      if (!context.getAsJsonObject().has("lifespanCount")) {
+        fixed.add(context);
+      }
+    }
+    request.getAsJsonObject("queryResult").add("outputContexts", fixed);
+    return request;
+  }
+
+  /** Returns the contexts set by the agent when {@code intent} matches. */
+  List<JsonObject> affectedContexts(String intent) {
+    return affectedContexts.get(intent);
+  }
+
+  /** Returns the context name without the session path. */
+  static String shortName(String contextName) {
+    return contextName.substring(contextName.lastIndexOf('/') + 1);
+  }
+
+  /** Returns the session path ({@code projects/p/agent/sessions/s}). */
+  static String sessionPath(JsonObject request, String sessionId) {
+    String session = request.get("session").getAsString();
+    return session.substring(0,
+        session.indexOf(TEMPLATE_SESSION_MARKER)
+            + TEMPLATE_SESSION_MARKER.length()) + sessionId;
+  }
+
+  private static JsonObject readRequest(String intent) throws IOException {
+    String resource = "/requests/" + intent.replace(' ', '_') + ".json";
+    try (InputStream in =
+        ConversationScript.class.getResourceAsStream(resource)) {
+      if (in == null) {
+        throw new IOException("No request payload " + resource);
+      }
+      return JsonParser
+          .parseReader(new InputStreamReader(in, StandardCharsets.UTF_8))
+          .getAsJsonObject();
+    }
+  }
+
+  private static List<JsonObject> readAffectedContexts(Path intentFile) {
+    try (Reader reader =
+        Files.newBufferedReader(intentFile, StandardCharsets.UTF_8)) {
+      JsonObject intent = JsonParser.parseReader(reader).getAsJsonObject();
+      List<JsonObject> contexts = new ArrayList<>();
+      for (JsonElement response : intent.getAsJsonArray("responses")) {
+        JsonArray affected =
+            response.getAsJsonObject().getAsJsonArray("affectedContexts");
+        if (affected == null) {
+          continue;
+        }
+        for (JsonElement context : affected) {
+          contexts.add(context.getAsJsonObject());
+        }
+      }
+      return contexts;
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+}
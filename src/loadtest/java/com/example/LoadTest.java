@@ -0,0 +1,344 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import java.nio.file.Paths;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+import org.eclipse.jetty.client.HttpClient;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.eclipse.jetty.servlet.ServletHolder;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Replays whole conversations against the webhook and reports latency
+ * percentiles and throughput per intent.
+ *
+ * <p>Conversations start at random (Poisson) intervals at a fixed average
+ * rate, whether or not earlier ones have finished, the way users arrive.
+ * Each turn's latency is taken from when it was due rather than when it was
+ * sent, so time spent queued behind a slow server is counted instead of
+ * hidden. Conversations that would exceed {@code maxSessionsInFlight} are
+ * dropped and counted; a non-zero count means the rate was not sustained.
+ *
+ * <p>By default the servlet runs in an embedded Jetty server in the same
+ * JVM; set {@code actions.loadtest.url} to drive a deployed webhook instead.
+ * Settings are {@code actions.loadtest.*} system properties, see
+ * {@link Config}.
+ */
+public final class LoadTest {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(LoadTest.class);
+
+  private static final int SIGNIFICANT_DIGITS = 3;
+  private static final long DRAIN_TIMEOUT_MILLIS = 30000L;
+
+  private final Config config;
+  private final ConversationScript script;
+  private final Map<String, IntentStats> stats = new LinkedHashMap<>();
+  private final AtomicInteger inFlight = new AtomicInteger();
+  private final LongAdder started = new LongAdder();
+  private final LongAdder completed = new LongAdder();
+  private final LongAdder aborted = new LongAdder();
+  private final LongAdder dropped = new LongAdder();
+  private volatile boolean measuring;
+
+  private LoadTest(Config config, ConversationScript script) {
+    this.config = config;
+    this.script = script;
+    for (String intent : ConversationScript.MERCHANT_FLOW) {
+      stats.put(intent, new IntentStats());
+    }
+    for (String intent : ConversationScript.GOOGLE_PAY_FLOW) {
+      stats.putIfAbsent(intent, new IntentStats());
+    }
+  }
+
+  public static void main(String[] args) throws Exception {
+    Config config = Config.fromSystemProperties();
+    ConversationScript script =
+        ConversationScript.load(Paths.get(config.intentsDirectory));
+    new LoadTest(config, script).run();
+  }
+
+  private void run() throws Exception {
+    Server server = null;
+    String url = config.url;
+    if (url.isEmpty()) {
+      server = startServer();
+      url = server.getURI().resolve("/").toString();
+    }
+    HttpClient client = new HttpClient();
+    client.setMaxConnectionsPerDestination(config.maxConnections);
+    // A conversation has at most one request outstanding
+    client.setMaxRequestsQueuedPerDestination(config.maxSessionsInFlight);
+    client.start();
+    ScheduledExecutorService scheduler =
+        Executors.newSingleThreadScheduledExecutor(r -> {
+          Thread thread = new Thread(r, "loadtest-think-time");
+          thread.setDaemon(true);
+          return thread;
+        });
+    LOGGER.info("Running {} conversations/s against {} for {}s after {}s "
+            + "of warm-up", config.sessionsPerSecond, url,
+        config.durationSeconds, config.warmupSeconds);
+    try {
+      generate(client, url, scheduler);
+    } finally {
+      scheduler.shutdownNow();
+      client.stop();
+      if (server != null) {
+        server.stop();
+      }
+    }
+  }
+
+  private Server startServer() throws Exception {
+    QueuedThreadPool threads = new QueuedThreadPool(config.serverThreads);
+    threads.setName("webhook");
+    Server server = new Server(threads);
+    ServerConnector connector = new ServerConnector(server);
+    connector.setHost("127.0.0.1");
+    server.addConnector(connector);
+    ServletContextHandler context = new ServletContextHandler();
+    ServletHolder holder = new ServletHolder(new ActionsServlet());
+    holder.setAsyncSupported(true);
+    context.addServlet(holder, "/");
+    server.setHandler(context);
+    server.start();
+    return server;
+  }
+
+  /** Starts conversations at the configured rate until the run ends. */
+  private void generate(HttpClient client, String url,
+      ScheduledExecutorService scheduler) throws InterruptedException {
+    ThreadLocalRandom random = ThreadLocalRandom.current();
+    double meanGapNanos = TimeUnit.SECONDS.toNanos(1) / config.sessionsPerSecond;
+    long start = System.nanoTime();
+    long measureStart = start + TimeUnit.SECONDS.toNanos(config.warmupSeconds);
+    long end = measureStart + TimeUnit.SECONDS.toNanos(config.durationSeconds);
+    long reportInterval =
+        TimeUnit.SECONDS.toNanos(config.reportIntervalSeconds);
+    long nextReport = measureStart + reportInterval;
+    long lastReport = measureStart;
+
+    long next = start;
+    while (next < end) {
+      long now = System.nanoTime();
+      if (!measuring && now >= measureStart) {
+        startMeasuring();
+      }
+      if (measuring && now >= nextReport) {
+        report("Interval", now - lastReport, false);
+        lastReport = now;
+        nextReport += reportInterval;
+      }
+      if (now < next) {
+        LockSupport.parkNanos(next - now);
+        continue;
+      }
+      if (inFlight.get() >= config.maxSessionsInFlight) {
+        dropped.increment();
+      } else {
+        List<String> flow = random.nextDouble() < config.googlePayShare
+            ? ConversationScript.GOOGLE_PAY_FLOW
+            : ConversationScript.MERCHANT_FLOW;
+        inFlight.incrementAndGet();
+        started.increment();
+        new Conversation(script, flow, client, url, config.timeoutMillis,
+            config.thinkTimeMillis, scheduler, new Listener()).start(next);
+      }
+      // Exponential gaps give a Poisson arrival process
+      next += (long) (-Math.log(1 - random.nextDouble()) * meanGapNanos);
+    }
+
+    long deadline = System.nanoTime()
+        + TimeUnit.MILLISECONDS.toNanos(DRAIN_TIMEOUT_MILLIS);
+    while (inFlight.get() > 0 && System.nanoTime() < deadline) {
+      Thread.sleep(10);
+    }
+    if (!measuring) {
+      startMeasuring();
+    }
+    long now = System.nanoTime();
+    report("Interval", now - lastReport, false);
+    report("Total", now - measureStart, true);
+    LOGGER.info("Conversations: started={} completed={} aborted={} "
+            + "dropped={} unfinished={}", started.sum(), completed.sum(),
+        aborted.sum(), dropped.sum(), inFlight.get());
+  }
+
+  /** Discards everything recorded during the warm-up. */
+  private void startMeasuring() {
+    for (IntentStats intent : stats.values()) {
+      intent.recorder.reset();
+      intent.errors.reset();
+    }
+    started.reset();
+    dropped.reset();
+    measuring = true;
+  }
+
+  private void report(String title, long elapsedNanos, boolean total) {
+    double seconds = elapsedNanos / 1e9;
+    StringBuilder table = new StringBuilder(title).append(String.format(
+        " (%.1fs)%n%-30s %8s %6s %8s %9s %9s %9s %9s %9s",
+        seconds, "intent", "count", "errors", "req/s",
+        "p50 ms", "p90 ms", "p99 ms", "p99.9 ms", "max ms"));
+    for (Map.Entry<String, IntentStats> e : stats.entrySet()) {
+      IntentStats intent = e.getValue();
+      Histogram histogram = intent.interval();
+      long errors = intent.errors.sumThenReset();
+      intent.totalErrors += errors;
+      if (total) {
+        histogram = intent.total;
+        errors = intent.totalErrors;
+      }
+      table.append(String.format(
+          "%n%-30s %8d %6d %8.1f %9.3f %9.3f %9.3f %9.3f %9.3f",
+          e.getKey(), histogram.getTotalCount(), errors,
+          histogram.getTotalCount() / seconds,
+          millis(histogram.getValueAtPercentile(50)),
+          millis(histogram.getValueAtPercentile(90)),
+          millis(histogram.getValueAtPercentile(99)),
+          millis(histogram.getValueAtPercentile(99.9)),
+          millis(histogram.getMaxValue())));
+    }
+    LOGGER.info("{}", table);
+  }
+
+  private static double millis(long micros) {
+    return micros / 1000.0;
+  }
+
+  /** Latencies, in microseconds, and errors of one intent. */
+  private static final class IntentStats {
+
+    final Recorder recorder = new Recorder(SIGNIFICANT_DIGITS);
+    final LongAdder errors = new LongAdder();
+    /** Everything taken from the recorder so far; report thread only. */
+    final Histogram total = new Histogram(SIGNIFICANT_DIGITS);
+    long totalErrors;
+    private Histogram recycled;
+
+    Histogram interval() {
+      Histogram histogram = recorder.getIntervalHistogram(recycled);
+      total.add(histogram);
+      recycled = histogram;
+      return histogram;
+    }
+  }
+
+  private final class Listener implements Conversation.Listener {
+
+    /** Whether the conversation started after the warm-up. */
+    private final boolean measured = measuring;
+
+    @Override
+    public void turnCompleted(String intent, long latencyNanos) {
+      if (measuring) {
+        stats.get(intent).recorder.recordValue(
+            TimeUnit.NANOSECONDS.toMicros(latencyNanos));
+      }
+    }
+
+    @Override
+    public void turnFailed(String intent, String reason) {
+      if (measuring) {
+        stats.get(intent).errors.increment();
+      }
+      LOGGER.debug("{} failed: {}", intent, reason);
+    }
+
+    @Override
+    public void conversationEnded(boolean finished) {
+      inFlight.decrementAndGet();
+      if (measured) {
+        (finished ? completed : aborted).increment();
+      }
+    }
+  }
+
+  /** Arrival rate, duration and target of a run. */
+  static final class Config {
+
+    final double sessionsPerSecond;
+    final long durationSeconds;
+    final long warmupSeconds;
+    final long reportIntervalSeconds;
+    final double googlePayShare;
+    final long thinkTimeMillis;
+    final int maxSessionsInFlight;
+    final int maxConnections;
+    final long timeoutMillis;
+    final String url;
+    final int serverThreads;
+    final String intentsDirectory;
+
+    Config(double sessionsPerSecond, long durationSeconds, long warmupSeconds,
+        long reportIntervalSeconds, double googlePayShare,
+        long thinkTimeMillis, int maxSessionsInFlight, int maxConnections,
+        long timeoutMillis, String url, int serverThreads,
+        String intentsDirectory) {
+      this.sessionsPerSecond = sessionsPerSecond;
+      this.durationSeconds = durationSeconds;
+      this.warmupSeconds = warmupSeconds;
+      this.reportIntervalSeconds = reportIntervalSeconds;
+      this.googlePayShare = googlePayShare;
+      this.thinkTimeMillis = thinkTimeMillis;
+      this.maxSessionsInFlight = maxSessionsInFlight;
+      this.maxConnections = maxConnections;
+      this.timeoutMillis = timeoutMillis;
+      this.url = url;
+      this.serverThreads = serverThreads;
+      this.intentsDirectory = intentsDirectory;
+    }
+
+    static Config fromSystemProperties() {
+      return new Config(
+          Double.parseDouble(
+              System.getProperty("actions.loadtest.sessionsPerSecond", "20")),
+          Long.getLong("actions.loadtest.durationSeconds", 60L),
+          Long.getLong("actions.loadtest.warmupSeconds", 15L),
+          Long.getLong("actions.loadtest.reportIntervalSeconds", 10L),
+          Double.parseDouble(
+              System.getProperty("actions.loadtest.googlePayShare", "0.5")),
+          Long.getLong("actions.loadtest.thinkTimeMillis", 0L),
+          Integer.getInteger("actions.loadtest.maxSessionsInFlight", 5000),
+          Integer.getInteger("actions.loadtest.maxConnections", 256),
+          Long.getLong("actions.loadtest.timeoutMillis", 10000L),
+          System.getProperty("actions.loadtest.url", ""),
+          Integer.getInteger("actions.loadtest.serverThreads", 200),
+          System.getProperty("actions.loadtest.intentsDirectory",
+              "agent/intents"));
+    }
+  }
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import com.google.auth.oauth2.AccessToken;
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Caches an OAuth access token and refreshes it on a background thread
+ * shortly before it expires, so callers normally never wait on a refresh.
+ * If the cached token has expired anyway (for example because a background
+ * refresh failed), the next caller refreshes it synchronously.
+ *
+ * <p>The refresh margin is capped at half the lifetime of each token, and
+ * background refreshes are at least {@value #MIN_REFRESH_DELAY_MILLIS} ms
+ * apart, so a short-lived token cannot make the refresh loop.
+ */
+final class AccessTokenCache implements AutoCloseable {
+
+  /** Source of fresh access tokens. */
+  interface TokenSource {
+
+    AccessToken refresh() throws IOException;
+  }
+
+  private static final Logger LOGGER =
+      LoggerFactory.getLogger(AccessTokenCache.class);
+  private static final long RETRY_DELAY_MILLIS = 10_000L;
+  private static final long MIN_REFRESH_DELAY_MILLIS = 1_000L;
+
+  private final TokenSource source;
+  private final long refreshMarginMillis;
+  private final ScheduledExecutorService scheduler;
+  private volatile Cached cached;
+  private ScheduledFuture<?> scheduledRefresh;
+
+  AccessTokenCache(TokenSource source, long refreshMarginMillis) {
+    this.source = source;
+    this.refreshMarginMillis = refreshMarginMillis;
+    this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+      Thread thread = new Thread(runnable, "access-token-refresh");
+      thread.setDaemon(true);
+      return thread;
+    });
+  }
+
+  /**
+   * Returns a token that is valid for at least the refresh margin, or half
+   * its lifetime if that is shorter.
+   */
+  AccessToken get() throws IOException {
+    Cached current = cached;
+    if (isFresh(current)) {
+      return current.token;
+    }
+    return refresh();
+  }
+
+  private synchronized AccessToken refresh() throws IOException {
+    Cached current = cached;
+    if (isFresh(current)) {
+      // Another thread refreshed while we were waiting
+      return current.token;
+    }
+    return store(source.refresh());
+  }
+
+  private static boolean isFresh(Cached candidate) {
+    return candidate != null
+        && candidate.refreshAtMillis > System.currentTimeMillis();
+  }
+
+  private synchronized AccessToken store(AccessToken refreshed) {
+    long now = System.currentTimeMillis();
+    long refreshAt = Long.MAX_VALUE;
+    if (refreshed.getExpirationTime() != null) {
+      long lifetime = refreshed.getExpirationTime().getTime() - now;
+      refreshAt = now + lifetime - Math.min(refreshMarginMillis, lifetime / 2);
+    }
+    cached = new Cached(refreshed, refreshAt);
+    if (scheduledRefresh != null) {
+      scheduledRefresh.cancel(false);
+    }
+    if (refreshAt != Long.MAX_VALUE && !scheduler.isShutdown()) {
+      scheduledRefresh = scheduler.schedule(this::refreshInBackground,
+          Math.max(MIN_REFRESH_DELAY_MILLIS, refreshAt - now),
+          TimeUnit.MILLISECONDS);
+    }
+    return refreshed;
+  }
+
+  private void refreshInBackground() {
+    try {
+      store(source.refresh());
+    } catch (IOException | RuntimeException e) {
+      LOGGER.warn("Background access token refresh failed, retrying", e);
+      synchronized (this) {
+        if (!scheduler.isShutdown()) {
+          scheduledRefresh = scheduler.schedule(this::refreshInBackground,
+              RETRY_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+        }
+      }
+    }
+  }
+
+  @Override
+  public void close() {
+    scheduler.shutdownNow();
+  }
+
+  /** A token and the time at which it is due for a refresh. */
+  private static final class Cached {
+
+    final AccessToken token;
+    final long refreshAtMillis;
+
+    Cached(AccessToken token, long refreshAtMillis) {
+      this.token = token;
+      this.refreshAtMillis = refreshAtMillis;
+    }
+  }
+}
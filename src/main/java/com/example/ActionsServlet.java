@@ -16,13 +16,21 @@
 
 package com.example;
 
-import com.google.actions.api.App;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
-import java.util.stream.Collectors;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletInputStream;
+import javax.servlet.ServletOutputStream;
 import javax.servlet.annotation.WebServlet;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
@@ -33,26 +41,123 @@ import org.slf4j.LoggerFactory;
 /**
  * Handles request received via HTTP POST and delegates it to your Actions app.
  * See: [Request handling in Google App Engine](https://cloud.google.com/appengine/docs/standard/java/how-requests-are-handled).
+ *
+ * <p>By default requests are handled asynchronously: the container thread is
+ * released while the body is read, the intent is handled and the response is
+ * written. Set the {@code actions.servlet.async} system property to
+ * {@code false} to use the blocking path instead.
+ *
+ * <p>Every request has a {@link Deadline} of
+ * {@code actions.deadline.budgetMillis} (default 4500) from its arrival,
+ * just short of the five seconds Dialogflow waits for the webhook. If the
+ * response is not ready by then, a fallback asking the user to try again is
+ * sent in its place; see {@link TransactionsApp#timeOut}. The blocking path
+ * runs the handler on the request thread, so there the deadline only bounds
+ * the wait for a response that the handler left pending. On the async path
+ * the container's async timeout is set to the rest of the budget plus
+ * {@code actions.servlet.asyncTimeoutMarginMillis} (default 1000), leaving
+ * the fallback time to be written before the container gives up.
+ *
+ * <p>GET requests to {@code actions.metrics.path} (default {@code /metrics},
+ * empty to disable) return the {@link WebhookMetrics} in the Prometheus text
+ * format.
  */
-@WebServlet(name = "actions", value = "/")
+@WebServlet(name = "actions", value = "/", asyncSupported = true)
 public class ActionsServlet extends HttpServlet {
 
   private static final Logger LOG = LoggerFactory
       .getLogger(ActionsServlet.class);
-  private final App actionsApp = new TransactionsApp();
+  private static final boolean ASYNC_ENABLED = Boolean
+      .parseBoolean(System.getProperty("actions.servlet.async", "true"));
+  private static final String METRICS_PATH =
+      System.getProperty("actions.metrics.path", "/metrics");
+  private static final long DEADLINE_MILLIS =
+      Long.getLong("actions.deadline.budgetMillis", 4500L);
+  private static final long ASYNC_TIMEOUT_MARGIN_MILLIS =
+      Long.getLong("actions.servlet.asyncTimeoutMarginMillis", 1000L);
+  private final WebhookMetrics metrics = new WebhookMetrics();
+  private final TransactionsApp actionsApp = new TransactionsApp(metrics);
+  private final AsyncListener inFlightListener = new AsyncListener() {
+    @Override
+    public void onComplete(AsyncEvent event) {
+      metrics.requestFinished();
+    }
+
+    @Override
+    public void onTimeout(AsyncEvent event) {
+    }
+
+    @Override
+    public void onError(AsyncEvent event) {
+    }
+
+    @Override
+    public void onStartAsync(AsyncEvent event) {
+    }
+  };
 
   @Override
   protected void doPost(HttpServletRequest req, HttpServletResponse res)
       throws IOException {
-    String body = req.getReader().lines().collect(Collectors.joining());
-    LOG.info("doPost, body = {}", body);
+    if (ASYNC_ENABLED && req.isAsyncSupported()) {
+      doPostAsync(req, res);
+    } else {
+      doPostBlocking(req, res);
+    }
+  }
+
+  private void doPostBlocking(HttpServletRequest req, HttpServletResponse res)
+      throws IOException {
+    Deadline deadline = Deadline.after(DEADLINE_MILLIS, TimeUnit.MILLISECONDS);
+    metrics.requestStarted();
+    Object requestEvent = FlightEvents.beginRequest();
+    FlightEvents.enter(requestEvent);
+    try {
+      handleBlocking(req, res, requestEvent, deadline);
+    } finally {
+      FlightEvents.exit(requestEvent);
+      FlightEvents.endRequest(requestEvent);
+      metrics.requestFinished();
+    }
+  }
 
+  private void handleBlocking(HttpServletRequest req, HttpServletResponse res,
+      Object requestEvent, Deadline deadline) throws IOException {
+    long start = System.nanoTime();
+    Object read = FlightEvents.beginPhase();
+    String body;
+    RequestBody requestBody;
+    try {
+      requestBody = new RequestBody(req.getContentLengthLong());
+      body = requestBody.readFully(req.getInputStream());
+    } catch (RequestBody.TooLargeException e) {
+      rejectTooLarge(res, e);
+      return;
+    }
+    metrics.bodyRead(System.nanoTime() - start, requestBody.length());
+    FlightEvents.requestRead(requestEvent, requestBody.length());
+    FlightEvents.endPhase(read, "read", requestBody.length());
+
+    Map<String, String> headers = getHeadersMap(req);
+    CompletableFuture<String> response = new CompletableFuture<>();
+    TransactionsApp.Turn turn = new TransactionsApp.Turn();
+    deadline.enter();
+    try {
+      forward(actionsApp.handleRequest(body, headers, turn), response);
+    } finally {
+      deadline.exit();
+    }
     try {
-      String jsonResponse = actionsApp.handleRequest(body, getHeadersMap(req))
-          .get();
-      LOG.info("Generated json = {}", jsonResponse);
+      String jsonResponse;
+      try {
+        jsonResponse = response.get(deadline.remaining(TimeUnit.NANOSECONDS),
+            TimeUnit.NANOSECONDS);
+      } catch (TimeoutException e) {
+        actionsApp.timeOut(turn, response);
+        jsonResponse = response.get();
+      }
       res.setContentType("application/json");
-      writeResponse(res, jsonResponse);
+      writeResponse(req, res, jsonResponse, requestEvent);
     } catch (InterruptedException e) {
       handleError(res, e);
     } catch (ExecutionException e) {
@@ -60,9 +165,101 @@ public class ActionsServlet extends HttpServlet {
     }
   }
 
+  private void doPostAsync(HttpServletRequest req, HttpServletResponse res)
+      throws IOException {
+    Deadline deadline = Deadline.after(DEADLINE_MILLIS, TimeUnit.MILLISECONDS);
+    RequestBody requestBody;
+    try {
+      requestBody = new RequestBody(req.getContentLengthLong());
+    } catch (RequestBody.TooLargeException e) {
+      rejectTooLarge(res, e);
+      return;
+    }
+    Map<String, String> headers = getHeadersMap(req);
+    long start = System.nanoTime();
+    Object requestEvent = FlightEvents.beginRequest();
+    Object read = FlightEvents.beginPhase();
+    AsyncContext asyncContext = req.startAsync();
+    // A timeout of zero would mean none at all
+    asyncContext.setTimeout(Math.max(1,
+        deadline.remaining(TimeUnit.MILLISECONDS)
+            + ASYNC_TIMEOUT_MARGIN_MILLIS));
+    metrics.requestStarted();
+    asyncContext.addListener(inFlightListener);
+    ServletInputStream input = req.getInputStream();
+    input.setReadListener(new AsyncRequestReader(input, requestBody,
+        body -> {
+          metrics.bodyRead(System.nanoTime() - start, requestBody.length());
+          FlightEvents.requestRead(requestEvent, requestBody.length());
+          FlightEvents.endPhase(read, "read", requestBody.length());
+          CompletableFuture<String> response = new CompletableFuture<>();
+          response.whenComplete((jsonResponse, throwable) -> {
+            if (throwable != null) {
+              LOG.error("Error in App.handleRequest ", throwable);
+              writeAsync(asyncContext, req, res,
+                  "Error handling the intent - " + throwable.getMessage(),
+                  requestEvent);
+            } else {
+              res.setContentType("application/json");
+              writeAsync(asyncContext, req, res, jsonResponse, requestEvent);
+            }
+            FlightEvents.endRequest(requestEvent);
+          });
+          // Answers from the timer thread even if the handler never returns
+          TransactionsApp.Turn turn = new TransactionsApp.Turn();
+          ScheduledFuture<?> timeout = deadline.onExpiry(
+              () -> actionsApp.timeOut(turn, response));
+          response.whenComplete((jsonResponse, throwable) ->
+              timeout.cancel(false));
+          FlightEvents.enter(requestEvent);
+          deadline.enter();
+          try {
+            forward(actionsApp.handleRequest(body, headers, turn), response);
+          } finally {
+            deadline.exit();
+            FlightEvents.exit(requestEvent);
+          }
+        },
+        throwable -> {
+          if (throwable instanceof RequestBody.TooLargeException) {
+            rejectTooLarge(res, (RequestBody.TooLargeException) throwable);
+          } else {
+            LOG.error("Error reading request body", throwable);
+          }
+          FlightEvents.endRequest(requestEvent);
+          asyncContext.complete();
+        }));
+  }
+
+  private void writeAsync(AsyncContext asyncContext, HttpServletRequest req,
+      HttpServletResponse res, String payload,
+      Object requestEvent) {
+    Object write = FlightEvents.beginPhase();
+    ResponseBuffer buffer = ResponseBuffer.acquire();
+    try {
+      encodeResponse(req, res, buffer, payload, requestEvent);
+      ServletOutputStream output = res.getOutputStream();
+      FlightEvents.endPhase(write, "write", buffer.length());
+      output.setWriteListener(
+          new AsyncResponseWriter(asyncContext, output, buffer));
+    } catch (IOException e) {
+      LOG.error("Error writing async response", e);
+      buffer.release();
+      asyncContext.complete();
+    }
+  }
+
   @Override
   protected void doGet(HttpServletRequest request, HttpServletResponse response)
       throws IOException {
+    if (!METRICS_PATH.isEmpty()
+        && METRICS_PATH.equals(request.getServletPath())) {
+      StringBuilder exposition = new StringBuilder(16 * 1024);
+      metrics.writeTo(exposition);
+      response.setContentType(WebhookMetrics.CONTENT_TYPE);
+      response.getWriter().write(exposition.toString());
+      return;
+    }
     response.setContentType("text/plain");
     response
         .getWriter()
@@ -70,25 +267,77 @@ public class ActionsServlet extends HttpServlet {
             "ActionsServlet is listening but requires valid POST request to respond with Action response.");
   }
 
-  private void writeResponse(HttpServletResponse res, String asJson) {
+  private void writeResponse(HttpServletRequest req, HttpServletResponse res,
+      String asJson, Object requestEvent) {
+    Object write = FlightEvents.beginPhase();
+    ResponseBuffer buffer = ResponseBuffer.acquire();
     try {
-      res.getWriter().write(asJson);
+      encodeResponse(req, res, buffer, asJson, requestEvent);
+      buffer.writeTo(res.getOutputStream());
+      FlightEvents.endPhase(write, "write", buffer.length());
     } catch (IOException e) {
-      e.printStackTrace();
+      LOG.error("Error writing response", e);
+    } finally {
+      buffer.release();
+    }
+  }
+
+  /**
+   * Encodes the payload into {@code buffer} and sets the matching
+   * Content-Length and, when negotiated, Content-Encoding headers.
+   */
+  private void encodeResponse(HttpServletRequest req, HttpServletResponse res,
+      ResponseBuffer buffer, String payload, Object requestEvent)
+      throws IOException {
+    boolean gzip = buffer.encode(payload,
+        ResponseBuffer.acceptsGzip(req.getHeader("Accept-Encoding")));
+    res.setCharacterEncoding(StandardCharsets.UTF_8.name());
+    res.addHeader("Vary", "Accept-Encoding");
+    if (gzip) {
+      res.setHeader("Content-Encoding", "gzip");
+    }
+    res.setContentLength(buffer.length());
+    metrics.responseEncoded(buffer.length());
+    FlightEvents.responseEncoded(requestEvent, buffer.length());
+  }
+
+  private void rejectTooLarge(HttpServletResponse res,
+      RequestBody.TooLargeException e) {
+    LOG.warn("Rejecting request: {}", e.getMessage());
+    try {
+      res.sendError(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE,
+          e.getMessage());
+    } catch (IOException ioe) {
+      LOG.error("Error rejecting request", ioe);
     }
   }
 
   private void handleError(HttpServletResponse res, Throwable throwable) {
     try {
-      throwable.printStackTrace();
       LOG.error("Error in App.handleRequest ", throwable);
       res.getWriter()
           .write("Error handling the intent - " + throwable.getMessage());
     } catch (IOException e) {
-      e.printStackTrace();
+      LOG.error("Error writing error response", e);
     }
   }
 
+  /**
+   * Completes {@code to} with the outcome of {@code from}. The app's future
+   * is not completed directly, as it may be shared through the
+   * {@link ResponseCache} with retries of the request.
+   */
+  private static void forward(CompletableFuture<String> from,
+      CompletableFuture<String> to) {
+    from.whenComplete((value, throwable) -> {
+      if (throwable != null) {
+        to.completeExceptionally(throwable);
+      } else {
+        to.complete(value);
+      }
+    });
+  }
+
   private Map<String, String> getHeadersMap(HttpServletRequest request) {
     Map<String, String> map = new HashMap();
 
@@ -0,0 +1,73 @@
+/*
+ * Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import java.io.IOException;
+import java.util.function.Consumer;
+import javax.servlet.ReadListener;
+import javax.servlet.ServletInputStream;
+
+/**
+ * Non-blocking reader for the body of an async request. Bytes are drained
+ * into a pooled {@link RequestBody} while the container reports the input as
+ * ready, and the decoded body is handed to {@code onBody} once all data has
+ * been read.
+ */
+class AsyncRequestReader implements ReadListener {
+
+  private final ServletInputStream input;
+  private final Consumer<String> onBody;
+  private final Consumer<Throwable> onError;
+  private final RequestBody body;
+
+  AsyncRequestReader(ServletInputStream input, RequestBody body,
+      Consumer<String> onBody, Consumer<Throwable> onError) {
+    this.input = input;
+    this.body = body;
+    this.onBody = onBody;
+    this.onError = onError;
+  }
+
+  @Override
+  public void onDataAvailable() throws IOException {
+    while (input.isReady()) {
+      // Once Content-Length is satisfied the body stops reading, but the
+      // container only calls onAllDataRead after a read has seen the end of
+      // the stream, so read on until it does.
+      if (body.readFrom(input) < 0 && input.read() < 0) {
+        return;
+      }
+    }
+  }
+
+  @Override
+  public void onAllDataRead() {
+    String decoded;
+    try {
+      decoded = body.decode();
+    } finally {
+      body.release();
+    }
+    onBody.accept(decoded);
+  }
+
+  @Override
+  public void onError(Throwable throwable) {
+    body.release();
+    onError.accept(throwable);
+  }
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import java.io.IOException;
+import javax.servlet.AsyncContext;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Non-blocking writer for the body of an async response. The encoded
+ * payload is written in chunks whenever the container reports the output as
+ * ready, and the async context is completed (and the buffer released) once
+ * everything has been written.
+ */
+class AsyncResponseWriter implements WriteListener {
+
+  private static final Logger LOG = LoggerFactory
+      .getLogger(AsyncResponseWriter.class);
+  private static final int CHUNK_SIZE = 8192;
+
+  private final AsyncContext asyncContext;
+  private final ServletOutputStream output;
+  private final ResponseBuffer payload;
+  private int offset;
+
+  AsyncResponseWriter(AsyncContext asyncContext, ServletOutputStream output,
+      ResponseBuffer payload) {
+    this.asyncContext = asyncContext;
+    this.output = output;
+    this.payload = payload;
+  }
+
+  @Override
+  public void onWritePossible() throws IOException {
+    while (output.isReady()) {
+      if (offset == payload.length()) {
+        payload.release();
+        asyncContext.complete();
+        return;
+      }
+      int length = Math.min(CHUNK_SIZE, payload.length() - offset);
+      output.write(payload.array(), offset, length);
+      offset += length;
+    }
+  }
+
+  @Override
+  public void onError(Throwable throwable) {
+    LOG.error("Error writing async response", throwable);
+    payload.release();
+    asyncContext.complete();
+  }
+}
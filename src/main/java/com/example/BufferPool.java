@@ -0,0 +1,53 @@
+/*
+ * Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * Bounded pool of fixed-size byte arrays shared between requests. Requests
+ * that need more than one pooled buffer holds get a dedicated array, which is
+ * simply dropped on release.
+ */
+final class BufferPool {
+
+  private final int bufferSize;
+  private final ArrayBlockingQueue<byte[]> free;
+
+  BufferPool(int bufferSize, int capacity) {
+    this.bufferSize = bufferSize;
+    this.free = new ArrayBlockingQueue<>(capacity);
+  }
+
+  int bufferSize() {
+    return bufferSize;
+  }
+
+  byte[] acquire(int minSize) {
+    if (minSize > bufferSize) {
+      return new byte[minSize];
+    }
+    byte[] buffer = free.poll();
+    return buffer != null ? buffer : new byte[bufferSize];
+  }
+
+  void release(byte[] buffer) {
+    if (buffer != null && buffer.length == bufferSize) {
+      free.offer(buffer);
+    }
+  }
+}
@@ -0,0 +1,271 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import com.google.api.services.actions_fulfillment.v2.model.OrderUpdateV3;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Pushes order status updates in bulk. Updates are streamed line by line
+ * from a reader in the form {@code orderId,STATUS[,user visible label]};
+ * blank lines and lines starting with {@code #} are ignored.
+ *
+ * <p>At most {@code concurrency} updates are in flight at a time and sends
+ * are paced by a token bucket. Responses with status 429 or 5xx, and I/O
+ * errors, are retried with exponential backoff and full jitter; a waiting
+ * retry does not hold up a sending thread. Progress and throughput are
+ * logged periodically and once more at the end.
+ *
+ * <p>With a positive {@code coalesceWindowMillis}, updates are routed
+ * through an {@link OrderUpdateCoalescer} so that several status changes for
+ * the same order within the window go out as one request. Reading then
+ * blocks while {@code maxQueuedUpdates} updates are waiting in a window or
+ * being sent.
+ */
+final class BulkOrderUpdater {
+
+  private static final Logger LOGGER =
+      LoggerFactory.getLogger(BulkOrderUpdater.class);
+
+  private final OrderUpdateClient client;
+  private final Config config;
+  private final TokenBucket rateLimiter;
+  private final AtomicLong submitted = new AtomicLong();
+  private final AtomicLong succeeded = new AtomicLong();
+  private final AtomicLong failed = new AtomicLong();
+  private final AtomicLong retries = new AtomicLong();
+  private final ExecutorService workers;
+  /** Fires retries and progress reports. */
+  private final ScheduledExecutorService scheduler;
+
+  BulkOrderUpdater(OrderUpdateClient client, Config config) {
+    this.client = client;
+    this.config = config;
+    this.rateLimiter = new TokenBucket(config.ratePerSecond, config.burst);
+    this.workers = Executors.newFixedThreadPool(config.concurrency,
+        daemon("bulk-order-update"));
+    this.scheduler = Executors.newSingleThreadScheduledExecutor(
+        daemon("bulk-order-update-timer"));
+  }
+
+  private static ThreadFactory daemon(String name) {
+    return runnable -> {
+      Thread thread = new Thread(runnable, name);
+      thread.setDaemon(true);
+      return thread;
+    };
+  }
+
+  /**
+   * Sends every update read from {@code input} and waits for all of them to
+   * finish. An updater runs once.
+   *
+   * @return the number of updates that failed permanently
+   */
+  long run(BufferedReader input) throws IOException, InterruptedException {
+    int permits = config.coalesceWindowMillis > 0
+        ? config.maxQueuedUpdates : config.concurrency;
+    Semaphore inFlight = new Semaphore(permits);
+    long startNanos = System.nanoTime();
+    scheduler.scheduleAtFixedRate(() -> report("Progress", startNanos),
+        config.progressIntervalSeconds, config.progressIntervalSeconds,
+        TimeUnit.SECONDS);
+
+    OrderUpdateCoalescer coalescer = config.coalesceWindowMillis > 0
+        ? new OrderUpdateCoalescer((update, done) -> send(update, 1, done),
+            config.coalesceWindowMillis, config.concurrency)
+        : null;
+    try {
+      String line;
+      long lineNumber = 0;
+      while ((line = input.readLine()) != null) {
+        lineNumber++;
+        line = line.trim();
+        if (line.isEmpty() || line.startsWith("#")) {
+          continue;
+        }
+        String[] fields = line.split(",", 3);
+        if (fields.length < 2 || fields[0].trim().isEmpty()) {
+          LOGGER.warn("Skipping malformed line {}: {}", lineNumber, line);
+          failed.incrementAndGet();
+          continue;
+        }
+        String orderId = fields[0].trim();
+        String status = fields[1].trim().toUpperCase(Locale.ROOT);
+        String label = fields.length > 2 ? fields[2].trim() : null;
+        OrderUpdateV3 update =
+            OrderUpdates.statusUpdate(orderId, status, label);
+
+        submitted.incrementAndGet();
+        inFlight.acquire();
+        if (coalescer != null) {
+          coalescer.submit(update, inFlight::release);
+          continue;
+        }
+        workers.execute(() -> send(update, 1, inFlight::release));
+      }
+    } finally {
+      try {
+        // Every update holds a permit until it succeeded or failed for good,
+        // including while it waits for a retry
+        inFlight.acquire(permits);
+      } finally {
+        if (coalescer != null) {
+          coalescer.close();
+        }
+        workers.shutdown();
+        scheduler.shutdownNow();
+      }
+    }
+    report("Finished", startNanos);
+    return failed.get();
+  }
+
+  /**
+   * Makes one attempt at sending {@code update}. A retry is scheduled on the
+   * timer and runs on a worker, so no thread waits out the backoff;
+   * {@code done} runs once the update succeeded or failed for good.
+   */
+  private void send(OrderUpdateV3 update, int attempt, Runnable done) {
+    boolean retrying = false;
+    try {
+      retrying = attempt(update, attempt);
+    } finally {
+      if (!retrying) {
+        done.run();
+      }
+    }
+    if (retrying) {
+      scheduler.schedule(
+          () -> workers.execute(() -> send(update, attempt + 1, done)),
+          backoffMillis(attempt), TimeUnit.MILLISECONDS);
+    }
+  }
+
+  /** Returns whether the update should be retried. */
+  private boolean attempt(OrderUpdateV3 update, int attempt) {
+    String orderId = null;
+    String failure;
+    try {
+      orderId = update.getOrder().getMerchantOrderId();
+      rateLimiter.acquire();
+      int code = client.send(update);
+      if (code >= 200 && code < 300) {
+        succeeded.incrementAndGet();
+        return false;
+      }
+      if (code != 429 && code < 500) {
+        LOGGER.error("Order update for {} rejected with {}", orderId, code);
+        failed.incrementAndGet();
+        return false;
+      }
+      failure = "HTTP " + code;
+    } catch (IOException e) {
+      failure = e.toString();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      failed.incrementAndGet();
+      return false;
+    } catch (RuntimeException e) {
+      // Would fail the same way again
+      LOGGER.error("Order update for " + orderId + " failed", e);
+      failed.incrementAndGet();
+      return false;
+    }
+
+    if (attempt >= config.maxAttempts) {
+      LOGGER.error("Order update for {} failed after {} attempts: {}",
+          orderId, attempt, failure);
+      failed.incrementAndGet();
+      return false;
+    }
+    retries.incrementAndGet();
+    return true;
+  }
+
+  /** Exponential backoff with full jitter. */
+  private long backoffMillis(int attempt) {
+    long ceiling = Math.min(config.maxBackoffMillis,
+        config.initialBackoffMillis << Math.min(attempt - 1, 20));
+    return ThreadLocalRandom.current().nextLong(ceiling + 1);
+  }
+
+  private void report(String phase, long startNanos) {
+    double seconds = (System.nanoTime() - startNanos) / 1e9;
+    long done = succeeded.get() + failed.get();
+    LOGGER.info("{}: submitted={} succeeded={} failed={} retries={} "
+            + "elapsed={}s throughput={}/s",
+        phase, submitted.get(), succeeded.get(), failed.get(), retries.get(),
+        String.format("%.1f", seconds),
+        String.format("%.1f", seconds > 0 ? done / seconds : 0));
+  }
+
+  /** Concurrency, rate limit and retry settings of a bulk run. */
+  static final class Config {
+
+    final int concurrency;
+    final double ratePerSecond;
+    final int burst;
+    final int maxAttempts;
+    final long initialBackoffMillis;
+    final long maxBackoffMillis;
+    final long progressIntervalSeconds;
+    final long coalesceWindowMillis;
+    final int maxQueuedUpdates;
+
+    Config(int concurrency, double ratePerSecond, int burst, int maxAttempts,
+        long initialBackoffMillis, long maxBackoffMillis,
+        long progressIntervalSeconds, long coalesceWindowMillis,
+        int maxQueuedUpdates) {
+      this.concurrency = concurrency;
+      this.ratePerSecond = ratePerSecond;
+      this.burst = burst;
+      this.maxAttempts = maxAttempts;
+      this.initialBackoffMillis = initialBackoffMillis;
+      this.maxBackoffMillis = maxBackoffMillis;
+      this.progressIntervalSeconds = progressIntervalSeconds;
+      this.coalesceWindowMillis = coalesceWindowMillis;
+      this.maxQueuedUpdates = maxQueuedUpdates;
+    }
+
+    static Config fromSystemProperties() {
+      return new Config(
+          Integer.getInteger("actions.bulk.concurrency", 8),
+          Double.parseDouble(
+              System.getProperty("actions.bulk.ratePerSecond", "50")),
+          Integer.getInteger("actions.bulk.burst", 10),
+          Integer.getInteger("actions.bulk.maxAttempts", 5),
+          Long.getLong("actions.bulk.initialBackoffMillis", 200L),
+          Long.getLong("actions.bulk.maxBackoffMillis", 10000L),
+          Long.getLong("actions.bulk.progressIntervalSeconds", 5L),
+          Long.getLong("actions.bulk.coalesceWindowMillis", 0L),
+          Integer.getInteger("actions.bulk.maxQueuedUpdates", 1000));
+    }
+  }
+}
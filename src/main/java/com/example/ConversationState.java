@@ -0,0 +1,114 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import com.google.api.services.actions_fulfillment.v2.model.Location;
+import java.io.IOException;
+import java.util.Map;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Everything {@link TransactionsApp} keeps between turns, read and updated
+ * through a {@link ConversationStore}. When it is kept in conversation data
+ * rather than a {@link SessionStore}, the state is stored under a single key
+ * in the compact form produced by {@link ConversationStateCodec};
+ * conversations that started before the codec was introduced still carry
+ * the legacy {@code location} JSON and {@code UNIQUE_ORDER_ID} entries, which
+ * are read transparently and replaced on the next write.
+ */
+final class ConversationState {
+
+  static final String STATE_KEY = "state";
+  static final String LEGACY_LOCATION_KEY = "location";
+  static final String LEGACY_ORDER_ID_KEY = "UNIQUE_ORDER_ID";
+
+  private static final Logger LOGGER =
+      LoggerFactory.getLogger(ConversationState.class);
+  private static final LocationTypeAdapter LOCATION_ADAPTER =
+      new LocationTypeAdapter();
+
+  private String orderId;
+  private Location location;
+
+  String getOrderId() {
+    return orderId;
+  }
+
+  ConversationState setOrderId(String orderId) {
+    this.orderId = orderId;
+    return this;
+  }
+
+  Location getLocation() {
+    return location;
+  }
+
+  ConversationState setLocation(Location location) {
+    this.location = location;
+    return this;
+  }
+
+  /** Reads the state from conversation data, in either encoding. */
+  static ConversationState read(Map<String, Object> conversationData) {
+    Object event = FlightEvents.beginCodec();
+    ConversationState state = decode(conversationData);
+    FlightEvents.endCodec(event, "ConversationState", "decode", state.orderId,
+        encodedLength(conversationData.get(STATE_KEY))
+            + encodedLength(conversationData.get(LEGACY_LOCATION_KEY)));
+    return state;
+  }
+
+  private static ConversationState decode(
+      Map<String, Object> conversationData) {
+    Object encoded = conversationData.get(STATE_KEY);
+    if (encoded instanceof String) {
+      try {
+        return ConversationStateCodec.decode((String) encoded);
+      } catch (IOException | IllegalArgumentException e) {
+        LOGGER.warn("Discarding undecodable conversation state", e);
+      }
+    }
+
+    ConversationState state = new ConversationState();
+    state.orderId = (String) conversationData.get(LEGACY_ORDER_ID_KEY);
+    Object locationJson = conversationData.get(LEGACY_LOCATION_KEY);
+    if (locationJson instanceof String) {
+      try {
+        state.location = LOCATION_ADAPTER.fromJson((String) locationJson);
+      } catch (IOException e) {
+        LOGGER.warn("Discarding undecodable legacy location", e);
+      }
+    }
+    return state;
+  }
+
+  /** Writes the state to conversation data, dropping any legacy entries. */
+  void write(Map<String, Object> conversationData) {
+    conversationData.remove(LEGACY_LOCATION_KEY);
+    conversationData.remove(LEGACY_ORDER_ID_KEY);
+    Object event = FlightEvents.beginCodec();
+    String encoded = ConversationStateCodec.encode(this);
+    FlightEvents.endCodec(event, "ConversationState", "encode", orderId,
+        encoded.length());
+    conversationData.put(STATE_KEY, encoded);
+  }
+
+  private static int encodedLength(Object value) {
+    return value instanceof String ? ((String) value).length() : 0;
+  }
+}
@@ -0,0 +1,404 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import com.google.api.services.actions_fulfillment.v2.model.LatLng;
+import com.google.api.services.actions_fulfillment.v2.model.Location;
+import com.google.api.services.actions_fulfillment.v2.model.PostalAddress;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.WireFormat;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compact, versioned encoding of {@link ConversationState}.
+ *
+ * <p>The encoded form is URL-safe base64 of a two byte header (format
+ * version, flags) followed by the state in protocol buffer wire format:
+ * varint tags, length-prefixed strings and nested messages, fixed64 doubles.
+ * Unknown fields are skipped, so fields can be added without bumping the
+ * version. When {@code actions.state.compress} is enabled (the default) the
+ * body is deflated if that makes it smaller. A deflated body that inflates
+ * to more than {@code actions.state.maxInflatedBytes} (default 64 KiB) is
+ * rejected, as the state comes from the client.
+ */
+final class ConversationStateCodec {
+
+  static final int VERSION = 1;
+  private static final int FLAG_DEFLATED = 0x1;
+  private static final boolean COMPRESS = Boolean
+      .parseBoolean(System.getProperty("actions.state.compress", "true"));
+  static final int MAX_INFLATED_BYTES =
+      Integer.getInteger("actions.state.maxInflatedBytes", 64 * 1024);
+
+  // ConversationState fields
+  private static final int STATE_ORDER_ID = 1;
+  private static final int STATE_LOCATION = 2;
+
+  // Location fields
+  private static final int LOCATION_CITY = 1;
+  private static final int LOCATION_COORDINATES = 2;
+  private static final int LOCATION_FORMATTED_ADDRESS = 3;
+  private static final int LOCATION_NAME = 4;
+  private static final int LOCATION_NOTES = 5;
+  private static final int LOCATION_PHONE_NUMBER = 6;
+  private static final int LOCATION_PLACE_ID = 7;
+  private static final int LOCATION_POSTAL_ADDRESS = 8;
+  private static final int LOCATION_ZIP_CODE = 9;
+
+  // LatLng fields
+  private static final int LATLNG_LATITUDE = 1;
+  private static final int LATLNG_LONGITUDE = 2;
+
+  // PostalAddress fields
+  private static final int ADDRESS_LINES = 1;
+  private static final int ADDRESS_ADMINISTRATIVE_AREA = 2;
+  private static final int ADDRESS_LANGUAGE_CODE = 3;
+  private static final int ADDRESS_LOCALITY = 4;
+  private static final int ADDRESS_ORGANIZATION = 5;
+  private static final int ADDRESS_POSTAL_CODE = 6;
+  private static final int ADDRESS_RECIPIENTS = 7;
+  private static final int ADDRESS_REGION_CODE = 8;
+  private static final int ADDRESS_REVISION = 9;
+  private static final int ADDRESS_SORTING_CODE = 10;
+  private static final int ADDRESS_SUBLOCALITY = 11;
+
+  private ConversationStateCodec() {
+  }
+
+  static String encode(ConversationState state) {
+    return Base64.getUrlEncoder().withoutPadding()
+        .encodeToString(toBytes(state, COMPRESS));
+  }
+
+  static ConversationState decode(String encoded) throws IOException {
+    return fromBytes(Base64.getUrlDecoder().decode(encoded));
+  }
+
+  /**
+   * Returns the encoded form before base64, as kept in a SessionStore.
+   *
+   * @param compress whether to deflate the body if that makes it smaller
+   */
+  static byte[] toBytes(ConversationState state, boolean compress) {
+    try {
+      byte[] body = encodeState(state);
+      int flags = 0;
+      if (compress) {
+        byte[] deflated = deflate(body);
+        if (deflated.length < body.length) {
+          body = deflated;
+          flags |= FLAG_DEFLATED;
+        }
+      }
+      byte[] encoded = new byte[body.length + 2];
+      encoded[0] = (byte) VERSION;
+      encoded[1] = (byte) flags;
+      System.arraycopy(body, 0, encoded, 2, body.length);
+      return encoded;
+    } catch (IOException e) {
+      // Only in-memory streams are involved
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  static ConversationState fromBytes(byte[] bytes) throws IOException {
+    if (bytes.length < 2) {
+      throw new IOException("Truncated conversation state");
+    }
+    if (bytes[0] != VERSION) {
+      throw new IOException("Unsupported conversation state version "
+          + bytes[0]);
+    }
+    CodedInputStream in = (bytes[1] & FLAG_DEFLATED) != 0
+        ? CodedInputStream.newInstance(inflate(bytes, 2))
+        : CodedInputStream.newInstance(bytes, 2, bytes.length - 2);
+    return decodeState(in);
+  }
+
+  private static byte[] encodeState(ConversationState state)
+      throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+    CodedOutputStream out = CodedOutputStream.newInstance(bytes);
+    writeString(out, STATE_ORDER_ID, state.getOrderId());
+    if (state.getLocation() != null) {
+      out.writeByteArray(STATE_LOCATION, encodeLocation(state.getLocation()));
+    }
+    out.flush();
+    return bytes.toByteArray();
+  }
+
+  private static ConversationState decodeState(CodedInputStream in)
+      throws IOException {
+    ConversationState state = new ConversationState();
+    int tag;
+    while ((tag = in.readTag()) != 0) {
+      switch (WireFormat.getTagFieldNumber(tag)) {
+        case STATE_ORDER_ID:
+          state.setOrderId(in.readString());
+          break;
+        case STATE_LOCATION:
+          state.setLocation(decodeLocation(
+              CodedInputStream.newInstance(in.readByteArray())));
+          break;
+        default:
+          in.skipField(tag);
+      }
+    }
+    return state;
+  }
+
+  private static byte[] encodeLocation(Location location) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+    CodedOutputStream out = CodedOutputStream.newInstance(bytes);
+    writeString(out, LOCATION_CITY, location.getCity());
+    if (location.getCoordinates() != null) {
+      out.writeByteArray(LOCATION_COORDINATES,
+          encodeLatLng(location.getCoordinates()));
+    }
+    writeString(out, LOCATION_FORMATTED_ADDRESS,
+        location.getFormattedAddress());
+    writeString(out, LOCATION_NAME, location.getName());
+    writeString(out, LOCATION_NOTES, location.getNotes());
+    writeString(out, LOCATION_PHONE_NUMBER, location.getPhoneNumber());
+    writeString(out, LOCATION_PLACE_ID, location.getPlaceId());
+    if (location.getPostalAddress() != null) {
+      out.writeByteArray(LOCATION_POSTAL_ADDRESS,
+          encodePostalAddress(location.getPostalAddress()));
+    }
+    writeString(out, LOCATION_ZIP_CODE, location.getZipCode());
+    out.flush();
+    return bytes.toByteArray();
+  }
+
+  private static Location decodeLocation(CodedInputStream in)
+      throws IOException {
+    Location location = new Location();
+    int tag;
+    while ((tag = in.readTag()) != 0) {
+      switch (WireFormat.getTagFieldNumber(tag)) {
+        case LOCATION_CITY:
+          location.setCity(in.readString());
+          break;
+        case LOCATION_COORDINATES:
+          location.setCoordinates(decodeLatLng(
+              CodedInputStream.newInstance(in.readByteArray())));
+          break;
+        case LOCATION_FORMATTED_ADDRESS:
+          location.setFormattedAddress(in.readString());
+          break;
+        case LOCATION_NAME:
+          location.setName(in.readString());
+          break;
+        case LOCATION_NOTES:
+          location.setNotes(in.readString());
+          break;
+        case LOCATION_PHONE_NUMBER:
+          location.setPhoneNumber(in.readString());
+          break;
+        case LOCATION_PLACE_ID:
+          location.setPlaceId(in.readString());
+          break;
+        case LOCATION_POSTAL_ADDRESS:
+          location.setPostalAddress(decodePostalAddress(
+              CodedInputStream.newInstance(in.readByteArray())));
+          break;
+        case LOCATION_ZIP_CODE:
+          location.setZipCode(in.readString());
+          break;
+        default:
+          in.skipField(tag);
+      }
+    }
+    return location;
+  }
+
+  private static byte[] encodeLatLng(LatLng latLng) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(18);
+    CodedOutputStream out = CodedOutputStream.newInstance(bytes);
+    if (latLng.getLatitude() != null) {
+      out.writeDouble(LATLNG_LATITUDE, latLng.getLatitude());
+    }
+    if (latLng.getLongitude() != null) {
+      out.writeDouble(LATLNG_LONGITUDE, latLng.getLongitude());
+    }
+    out.flush();
+    return bytes.toByteArray();
+  }
+
+  private static LatLng decodeLatLng(CodedInputStream in) throws IOException {
+    LatLng latLng = new LatLng();
+    int tag;
+    while ((tag = in.readTag()) != 0) {
+      switch (WireFormat.getTagFieldNumber(tag)) {
+        case LATLNG_LATITUDE:
+          latLng.setLatitude(in.readDouble());
+          break;
+        case LATLNG_LONGITUDE:
+          latLng.setLongitude(in.readDouble());
+          break;
+        default:
+          in.skipField(tag);
+      }
+    }
+    return latLng;
+  }
+
+  private static byte[] encodePostalAddress(PostalAddress address)
+      throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+    CodedOutputStream out = CodedOutputStream.newInstance(bytes);
+    writeStrings(out, ADDRESS_LINES, address.getAddressLines());
+    writeString(out, ADDRESS_ADMINISTRATIVE_AREA,
+        address.getAdministrativeArea());
+    writeString(out, ADDRESS_LANGUAGE_CODE, address.getLanguageCode());
+    writeString(out, ADDRESS_LOCALITY, address.getLocality());
+    writeString(out, ADDRESS_ORGANIZATION, address.getOrganization());
+    writeString(out, ADDRESS_POSTAL_CODE, address.getPostalCode());
+    writeStrings(out, ADDRESS_RECIPIENTS, address.getRecipients());
+    writeString(out, ADDRESS_REGION_CODE, address.getRegionCode());
+    if (address.getRevision() != null) {
+      out.writeInt32(ADDRESS_REVISION, address.getRevision());
+    }
+    writeString(out, ADDRESS_SORTING_CODE, address.getSortingCode());
+    writeString(out, ADDRESS_SUBLOCALITY, address.getSublocality());
+    out.flush();
+    return bytes.toByteArray();
+  }
+
+  private static PostalAddress decodePostalAddress(CodedInputStream in)
+      throws IOException {
+    PostalAddress address = new PostalAddress();
+    List<String> addressLines = null;
+    List<String> recipients = null;
+    int tag;
+    while ((tag = in.readTag()) != 0) {
+      switch (WireFormat.getTagFieldNumber(tag)) {
+        case ADDRESS_LINES:
+          if (addressLines == null) {
+            addressLines = new ArrayList<>();
+          }
+          addressLines.add(in.readString());
+          break;
+        case ADDRESS_ADMINISTRATIVE_AREA:
+          address.setAdministrativeArea(in.readString());
+          break;
+        case ADDRESS_LANGUAGE_CODE:
+          address.setLanguageCode(in.readString());
+          break;
+        case ADDRESS_LOCALITY:
+          address.setLocality(in.readString());
+          break;
+        case ADDRESS_ORGANIZATION:
+          address.setOrganization(in.readString());
+          break;
+        case ADDRESS_POSTAL_CODE:
+          address.setPostalCode(in.readString());
+          break;
+        case ADDRESS_RECIPIENTS:
+          if (recipients == null) {
+            recipients = new ArrayList<>();
+          }
+          recipients.add(in.readString());
+          break;
+        case ADDRESS_REGION_CODE:
+          address.setRegionCode(in.readString());
+          break;
+        case ADDRESS_REVISION:
+          address.setRevision(in.readInt32());
+          break;
+        case ADDRESS_SORTING_CODE:
+          address.setSortingCode(in.readString());
+          break;
+        case ADDRESS_SUBLOCALITY:
+          address.setSublocality(in.readString());
+          break;
+        default:
+          in.skipField(tag);
+      }
+    }
+    address.setAddressLines(addressLines);
+    address.setRecipients(recipients);
+    return address;
+  }
+
+  private static void writeString(CodedOutputStream out, int field,
+      String value) throws IOException {
+    if (value != null) {
+      out.writeString(field, value);
+    }
+  }
+
+  private static void writeStrings(CodedOutputStream out, int field,
+      List<String> values) throws IOException {
+    if (values != null) {
+      for (String value : values) {
+        out.writeString(field, value);
+      }
+    }
+  }
+
+  private static byte[] deflate(byte[] input) {
+    Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION, true);
+    try {
+      deflater.setInput(input);
+      deflater.finish();
+      ByteArrayOutputStream out = new ByteArrayOutputStream(input.length);
+      byte[] buffer = new byte[512];
+      while (!deflater.finished()) {
+        out.write(buffer, 0, deflater.deflate(buffer));
+      }
+      return out.toByteArray();
+    } finally {
+      deflater.end();
+    }
+  }
+
+  private static byte[] inflate(byte[] input, int offset) throws IOException {
+    Inflater inflater = new Inflater(true);
+    try {
+      inflater.setInput(input, offset, input.length - offset);
+      ByteArrayOutputStream out = new ByteArrayOutputStream(input.length * 2);
+      byte[] buffer = new byte[512];
+      while (!inflater.finished()) {
+        int inflated = inflater.inflate(buffer);
+        if (inflated == 0
+            && (inflater.needsInput() || inflater.needsDictionary())) {
+          throw new IOException("Truncated deflated conversation state");
+        }
+        if (out.size() + inflated > MAX_INFLATED_BYTES) {
+          throw new IOException("Deflated conversation state inflates to more"
+              + " than " + MAX_INFLATED_BYTES + " bytes");
+        }
+        out.write(buffer, 0, inflated);
+      }
+      return out.toByteArray();
+    } catch (DataFormatException e) {
+      throw new IOException("Corrupt deflated conversation state", e);
+    } finally {
+      inflater.end();
+    }
+  }
+}
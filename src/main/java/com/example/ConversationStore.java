@@ -0,0 +1,144 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import java.io.IOException;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.Map;
+import java.util.function.Consumer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Reads and updates the {@link ConversationState} of a conversation. With a
+ * {@link SessionStore} the state is kept on the server and conversation data
+ * only carries a random session token under {@link #TOKEN_KEY}, which keeps
+ * the state out of every request and response. Without one, or when the
+ * store fails, the state is written to conversation data as before, and
+ * state found there (in any of its encodings) is moved to the store on the
+ * next update.
+ *
+ * <p>Updates are read-modify-write cycles committed with
+ * {@link SessionStore#compareAndSet}, and are retried from a fresh read when
+ * another turn of the conversation updated the state in between, so
+ * concurrent turns do not overwrite each other's changes. Retrying stops
+ * once the request's {@link Deadline} has passed, and the state goes to
+ * conversation data instead.
+ */
+final class ConversationStore {
+
+  static final String TOKEN_KEY = "session";
+
+  private static final Logger LOGGER =
+      LoggerFactory.getLogger(ConversationStore.class);
+  private static final int MAX_ATTEMPTS = 16;
+  private static final int TOKEN_BYTES = 15;
+  private static final SecureRandom RANDOM = new SecureRandom();
+
+  private final SessionStore store;
+
+  /** @param store where to keep the state, or null for conversation data */
+  ConversationStore(SessionStore store) {
+    this.store = store;
+  }
+
+  /** Returns the state of a conversation, empty if it has none yet. */
+  ConversationState read(Map<String, Object> conversationData) {
+    Object token = conversationData.get(TOKEN_KEY);
+    if (store != null && token instanceof String) {
+      try {
+        ConversationState state = load((String) token);
+        if (state != null) {
+          return state;
+        }
+        LOGGER.info("Conversation state {} has expired", token);
+      } catch (IOException e) {
+        LOGGER.warn("Could not read conversation state " + token, e);
+      }
+    }
+    return ConversationState.read(conversationData);
+  }
+
+  /**
+   * Applies {@code update} to the state of a conversation and stores the
+   * result. {@code update} may run more than once if turns of the
+   * conversation race, each time on the then current state.
+   *
+   * @return the updated state
+   */
+  ConversationState update(Map<String, Object> conversationData,
+      Consumer<ConversationState> update) {
+    if (store != null) {
+      Object token = conversationData.get(TOKEN_KEY);
+      String key = token instanceof String ? (String) token : newToken();
+      try {
+        for (int attempt = 0; attempt < MAX_ATTEMPTS; attempt++) {
+          byte[] current = store.get(key);
+          ConversationState state = current != null
+              ? ConversationStateCodec.fromBytes(current)
+              : ConversationState.read(conversationData);
+          update.accept(state);
+          Object event = FlightEvents.beginCodec();
+          // Deflating costs more than it saves in memory
+          byte[] encoded = ConversationStateCodec.toBytes(state, false);
+          boolean stored = store.compareAndSet(key, current, encoded);
+          FlightEvents.endCodec(event, "ConversationState", "store",
+              state.getOrderId(), encoded.length);
+          if (stored) {
+            conversationData.remove(ConversationState.STATE_KEY);
+            conversationData.remove(ConversationState.LEGACY_LOCATION_KEY);
+            conversationData.remove(ConversationState.LEGACY_ORDER_ID_KEY);
+            conversationData.put(TOKEN_KEY, key);
+            return state;
+          }
+          if (Deadline.currentExpired()) {
+            break;
+          }
+        }
+        LOGGER.warn("Conversation state {} kept changing, writing it to "
+            + "conversation data", key);
+      } catch (IOException e) {
+        LOGGER.warn("Could not store conversation state " + key
+            + ", writing it to conversation data", e);
+      }
+    }
+    // Read before dropping the token, so stored state is carried over
+    ConversationState state = read(conversationData);
+    update.accept(state);
+    conversationData.remove(TOKEN_KEY);
+    state.write(conversationData);
+    return state;
+  }
+
+  private ConversationState load(String key) throws IOException {
+    Object event = FlightEvents.beginCodec();
+    byte[] encoded = store.get(key);
+    ConversationState state = encoded != null
+        ? ConversationStateCodec.fromBytes(encoded) : null;
+    FlightEvents.endCodec(event, "ConversationState", "load",
+        state != null ? state.getOrderId() : null,
+        encoded != null ? encoded.length : 0);
+    return state;
+  }
+
+  private static String newToken() {
+    byte[] token = new byte[TOKEN_BYTES];
+    RANDOM.nextBytes(token);
+    return Base64.getUrlEncoder().withoutPadding().encodeToString(token);
+  }
+}
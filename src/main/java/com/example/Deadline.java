@@ -0,0 +1,120 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The point in time by which a webhook request must be answered. Dialogflow
+ * gives up on the webhook after five seconds, so {@link ActionsServlet}
+ * starts one of {@code actions.deadline.budgetMillis} (default 4500) when a
+ * request arrives and sends a fallback response when it expires.
+ *
+ * <p>The deadline is current on the thread that runs the handler, so code
+ * that waits on something downstream can bound the wait by
+ * {@link #current()} instead of a fixed timeout of its own.
+ */
+final class Deadline {
+
+  private static final ThreadLocal<Deadline> CURRENT = new ThreadLocal<>();
+
+  private final long expiresAtNanos;
+
+  private Deadline(long expiresAtNanos) {
+    this.expiresAtNanos = expiresAtNanos;
+  }
+
+  /** Returns a deadline {@code timeout} from now. */
+  static Deadline after(long timeout, TimeUnit unit) {
+    return new Deadline(System.nanoTime() + unit.toNanos(timeout));
+  }
+
+  /**
+   * Returns the deadline of the request being handled on this thread, or
+   * null if there is none.
+   */
+  static Deadline current() {
+    return CURRENT.get();
+  }
+
+  /**
+   * Returns the earlier of the current deadline and one {@code timeout} from
+   * now, to bound a call that has a timeout of its own.
+   */
+  static Deadline within(long timeout, TimeUnit unit) {
+    Deadline deadline = after(timeout, unit);
+    Deadline current = CURRENT.get();
+    return current != null
+        && current.expiresAtNanos - deadline.expiresAtNanos < 0
+        ? current : deadline;
+  }
+
+  /** Returns whether the current deadline, if any, has expired. */
+  static boolean currentExpired() {
+    Deadline current = CURRENT.get();
+    return current != null && current.expired();
+  }
+
+  /** Returns the time left, or zero if the deadline has passed. */
+  long remaining(TimeUnit unit) {
+    return unit.convert(Math.max(0, expiresAtNanos - System.nanoTime()),
+        TimeUnit.NANOSECONDS);
+  }
+
+  boolean expired() {
+    return expiresAtNanos - System.nanoTime() <= 0;
+  }
+
+  /**
+   * Runs {@code task} on a shared timer thread when the deadline expires,
+   * unless the returned future is cancelled first. The task must be quick.
+   */
+  ScheduledFuture<?> onExpiry(Runnable task) {
+    return Timer.INSTANCE.schedule(task, remaining(TimeUnit.NANOSECONDS),
+        TimeUnit.NANOSECONDS);
+  }
+
+  /** Makes this the current deadline of the calling thread. */
+  void enter() {
+    CURRENT.set(this);
+  }
+
+  /** Clears the current deadline of the calling thread. */
+  void exit() {
+    CURRENT.remove();
+  }
+
+  private static final class Timer {
+
+    static final ScheduledExecutorService INSTANCE = create();
+
+    private static ScheduledExecutorService create() {
+      ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1,
+          r -> {
+            Thread thread = new Thread(r, "deadline-timer");
+            thread.setDaemon(true);
+            return thread;
+          });
+      // Nearly every request cancels its timeout; don't keep them queued
+      timer.setRemoveOnCancelPolicy(true);
+      return timer;
+    }
+  }
+}
@@ -0,0 +1,618 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import com.google.api.services.actions_fulfillment.v2.model.LatLng;
+import com.google.api.services.actions_fulfillment.v2.model.Location;
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParseException;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Resolves a delivery address to the zone that serves it, and so to the
+ * delivery fee and time of the zone's rate.
+ *
+ * <p>Zones are read from a GeoJSON FeatureCollection of Polygon and
+ * MultiPolygon features, with the properties {@code id}, {@code rate} and
+ * optionally {@code zipCodes}; a feature without geometry serves its zip
+ * codes only. Rates are read from a properties file with the entries
+ * {@code <rate>.fee}, the fee in {@link OrderTemplate#CURRENCY_CODE};
+ * {@code <rate>.etaMinutes}, the time from order to delivery; and optionally
+ * {@code <rate>.freeFrom}, the subtotal from which delivery is free.
+ *
+ * <p>An address with coordinates is served by the first zone, in file
+ * order, whose polygon contains them. The zones are indexed by a uniform
+ * grid over their bounding box with a few cells per zone, each cell listing
+ * the zones whose bounding box overlaps it, so a lookup only tests the
+ * polygons of a handful of zones whatever their number. An address without
+ * coordinates is looked up by zip code, and one with neither is rejected
+ * without consulting the index. Longitudes are taken as is, so zones must
+ * not cross the antimeridian.
+ *
+ * <p>With {@code actions.delivery.zonesFile} or
+ * {@code actions.delivery.ratesFile} set, the files are checked for changes
+ * every {@code actions.delivery.reloadIntervalMillis} (default 10000, 0 to
+ * disable). A new {@link Index} is built on the reloader thread and then
+ * swapped in, so requests never wait for it. Without them the zones and
+ * rates bundled as {@code delivery_zones.json} and
+ * {@code delivery_rates.properties} are used.
+ */
+final class DeliveryZones implements Closeable {
+
+  private static final Logger LOGGER =
+      LoggerFactory.getLogger(DeliveryZones.class);
+
+  private static final String BUNDLED_ZONES = "delivery_zones.json";
+  private static final String BUNDLED_RATES = "delivery_rates.properties";
+  private static final int CELLS_PER_ZONE = 4;
+  private static final int MAX_CELLS = 1 << 22;
+  private static final Gson GSON = new Gson();
+
+  /** A rate of the rate table. */
+  static final class Rate {
+
+    final String name;
+    final long feeMicros;
+    /** Subtotal from which delivery is free, or Long.MAX_VALUE. */
+    final long freeFromMicros;
+    final int etaMinutes;
+
+    Rate(String name, long feeMicros, long freeFromMicros, int etaMinutes) {
+      this.name = name;
+      this.feeMicros = feeMicros;
+      this.freeFromMicros = freeFromMicros;
+      this.etaMinutes = etaMinutes;
+    }
+
+    /** Returns the delivery fee of an order with {@code subtotalMicros}. */
+    long feeMicros(long subtotalMicros) {
+      return subtotalMicros >= freeFromMicros ? 0 : feeMicros;
+    }
+  }
+
+  /** A delivery zone and the rate it is served at. */
+  static final class Zone {
+
+    final String id;
+    final Rate rate;
+
+    Zone(String id, Rate rate) {
+      this.id = id;
+      this.rate = rate;
+    }
+  }
+
+  /** The parts of a GeoJSON FeatureCollection that are read. */
+  private static final class FeatureCollection {
+    List<Feature> features;
+  }
+
+  private static final class Feature {
+    FeatureProperties properties;
+    Geometry geometry;
+  }
+
+  private static final class FeatureProperties {
+    String id;
+    String rate;
+    List<String> zipCodes;
+  }
+
+  private static final class Geometry {
+    String type;
+    JsonElement coordinates;
+  }
+
+  private final Path zonesFile;
+  private final Path ratesFile;
+  private final ScheduledExecutorService reloader;
+  private volatile Index current;
+  /** Identity of the files {@code current} was built from. */
+  private Object loadedVersion;
+
+  private DeliveryZones(Path zonesFile, Path ratesFile,
+      long reloadIntervalMillis) throws IOException {
+    this.zonesFile = zonesFile;
+    this.ratesFile = ratesFile;
+    this.loadedVersion = version();
+    this.current = load();
+    if (reloadIntervalMillis > 0 && (zonesFile != null || ratesFile != null)) {
+      reloader = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "delivery-zones-reloader");
+        thread.setDaemon(true);
+        return thread;
+      });
+      reloader.scheduleWithFixedDelay(this::reloadIfChanged,
+          reloadIntervalMillis, reloadIntervalMillis, TimeUnit.MILLISECONDS);
+    } else {
+      reloader = null;
+    }
+  }
+
+  /**
+   * Loads the zones and rates in the given files, or the bundled ones where
+   * a file is null, reloading the files whenever they change if
+   * {@code reloadIntervalMillis} is positive.
+   */
+  static DeliveryZones open(Path zonesFile, Path ratesFile,
+      long reloadIntervalMillis) throws IOException {
+    DeliveryZones zones =
+        new DeliveryZones(zonesFile, ratesFile, reloadIntervalMillis);
+    LOGGER.info("Loaded {} delivery zones", zones.current.size());
+    return zones;
+  }
+
+  /**
+   * Uses {@code actions.delivery.zonesFile}, {@code actions.delivery.ratesFile}
+   * and {@code actions.delivery.reloadIntervalMillis}.
+   */
+  static DeliveryZones fromSystemProperties() {
+    try {
+      return open(path("actions.delivery.zonesFile"),
+          path("actions.delivery.ratesFile"),
+          Long.getLong("actions.delivery.reloadIntervalMillis", 10000L));
+    } catch (IOException e) {
+      throw new UncheckedIOException("Could not load the delivery zones", e);
+    }
+  }
+
+  private static Path path(String property) {
+    String file = System.getProperty(property);
+    return file != null && !file.isEmpty() ? Paths.get(file) : null;
+  }
+
+  /** Returns the zones as of now; they do not change when reloaded. */
+  Index current() {
+    return current;
+  }
+
+  /** Returns the zone that serves {@code location}, or null if none does. */
+  Zone find(Location location) {
+    return current.find(location);
+  }
+
+  private Index load() throws IOException {
+    Properties rates = new Properties();
+    try (Reader reader = open(ratesFile, BUNDLED_RATES)) {
+      rates.load(reader);
+    }
+    try (Reader reader = open(zonesFile, BUNDLED_ZONES)) {
+      return parse(reader, rates);
+    }
+  }
+
+  private static Reader open(Path file, String bundled) throws IOException {
+    if (file != null) {
+      return Files.newBufferedReader(file, StandardCharsets.UTF_8);
+    }
+    InputStream input =
+        DeliveryZones.class.getClassLoader().getResourceAsStream(bundled);
+    if (input == null) {
+      throw new IOException(bundled + " not found");
+    }
+    return new InputStreamReader(input, StandardCharsets.UTF_8);
+  }
+
+  private void reloadIfChanged() {
+    try {
+      Object version = version();
+      if (version.equals(loadedVersion)) {
+        return;
+      }
+      // Only try each version once, so a bad file is reported once
+      loadedVersion = version;
+      Index reloaded = load();
+      current = reloaded;
+      LOGGER.info("Reloaded {} delivery zones", reloaded.size());
+    } catch (IOException | RuntimeException e) {
+      LOGGER.error("Could not reload delivery zones, keeping the current "
+          + "ones", e);
+    }
+  }
+
+  private Object version() throws IOException {
+    return Arrays.asList(version(zonesFile), version(ratesFile));
+  }
+
+  private static Object version(Path file) throws IOException {
+    if (file == null) {
+      return null;
+    }
+    BasicFileAttributes attributes =
+        Files.readAttributes(file, BasicFileAttributes.class);
+    return Arrays.asList(attributes.fileKey(), attributes.size(),
+        attributes.lastModifiedTime());
+  }
+
+  @Override
+  public void close() {
+    if (reloader != null) {
+      reloader.shutdownNow();
+    }
+  }
+
+  /** Builds an index of the GeoJSON {@code zones} priced by {@code rates}. */
+  static Index parse(Reader zones, Properties rates) {
+    Map<String, Rate> rateTable = rates(rates);
+    FeatureCollection collection;
+    try {
+      collection = GSON.fromJson(zones, FeatureCollection.class);
+    } catch (JsonParseException e) {
+      throw new IllegalArgumentException("Invalid delivery zones", e);
+    }
+    if (collection == null || collection.features == null) {
+      throw new IllegalArgumentException(
+          "Delivery zones must be a GeoJSON FeatureCollection");
+    }
+    Index.Builder builder = new Index.Builder();
+    for (Feature feature : collection.features) {
+      FeatureProperties properties = feature.properties;
+      if (properties == null || properties.id == null) {
+        throw new IllegalArgumentException("Delivery zone without an id");
+      }
+      Rate rate = rateTable.get(properties.rate);
+      if (rate == null) {
+        throw new IllegalArgumentException("Delivery zone " + properties.id
+            + " has unknown rate " + properties.rate);
+      }
+      builder.add(new Zone(properties.id, rate), polygons(feature),
+          properties.zipCodes != null
+              ? properties.zipCodes : Collections.<String>emptyList());
+    }
+    return builder.build();
+  }
+
+  private static Map<String, Rate> rates(Properties properties) {
+    Map<String, Rate> rates = new HashMap<>();
+    for (String key : properties.stringPropertyNames()) {
+      if (!key.endsWith(".fee")) {
+        continue;
+      }
+      String name = key.substring(0, key.length() - ".fee".length());
+      String eta = properties.getProperty(name + ".etaMinutes");
+      String freeFrom = properties.getProperty(name + ".freeFrom");
+      if (eta == null) {
+        throw new IllegalArgumentException(
+            "Delivery rate " + name + " has no etaMinutes");
+      }
+      try {
+        rates.put(name, new Rate(name,
+            micros(properties.getProperty(key)),
+            freeFrom != null ? micros(freeFrom) : Long.MAX_VALUE,
+            Integer.parseInt(eta.trim())));
+      } catch (ArithmeticException | NumberFormatException e) {
+        throw new IllegalArgumentException("Delivery rate " + name
+            + " must have a fee and freeFrom with at most 6 decimals and "
+            + "whole etaMinutes", e);
+      }
+    }
+    return rates;
+  }
+
+  private static long micros(String amount) {
+    // Parsed once at load time, so BigDecimal is fine here
+    return new BigDecimal(amount.trim()).movePointRight(6).longValueExact();
+  }
+
+  /** Returns the outer rings and holes of a feature as rings of [lng, lat]. */
+  private static List<double[][]> polygons(Feature feature) {
+    Geometry geometry = feature.geometry;
+    String id = feature.properties.id;
+    List<double[][]> rings = new ArrayList<>();
+    if (geometry == null) {
+      return rings;
+    }
+    if (geometry.coordinates == null || !geometry.coordinates.isJsonArray()) {
+      throw new IllegalArgumentException(
+          "Delivery zone " + id + " has no coordinates");
+    }
+    try {
+      if ("Polygon".equals(geometry.type)) {
+        rings.addAll(Arrays.asList(
+            GSON.fromJson(geometry.coordinates, double[][][].class)));
+      } else if ("MultiPolygon".equals(geometry.type)) {
+        for (double[][][] polygon
+            : GSON.fromJson(geometry.coordinates, double[][][][].class)) {
+          rings.addAll(Arrays.asList(polygon));
+        }
+      } else {
+        throw new IllegalArgumentException("Delivery zone " + id
+            + " must be a Polygon or MultiPolygon, not " + geometry.type);
+      }
+    } catch (JsonParseException e) {
+      throw new IllegalArgumentException(
+          "Delivery zone " + id + " has invalid coordinates", e);
+    }
+    for (double[][] ring : rings) {
+      if (ring.length < 3) {
+        throw new IllegalArgumentException(
+            "Delivery zone " + id + " has a ring of fewer than 3 points");
+      }
+      for (double[] point : ring) {
+        if (point.length < 2) {
+          throw new IllegalArgumentException(
+              "Delivery zone " + id + " has a point without lng and lat");
+        }
+      }
+    }
+    return rings;
+  }
+
+  /**
+   * One version of the zones, immutable once built. Polygons are kept as
+   * flat coordinate arrays per zone, and the grid as the concatenated zone
+   * lists of all cells with the start of each cell's list.
+   */
+  static final class Index {
+
+    private final Zone[] zones;
+    /** Per zone, longitudes and latitudes of all of its rings in order. */
+    private final double[][] xs;
+    private final double[][] ys;
+    /** Per zone, the start of each ring in xs and ys, then their length. */
+    private final int[][] rings;
+    /** Per zone, its bounding box as minX, minY, maxX, maxY. */
+    private final double[] bounds;
+    private final Map<String, Zone> byZipCode;
+
+    private final double minX;
+    private final double minY;
+    private final double maxX;
+    private final double maxY;
+    private final int columns;
+    private final int rows;
+    private final double columnsPerDegree;
+    private final double rowsPerDegree;
+    /** Start of each cell's zones in cellZones, then its length. */
+    private final int[] cellStarts;
+    private final int[] cellZones;
+
+    private Index(Builder builder) {
+      int count = builder.zones.size();
+      this.zones = builder.zones.toArray(new Zone[0]);
+      this.xs = builder.xs.toArray(new double[0][]);
+      this.ys = builder.ys.toArray(new double[0][]);
+      this.rings = builder.rings.toArray(new int[0][]);
+      this.bounds = new double[count * 4];
+      this.byZipCode = Collections.unmodifiableMap(builder.byZipCode);
+
+      double minX = Double.POSITIVE_INFINITY;
+      double minY = Double.POSITIVE_INFINITY;
+      double maxX = Double.NEGATIVE_INFINITY;
+      double maxY = Double.NEGATIVE_INFINITY;
+      for (int z = 0; z < count; z++) {
+        // Zones without geometry keep an empty box and stay out of the grid
+        double zoneMinX = Double.POSITIVE_INFINITY;
+        double zoneMinY = Double.POSITIVE_INFINITY;
+        double zoneMaxX = Double.NEGATIVE_INFINITY;
+        double zoneMaxY = Double.NEGATIVE_INFINITY;
+        for (int i = 0; i < xs[z].length; i++) {
+          zoneMinX = Math.min(zoneMinX, xs[z][i]);
+          zoneMinY = Math.min(zoneMinY, ys[z][i]);
+          zoneMaxX = Math.max(zoneMaxX, xs[z][i]);
+          zoneMaxY = Math.max(zoneMaxY, ys[z][i]);
+        }
+        bounds[z * 4] = zoneMinX;
+        bounds[z * 4 + 1] = zoneMinY;
+        bounds[z * 4 + 2] = zoneMaxX;
+        bounds[z * 4 + 3] = zoneMaxY;
+        minX = Math.min(minX, zoneMinX);
+        minY = Math.min(minY, zoneMinY);
+        maxX = Math.max(maxX, zoneMaxX);
+        maxY = Math.max(maxY, zoneMaxY);
+      }
+      this.minX = minX;
+      this.minY = minY;
+      this.maxX = maxX;
+      this.maxY = maxY;
+
+      // Square cells, about CELLS_PER_ZONE of them per zone
+      double width = Math.max(maxX - minX, 0);
+      double height = Math.max(maxY - minY, 0);
+      int target = (int) Math.min(MAX_CELLS,
+          Math.max(1L, (long) count * CELLS_PER_ZONE));
+      double side = Math.sqrt(width * height / target);
+      int columns = side > 0 ? (int) Math.ceil(width / side) : 1;
+      int rows = side > 0 ? (int) Math.ceil(height / side) : 1;
+      this.columns = Math.max(1, Math.min(columns, target));
+      this.rows = Math.max(1, Math.min(rows, 2 * target / this.columns));
+      this.columnsPerDegree = width > 0 ? this.columns / width : 0;
+      this.rowsPerDegree = height > 0 ? this.rows / height : 0;
+
+      // Count each cell's zones, then fill them in zone order
+      int cells = this.columns * this.rows;
+      this.cellStarts = new int[cells + 1];
+      for (int z = 0; z < count; z++) {
+        if (xs[z].length == 0) {
+          continue;
+        }
+        for (int row = row(bounds[z * 4 + 1]);
+            row <= row(bounds[z * 4 + 3]); row++) {
+          for (int column = column(bounds[z * 4]);
+              column <= column(bounds[z * 4 + 2]); column++) {
+            cellStarts[row * this.columns + column + 1]++;
+          }
+        }
+      }
+      for (int cell = 0; cell < cells; cell++) {
+        cellStarts[cell + 1] += cellStarts[cell];
+      }
+      this.cellZones = new int[cellStarts[cells]];
+      int[] next = Arrays.copyOf(cellStarts, cells);
+      for (int z = 0; z < count; z++) {
+        if (xs[z].length == 0) {
+          continue;
+        }
+        for (int row = row(bounds[z * 4 + 1]);
+            row <= row(bounds[z * 4 + 3]); row++) {
+          for (int column = column(bounds[z * 4]);
+              column <= column(bounds[z * 4 + 2]); column++) {
+            cellZones[next[row * this.columns + column]++] = z;
+          }
+        }
+      }
+    }
+
+    /** Returns the number of zones. */
+    int size() {
+      return zones.length;
+    }
+
+    /**
+     * Returns the zone that serves {@code location}: by its coordinates if
+     * it has them, otherwise by its zip code. Returns null if no zone does.
+     */
+    Zone find(Location location) {
+      if (location == null) {
+        return null;
+      }
+      LatLng coordinates = location.getCoordinates();
+      if (coordinates != null && coordinates.getLatitude() != null
+          && coordinates.getLongitude() != null) {
+        return find(coordinates.getLatitude(), coordinates.getLongitude());
+      }
+      String zipCode = location.getZipCode();
+      if (zipCode == null && location.getPostalAddress() != null) {
+        zipCode = location.getPostalAddress().getPostalCode();
+      }
+      return zipCode != null ? byZipCode.get(zipCode) : null;
+    }
+
+    /** Returns the first zone whose polygon contains the point, or null. */
+    Zone find(double latitude, double longitude) {
+      // Also false for NaN
+      if (!(longitude >= minX && longitude <= maxX
+          && latitude >= minY && latitude <= maxY)) {
+        return null;
+      }
+      int cell = row(latitude) * columns + column(longitude);
+      for (int i = cellStarts[cell]; i < cellStarts[cell + 1]; i++) {
+        int z = cellZones[i];
+        if (longitude >= bounds[z * 4] && latitude >= bounds[z * 4 + 1]
+            && longitude <= bounds[z * 4 + 2]
+            && latitude <= bounds[z * 4 + 3]
+            && contains(z, longitude, latitude)) {
+          return zones[z];
+        }
+      }
+      return null;
+    }
+
+    /**
+     * Even-odd test of a ray from the point across all rings of a zone, so
+     * holes and separate parts need no special handling.
+     */
+    private boolean contains(int z, double x, double y) {
+      double[] zoneXs = xs[z];
+      double[] zoneYs = ys[z];
+      int[] starts = rings[z];
+      boolean inside = false;
+      for (int r = 0; r < starts.length - 1; r++) {
+        int end = starts[r + 1];
+        for (int i = starts[r], j = end - 1; i < end; j = i++) {
+          if ((zoneYs[i] > y) != (zoneYs[j] > y)
+              && x < (zoneXs[j] - zoneXs[i]) * (y - zoneYs[i])
+                  / (zoneYs[j] - zoneYs[i]) + zoneXs[i]) {
+            inside = !inside;
+          }
+        }
+      }
+      return inside;
+    }
+
+    private int column(double longitude) {
+      int column = (int) ((longitude - minX) * columnsPerDegree);
+      return Math.min(Math.max(column, 0), columns - 1);
+    }
+
+    private int row(double latitude) {
+      int row = (int) ((latitude - minY) * rowsPerDegree);
+      return Math.min(Math.max(row, 0), rows - 1);
+    }
+
+    /** Collects zones in precedence order and then builds the index. */
+    static final class Builder {
+
+      private final List<Zone> zones = new ArrayList<>();
+      private final List<double[]> xs = new ArrayList<>();
+      private final List<double[]> ys = new ArrayList<>();
+      private final List<int[]> rings = new ArrayList<>();
+      private final Map<String, Zone> byZipCode = new HashMap<>();
+
+      /**
+       * Adds a zone covering {@code polygonRings}, rings of [lng, lat]
+       * points, and {@code zipCodes}. Where zones overlap, or share a zip
+       * code, the zone added first serves the address.
+       */
+      Builder add(Zone zone, List<double[][]> polygonRings,
+          List<String> zipCodes) {
+        int points = 0;
+        int[] starts = new int[polygonRings.size() + 1];
+        for (int r = 0; r < polygonRings.size(); r++) {
+          starts[r] = points;
+          points += polygonRings.get(r).length;
+        }
+        starts[polygonRings.size()] = points;
+        double[] zoneXs = new double[points];
+        double[] zoneYs = new double[points];
+        int i = 0;
+        for (double[][] ring : polygonRings) {
+          for (double[] point : ring) {
+            zoneXs[i] = point[0];
+            zoneYs[i++] = point[1];
+          }
+        }
+        zones.add(zone);
+        xs.add(zoneXs);
+        ys.add(zoneYs);
+        rings.add(starts);
+        for (String zipCode : zipCodes) {
+          byZipCode.putIfAbsent(zipCode, zone);
+        }
+        return this;
+      }
+
+      Index build() {
+        return new Index(this);
+      }
+    }
+  }
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * Stand-in for a shared {@link SessionStore}, to develop and test against
+ * without running one. Like a remote store it copies values in and out, so
+ * callers cannot share arrays with it, and it compares values on
+ * {@link #compareAndSet} by content; values expire {@code ttlMillis} after
+ * they were last written.
+ *
+ * <p>It is a plain map on the heap, so several webhooks only share it when
+ * they run in the same JVM, as in the load test. Expired values are purged
+ * whenever the store holds more than {@code maxEntries}.
+ */
+final class EmbeddedSessionStore implements SessionStore {
+
+  private final ConcurrentMap<String, Entry> entries =
+      new ConcurrentHashMap<>();
+  private final long ttlNanos;
+  private final int maxEntries;
+  private final LongSupplier nanoClock;
+
+  EmbeddedSessionStore(Config config) {
+    this(config, System::nanoTime);
+  }
+
+  EmbeddedSessionStore(Config config, LongSupplier nanoClock) {
+    this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(config.ttlMillis);
+    this.maxEntries = config.maxEntries;
+    this.nanoClock = nanoClock;
+  }
+
+  @Override
+  public byte[] get(String key) {
+    Entry entry = entries.get(key);
+    if (entry == null || entry.expired(nanoClock.getAsLong(), ttlNanos)) {
+      return null;
+    }
+    return entry.value.clone();
+  }
+
+  @Override
+  public boolean compareAndSet(String key, byte[] expected, byte[] value) {
+    long now = nanoClock.getAsLong();
+    if (entries.size() > maxEntries) {
+      entries.values().removeIf(entry -> entry.expired(now, ttlNanos));
+    }
+    boolean[] stored = new boolean[1];
+    entries.compute(key, (k, entry) -> {
+      byte[] current = entry == null || entry.expired(now, ttlNanos)
+          ? null : entry.value;
+      if (!Arrays.equals(current, expected)) {
+        return entry;
+      }
+      stored[0] = true;
+      return new Entry(value.clone(), now);
+    });
+    return stored[0];
+  }
+
+  /** Returns the number of entries, including expired ones not yet purged. */
+  int size() {
+    return entries.size();
+  }
+
+  private static final class Entry {
+
+    final byte[] value;
+    final long writtenNanos;
+
+    Entry(byte[] value, long writtenNanos) {
+      this.value = value;
+      this.writtenNanos = writtenNanos;
+    }
+
+    boolean expired(long now, long ttlNanos) {
+      return now - writtenNanos >= ttlNanos;
+    }
+  }
+
+  static final class Config {
+
+    final int maxEntries;
+    final long ttlMillis;
+
+    Config(int maxEntries, long ttlMillis) {
+      this.maxEntries = maxEntries;
+      this.ttlMillis = ttlMillis;
+    }
+
+    /**
+     * Uses {@code actions.sessions.maxEntries} (default 10000) and
+     * {@code actions.sessions.ttlMillis} (default one hour).
+     */
+    static Config fromSystemProperties() {
+      return new Config(
+          Integer.getInteger("actions.sessions.maxEntries", 10000),
+          Long.getLong("actions.sessions.ttlMillis", 3600000L));
+    }
+  }
+}
@@ -0,0 +1,299 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.JSONValue;
+
+/**
+ * Cache of serialized Google Pay facilitation specs, keyed by merchant,
+ * currency and total price.
+ *
+ * <p>Everything except {@code transactionInfo.totalPrice} depends only on
+ * the merchant configuration and currency, so that part is serialized once
+ * per merchant and currency into a prefix and suffix. A spec for a new total
+ * is produced by splicing the escaped price between the two. Registering a
+ * new configuration for a merchant evicts all of its cached entries.
+ *
+ * <p>Specs are kept in a bounded LRU map. Every cached entry remembers the
+ * merchant configuration it was built from and is only served while that
+ * configuration is current, so an entry that a concurrent {@link #get} puts
+ * back after an eviction is never returned.
+ */
+final class FacilitationSpecCache {
+
+  private static final String TOTAL_PRICE_PLACEHOLDER = "\u0000TOTAL_PRICE\u0000";
+  private static final int MAX_SPECS =
+      Integer.getInteger("actions.facilitationSpec.maxEntries", 1024);
+
+  private final ConcurrentMap<String, MerchantConfig> merchants =
+      new ConcurrentHashMap<>();
+  private final ConcurrentMap<TemplateKey, Template> templates =
+      new ConcurrentHashMap<>();
+  /** Access-ordered; guarded by itself. */
+  private final Map<SpecKey, Spec> specs =
+      new LinkedHashMap<SpecKey, Spec>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<SpecKey, Spec> eldest) {
+          return size() > MAX_SPECS;
+        }
+      };
+
+  /**
+   * Registers or replaces the configuration of a merchant. Cached specs for
+   * the merchant are evicted when the configuration differs from the current
+   * one.
+   */
+  void putMerchant(MerchantConfig config) {
+    // An equal configuration keeps the current instance, which cached
+    // entries are checked against
+    MerchantConfig current = merchants.compute(config.merchantName,
+        (name, previous) -> config.equals(previous) ? previous : config);
+    if (current == config) {
+      evict(config.merchantName);
+    }
+  }
+
+  /** Evicts all cached specs for the given merchant. */
+  void evict(String merchantName) {
+    templates.keySet().removeIf(key -> key.merchantName.equals(merchantName));
+    synchronized (specs) {
+      specs.keySet().removeIf(key -> key.merchantName.equals(merchantName));
+    }
+  }
+
+  /**
+   * Returns the serialized facilitation spec for a transaction.
+   *
+   * @throws IllegalArgumentException if the merchant has not been registered
+   */
+  String get(String merchantName, String currencyCode, String totalPrice) {
+    MerchantConfig config = merchants.get(merchantName);
+    if (config == null) {
+      throw new IllegalArgumentException("Unknown merchant: " + merchantName);
+    }
+    SpecKey key = new SpecKey(merchantName, currencyCode, totalPrice);
+    Spec spec;
+    synchronized (specs) {
+      spec = specs.get(key);
+    }
+    if (spec != null && spec.config == config) {
+      return spec.json;
+    }
+    Template template = templates.compute(
+        new TemplateKey(merchantName, currencyCode),
+        (templateKey, current) -> current != null && current.config == config
+            ? current : createTemplate(templateKey, config));
+    String json =
+        template.prefix + JSONValue.escape(totalPrice) + template.suffix;
+    synchronized (specs) {
+      specs.put(key, new Spec(config, json));
+    }
+    return json;
+  }
+
+  private static Template createTemplate(TemplateKey key,
+      MerchantConfig config) {
+
+    JSONObject merchantInfo = new JSONObject();
+    merchantInfo.put("merchantName", config.merchantName);
+
+    JSONObject facilitationSpec = new JSONObject();
+    facilitationSpec.put("apiVersion", 2);
+    facilitationSpec.put("apiVersionMinor", 0);
+    facilitationSpec.put("merchantInfo", merchantInfo);
+
+    JSONObject allowedPaymentMethod = new JSONObject();
+    allowedPaymentMethod.put("type", "CARD");
+
+    JSONArray allowedAuthMethods = new JSONArray();
+    allowedAuthMethods.addAll(config.allowedAuthMethods);
+    JSONArray allowedCardNetworks = new JSONArray();
+    allowedCardNetworks.addAll(config.allowedCardNetworks);
+
+    JSONObject allowedPaymentMethodParameters = new JSONObject();
+    allowedPaymentMethodParameters.put("allowedAuthMethods", allowedAuthMethods);
+    allowedPaymentMethodParameters.put("allowedCardNetworks", allowedCardNetworks);
+
+    allowedPaymentMethod.put("parameters", allowedPaymentMethodParameters);
+
+    JSONObject tokenizationSpecificationParameters = new JSONObject();
+    tokenizationSpecificationParameters.put("gateway", config.gateway);
+    tokenizationSpecificationParameters.put("gatewayMerchantId",
+        config.gatewayMerchantId);
+
+    JSONObject tokenizationSpecification = new JSONObject();
+    tokenizationSpecification.put("type", "PAYMENT_GATEWAY");
+    tokenizationSpecification.put("parameters", tokenizationSpecificationParameters);
+    allowedPaymentMethod.put("tokenizationSpecification", tokenizationSpecification);
+
+    JSONArray allowedPaymentMethods = new JSONArray();
+    allowedPaymentMethods.add(allowedPaymentMethod);
+
+    facilitationSpec.put("allowedPaymentMethods", allowedPaymentMethods);
+
+    JSONObject transactionInfo = new JSONObject();
+    transactionInfo.put("totalPriceStatus", "FINAL");
+    transactionInfo.put("totalPrice", TOTAL_PRICE_PLACEHOLDER);
+    transactionInfo.put("currencyCode", key.currencyCode);
+
+    facilitationSpec.put("transactionInfo", transactionInfo);
+
+    String json = facilitationSpec.toJSONString();
+    String placeholder = JSONValue.escape(TOTAL_PRICE_PLACEHOLDER);
+    int index = json.indexOf(placeholder);
+    return new Template(config, json.substring(0, index),
+        json.substring(index + placeholder.length()));
+  }
+
+  /** Google Pay configuration of a merchant. */
+  static final class MerchantConfig {
+
+    private final String merchantName;
+    private final String gateway;
+    private final String gatewayMerchantId;
+    private final List<String> allowedAuthMethods;
+    private final List<String> allowedCardNetworks;
+
+    MerchantConfig(String merchantName, String gateway,
+        String gatewayMerchantId, List<String> allowedAuthMethods,
+        List<String> allowedCardNetworks) {
+      this.merchantName = merchantName;
+      this.gateway = gateway;
+      this.gatewayMerchantId = gatewayMerchantId;
+      this.allowedAuthMethods =
+          Collections.unmodifiableList(new ArrayList<>(allowedAuthMethods));
+      this.allowedCardNetworks =
+          Collections.unmodifiableList(new ArrayList<>(allowedCardNetworks));
+    }
+
+    String merchantName() {
+      return merchantName;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) {
+        return true;
+      }
+      if (!(o instanceof MerchantConfig)) {
+        return false;
+      }
+      MerchantConfig that = (MerchantConfig) o;
+      return merchantName.equals(that.merchantName)
+          && gateway.equals(that.gateway)
+          && gatewayMerchantId.equals(that.gatewayMerchantId)
+          && allowedAuthMethods.equals(that.allowedAuthMethods)
+          && allowedCardNetworks.equals(that.allowedCardNetworks);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(merchantName, gateway, gatewayMerchantId,
+          allowedAuthMethods, allowedCardNetworks);
+    }
+  }
+
+  private static final class Template {
+
+    private final MerchantConfig config;
+    private final String prefix;
+    private final String suffix;
+
+    Template(MerchantConfig config, String prefix, String suffix) {
+      this.config = config;
+      this.prefix = prefix;
+      this.suffix = suffix;
+    }
+  }
+
+  private static final class Spec {
+
+    private final MerchantConfig config;
+    private final String json;
+
+    Spec(MerchantConfig config, String json) {
+      this.config = config;
+      this.json = json;
+    }
+  }
+
+  private static final class TemplateKey {
+
+    private final String merchantName;
+    private final String currencyCode;
+
+    TemplateKey(String merchantName, String currencyCode) {
+      this.merchantName = merchantName;
+      this.currencyCode = currencyCode;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof TemplateKey)) {
+        return false;
+      }
+      TemplateKey that = (TemplateKey) o;
+      return merchantName.equals(that.merchantName)
+          && currencyCode.equals(that.currencyCode);
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * merchantName.hashCode() + currencyCode.hashCode();
+    }
+  }
+
+  private static final class SpecKey {
+
+    private final String merchantName;
+    private final String currencyCode;
+    private final String totalPrice;
+
+    SpecKey(String merchantName, String currencyCode, String totalPrice) {
+      this.merchantName = merchantName;
+      this.currencyCode = currencyCode;
+      this.totalPrice = totalPrice;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof SpecKey)) {
+        return false;
+      }
+      SpecKey that = (SpecKey) o;
+      return merchantName.equals(that.merchantName)
+          && currencyCode.equals(that.currencyCode)
+          && totalPrice.equals(that.totalPrice);
+    }
+
+    @Override
+    public int hashCode() {
+      return (31 * merchantName.hashCode() + currencyCode.hashCode()) * 31
+          + totalPrice.hashCode();
+    }
+  }
+}
@@ -0,0 +1,328 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+/**
+ * JDK Flight Recorder events for the webhook and the Orders API client, so
+ * a recording can tie a slow request to its intent, session and order and
+ * to the phase or outbound call that took the time.
+ *
+ * <ul>
+ *   <li>{@code com.example.WebhookRequest}: a whole webhook request
+ *   <li>{@code com.example.WebhookPhase}: reading the body, dispatching,
+ *       the {@code @ForIntent} handler, serializing and writing the response
+ *   <li>{@code com.example.Codec}: encoding or decoding conversation state
+ *       (the delivery location) and order updates
+ *   <li>{@code com.example.OrderUpdate}: getting an access token and
+ *       executing the Orders API call
+ * </ul>
+ * Events under their threshold (see the classes) are dropped, so an
+ * always-on recording only holds the slow ones; lower the thresholds in the
+ * recording settings to see everything.
+ *
+ * <p>JFR needs JDK 11 or 8u262 and later. Where it is missing, or when
+ * {@code actions.jfr.enabled} is {@code false}, the {@code begin} methods
+ * return null and every other method ignores null. Callers hold the event
+ * returned by {@code begin} as an {@code Object} and pass it back at the
+ * end: an event type in a caller's lambda or method signature would load it,
+ * and with it JFR, even when recording is off.
+ *
+ * <p>While a webhook request is being handled on a thread it is that
+ * thread's current request, which {@link #identify} and {@link #orderId}
+ * fill in as the intent, session and order become known.
+ */
+final class FlightEvents {
+
+  static final boolean ENABLED = available();
+
+  private static final ThreadLocal<WebhookRequest> CURRENT =
+      new ThreadLocal<>();
+
+  private FlightEvents() {
+  }
+
+  static Object beginRequest() {
+    if (!ENABLED) {
+      return null;
+    }
+    WebhookRequest event = new WebhookRequest();
+    event.begin();
+    return event;
+  }
+
+  /** Makes {@code event} the current request of this thread. */
+  static void enter(Object request) {
+    if (request != null) {
+      CURRENT.set((WebhookRequest) request);
+    }
+  }
+
+  static void exit(Object request) {
+    if (request != null) {
+      CURRENT.remove();
+    }
+  }
+
+  static void requestRead(Object request, long bytes) {
+    if (request != null) {
+      ((WebhookRequest) request).requestBytes = bytes;
+    }
+  }
+
+  static void responseEncoded(Object request, long bytes) {
+    if (request != null) {
+      ((WebhookRequest) request).responseBytes = bytes;
+    }
+  }
+
+  static void endRequest(Object request) {
+    if (request != null) {
+      WebhookRequest event = (WebhookRequest) request;
+      if (event.shouldCommit()) {
+        event.commit();
+      }
+    }
+  }
+
+  /** Records the intent and session of this thread's current request. */
+  static void identify(String intent, String sessionId) {
+    if (ENABLED) {
+      WebhookRequest event = CURRENT.get();
+      if (event != null) {
+        event.intent = intent;
+        event.sessionId = sessionId;
+      }
+    }
+  }
+
+  /** Records the order that this thread's current request is about. */
+  static void orderId(String orderId) {
+    if (ENABLED) {
+      WebhookRequest event = CURRENT.get();
+      if (event != null) {
+        event.orderId = orderId;
+      }
+    }
+  }
+
+  static Object beginPhase() {
+    if (!ENABLED) {
+      return null;
+    }
+    WebhookPhase event = new WebhookPhase();
+    event.begin();
+    return event;
+  }
+
+  /**
+   * Ends a phase of the current request; {@code bytes} is the size of what
+   * the phase read or produced, or 0.
+   */
+  static void endPhase(Object phaseEvent, String phase, long bytes) {
+    if (phaseEvent == null) {
+      return;
+    }
+    WebhookPhase event = (WebhookPhase) phaseEvent;
+    if (event.shouldCommit()) {
+      event.phase = phase;
+      event.bytes = bytes;
+      WebhookRequest request = CURRENT.get();
+      if (request != null) {
+        event.intent = request.intent;
+        event.sessionId = request.sessionId;
+        event.orderId = request.orderId;
+      }
+      event.commit();
+    }
+  }
+
+  static Object beginCodec() {
+    if (!ENABLED) {
+      return null;
+    }
+    Codec event = new Codec();
+    event.begin();
+    return event;
+  }
+
+  static void endCodec(Object codecEvent, String type, String operation,
+      String orderId, long bytes) {
+    if (codecEvent == null) {
+      return;
+    }
+    Codec event = (Codec) codecEvent;
+    if (event.shouldCommit()) {
+      event.type = type;
+      event.operation = operation;
+      event.orderId = orderId;
+      event.bytes = bytes;
+      WebhookRequest request = CURRENT.get();
+      if (request != null) {
+        event.sessionId = request.sessionId;
+      }
+      event.commit();
+    }
+  }
+
+  static Object beginOrderUpdate() {
+    if (!ENABLED) {
+      return null;
+    }
+    OrderUpdate event = new OrderUpdate();
+    event.begin();
+    return event;
+  }
+
+  /** Ends an Orders API step; {@code status} is the HTTP status, or 0. */
+  static void endOrderUpdate(Object orderUpdateEvent, String step,
+      String orderId, long requestBytes, int status) {
+    if (orderUpdateEvent == null) {
+      return;
+    }
+    OrderUpdate event = (OrderUpdate) orderUpdateEvent;
+    if (event.shouldCommit()) {
+      event.step = step;
+      event.orderId = orderId;
+      event.requestBytes = requestBytes;
+      event.status = status;
+      event.commit();
+    }
+  }
+
+  private static boolean available() {
+    if (!Boolean.parseBoolean(
+        System.getProperty("actions.jfr.enabled", "true"))) {
+      return false;
+    }
+    try {
+      Class.forName("jdk.jfr.Event", false,
+          FlightEvents.class.getClassLoader());
+      return true;
+    } catch (ClassNotFoundException | LinkageError e) {
+      return false;
+    }
+  }
+
+  @Name("com.example.WebhookRequest")
+  @Label("Webhook Request")
+  @Description("A webhook request, from reading the body to writing the "
+      + "response")
+  @Category({"Actions on Google", "Webhook"})
+  @Threshold("20 ms")
+  @StackTrace(false)
+  static final class WebhookRequest extends Event {
+
+    @Label("Intent")
+    String intent;
+
+    @Label("Session ID")
+    String sessionId;
+
+    @Label("Order ID")
+    String orderId;
+
+    @Label("Request Size")
+    @DataAmount
+    long requestBytes;
+
+    @Label("Response Size")
+    @DataAmount
+    long responseBytes;
+  }
+
+  @Name("com.example.WebhookPhase")
+  @Label("Webhook Phase")
+  @Description("One phase of handling a webhook request: read, dispatch, "
+      + "handler, serialize or write")
+  @Category({"Actions on Google", "Webhook"})
+  @Threshold("10 ms")
+  @StackTrace(false)
+  static final class WebhookPhase extends Event {
+
+    @Label("Phase")
+    String phase;
+
+    @Label("Intent")
+    String intent;
+
+    @Label("Session ID")
+    String sessionId;
+
+    @Label("Order ID")
+    String orderId;
+
+    @Label("Size")
+    @DataAmount
+    long bytes;
+  }
+
+  @Name("com.example.Codec")
+  @Label("Codec")
+  @Description("Encoding or decoding conversation state or an order update")
+  @Category({"Actions on Google", "Webhook"})
+  @Threshold("5 ms")
+  @StackTrace(false)
+  static final class Codec extends Event {
+
+    @Label("Type")
+    String type;
+
+    @Label("Operation")
+    String operation;
+
+    @Label("Session ID")
+    String sessionId;
+
+    @Label("Order ID")
+    String orderId;
+
+    @Label("Size")
+    @DataAmount
+    long bytes;
+  }
+
+  @Name("com.example.OrderUpdate")
+  @Label("Order Update")
+  @Description("A step of sending an order update to the Orders API: token "
+      + "or execute")
+  @Category({"Actions on Google", "Orders API"})
+  @Threshold("0 ms")
+  static final class OrderUpdate extends Event {
+
+    @Label("Step")
+    String step;
+
+    @Label("Order ID")
+    String orderId;
+
+    @Label("Request Size")
+    @DataAmount
+    long requestBytes;
+
+    @Label("HTTP Status")
+    int status;
+  }
+}
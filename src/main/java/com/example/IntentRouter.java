@@ -0,0 +1,201 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import com.google.actions.api.ActionRequest;
+import com.google.actions.api.ActionResponse;
+import com.google.actions.api.DefaultApp;
+import com.google.actions.api.ForIntent;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import java.io.IOException;
+import java.io.Reader;
+import java.lang.invoke.CallSite;
+import java.lang.invoke.LambdaMetafactory;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Routes requests to an app's {@link ForIntent} methods like
+ * {@link DefaultApp#routeRequest} does, but looks the methods up once. Each
+ * method is bound to the app through {@link LambdaMetafactory}, so a call
+ * through its {@link Handler} is a plain interface call that the JIT can
+ * inline instead of a reflective {@link Method#invoke}, and routing a request
+ * is a single lookup in an immutable map.
+ */
+final class IntentRouter {
+
+  private static final Logger LOGGER =
+      LoggerFactory.getLogger(IntentRouter.class);
+
+  /** A {@link ForIntent} method bound to its app. */
+  @FunctionalInterface
+  interface Handler {
+
+    /** Returns an {@link ActionResponse} or a future of one. */
+    Object handle(ActionRequest request);
+  }
+
+  private final Map<String, Handler> handlers;
+
+  private IntentRouter(Map<String, Handler> handlers) {
+    this.handlers = handlers;
+  }
+
+  /**
+   * Binds the {@link ForIntent} methods declared by {@code app}'s class.
+   *
+   * @throws IllegalStateException if a method is not a valid handler or two
+   *     methods handle the same intent
+   */
+  static IntentRouter forApp(Object app) {
+    MethodHandles.Lookup lookup = MethodHandles.lookup();
+    Map<String, Handler> handlers = new HashMap<>();
+    for (Method method : app.getClass().getDeclaredMethods()) {
+      ForIntent forIntent = method.getAnnotation(ForIntent.class);
+      if (forIntent == null) {
+        continue;
+      }
+      Class<?> returnType = method.getReturnType();
+      if (method.getParameterCount() != 1
+          || method.getParameterTypes()[0] != ActionRequest.class
+          || (returnType != ActionResponse.class
+              && returnType != CompletableFuture.class)) {
+        throw new IllegalStateException(method + " must take an "
+            + "ActionRequest and return an ActionResponse or a "
+            + "CompletableFuture");
+      }
+      if (handlers.put(forIntent.value(), bind(lookup, app, method)) != null) {
+        throw new IllegalStateException(
+            "More than one handler for intent " + forIntent.value());
+      }
+    }
+    return new IntentRouter(Collections.unmodifiableMap(handlers));
+  }
+
+  private static Handler bind(MethodHandles.Lookup lookup, Object app,
+      Method method) {
+    try {
+      MethodHandle target = lookup.unreflect(method);
+      CallSite site = LambdaMetafactory.metafactory(lookup, "handle",
+          MethodType.methodType(Handler.class, app.getClass()),
+          MethodType.methodType(Object.class, ActionRequest.class),
+          target,
+          MethodType.methodType(method.getReturnType(), ActionRequest.class));
+      return (Handler) site.getTarget().invoke(app);
+    } catch (Throwable e) {
+      throw new IllegalStateException("Could not bind " + method, e);
+    }
+  }
+
+  /** Returns the handled intent names. */
+  Set<String> intents() {
+    return handlers.keySet();
+  }
+
+  /** Returns the handler for {@code intent}, or null if there is none. */
+  Handler handler(String intent) {
+    return handlers.get(intent);
+  }
+
+  /**
+   * Calls the handler for the request's intent.
+   *
+   * @throws Exception if the intent has no handler or the handler returns
+   *     null, as {@link DefaultApp#routeRequest} does
+   */
+  @SuppressWarnings("unchecked")
+  CompletableFuture<ActionResponse> route(ActionRequest request)
+      throws Exception {
+    String intent = request.getIntent();
+    Handler handler = intent != null ? handlers.get(intent) : null;
+    if (handler == null) {
+      LOGGER.warn("Intent handler not found: {}", intent);
+      throw new Exception("Intent handler not found - " + intent);
+    }
+    Object result = handler.handle(request);
+    if (result instanceof ActionResponse) {
+      return CompletableFuture.completedFuture((ActionResponse) result);
+    }
+    if (result == null) {
+      throw new Exception("Intent handler for " + intent + " returned null");
+    }
+    return (CompletableFuture<ActionResponse>) result;
+  }
+
+  /**
+   * Checks the handlers against the Dialogflow agent exported to
+   * {@code intentsDirectory}: every intent that uses webhook fulfillment must
+   * have a handler. Handlers for intents the agent does not have are logged.
+   * Nothing is checked if the directory does not exist, as in deployments,
+   * which do not include the agent.
+   *
+   * @throws IllegalStateException if an intent has no handler
+   */
+  void validate(Path intentsDirectory) throws IOException {
+    if (!Files.isDirectory(intentsDirectory)) {
+      LOGGER.debug("No agent in {}, not checking intent handlers",
+          intentsDirectory);
+      return;
+    }
+    Set<String> agentIntents = new TreeSet<>();
+    Set<String> unhandled = new TreeSet<>();
+    try (DirectoryStream<Path> files =
+        Files.newDirectoryStream(intentsDirectory, "*.json")) {
+      for (Path file : files) {
+        if (file.getFileName().toString().contains("_usersays_")) {
+          continue;
+        }
+        JsonObject intent;
+        try (Reader reader = Files.newBufferedReader(file)) {
+          intent = JsonParser.parseReader(reader).getAsJsonObject();
+        }
+        String name = intent.get("name").getAsString();
+        agentIntents.add(name);
+        JsonElement webhookUsed = intent.get("webhookUsed");
+        if (webhookUsed != null && webhookUsed.getAsBoolean()
+            && !handlers.containsKey(name)) {
+          unhandled.add(name);
+        }
+      }
+    }
+    if (!unhandled.isEmpty()) {
+      throw new IllegalStateException("No @ForIntent handler for agent "
+          + "intents " + unhandled + " in " + intentsDirectory);
+    }
+    Set<String> unknown = new TreeSet<>(handlers.keySet());
+    unknown.removeAll(agentIntents);
+    if (!unknown.isEmpty()) {
+      LOGGER.warn("Handlers for intents {} that are not in the agent in {}",
+          unknown, intentsDirectory);
+    }
+  }
+}
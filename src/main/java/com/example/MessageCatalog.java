@@ -0,0 +1,419 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.io.UncheckedIOException;
+import java.net.JarURLConnection;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.MissingResourceException;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The user-facing messages of every locale, loaded once. All
+ * {@code <baseName>[_lang[_COUNTRY[_variant]]].properties} files next to the
+ * default locale's file (or the root file) are picked up, so a locale is
+ * added by dropping in its file. Files are read as UTF-8, or as ISO-8859-1
+ * if they are not valid UTF-8.
+ *
+ * <p>Lookups for a locale resolve through a fixed chain: the locale itself,
+ * its parents ({@code fr_CA} then {@code fr}), the root file and finally the
+ * default locale ({@code actions.messages.defaultLocale}, {@code en-US}) and
+ * its parents. Unlike {@link java.util.ResourceBundle} the chain never
+ * depends on the JVM's default locale. The chain is flattened when a locale
+ * is first seen, so a lookup is a single map hit, and patterns are parsed
+ * once into formatters that are safe to share between threads.
+ */
+final class MessageCatalog {
+
+  private static final Logger LOGGER =
+      LoggerFactory.getLogger(MessageCatalog.class);
+
+  /** Bounds the cache against clients sending arbitrary locales. */
+  private static final int MAX_CACHED_LOCALES = 256;
+
+  private final Map<Locale, Map<String, String>> bundles;
+  private final Locale defaultLocale;
+  private final Map<Locale, Messages> resolved = new ConcurrentHashMap<>();
+
+  MessageCatalog(Map<Locale, Map<String, String>> bundles,
+      Locale defaultLocale) {
+    this.bundles = bundles;
+    this.defaultLocale = defaultLocale;
+    for (Locale locale : bundles.keySet()) {
+      resolved.put(locale, resolve(locale));
+    }
+  }
+
+  /** Loads every locale of {@code baseName} from the class path. */
+  static MessageCatalog load(String baseName) {
+    Locale defaultLocale = Locale.forLanguageTag(
+        System.getProperty("actions.messages.defaultLocale", "en-US"));
+    ClassLoader loader = MessageCatalog.class.getClassLoader();
+    Map<Locale, Map<String, String>> bundles = new HashMap<>();
+    try {
+      for (Map.Entry<String, URL> file
+          : findFiles(loader, baseName, defaultLocale).entrySet()) {
+        bundles.put(localeOf(baseName, file.getKey()), read(file.getValue()));
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException("Could not load messages " + baseName, e);
+    }
+    if (bundles.isEmpty()) {
+      throw new MissingResourceException("No messages found for " + baseName,
+          MessageCatalog.class.getName(), "");
+    }
+    LOGGER.info("Loaded messages {} for locales {}", baseName,
+        bundles.keySet());
+    return new MessageCatalog(bundles, defaultLocale);
+  }
+
+  /** Returns the messages for {@code locale}, falling back as above. */
+  Messages forLocale(Locale locale) {
+    if (locale == null) {
+      locale = defaultLocale;
+    }
+    Messages messages = resolved.get(locale);
+    if (messages == null) {
+      messages = resolve(locale);
+      if (resolved.size() < MAX_CACHED_LOCALES) {
+        resolved.putIfAbsent(locale, messages);
+      }
+    }
+    return messages;
+  }
+
+  private Messages resolve(Locale locale) {
+    List<Locale> chain = new ArrayList<>(candidates(locale));
+    chain.add(Locale.ROOT);
+    for (Locale fallback : candidates(defaultLocale)) {
+      if (!chain.contains(fallback)) {
+        chain.add(fallback);
+      }
+    }
+
+    // Most specific first, so only add keys that are not there yet
+    Map<String, Message> messages = new HashMap<>();
+    for (Locale candidate : chain) {
+      Map<String, String> bundle = bundles.get(candidate);
+      if (bundle == null) {
+        continue;
+      }
+      for (Map.Entry<String, String> e : bundle.entrySet()) {
+        if (!messages.containsKey(e.getKey())) {
+          messages.put(e.getKey(),
+              new Message(e.getKey(), e.getValue(), locale));
+        }
+      }
+    }
+    return new Messages(locale, messages);
+  }
+
+  private static List<Locale> candidates(Locale locale) {
+    List<Locale> candidates = new ArrayList<>(3);
+    String language = locale.getLanguage();
+    String country = locale.getCountry();
+    String variant = locale.getVariant();
+    if (!variant.isEmpty()) {
+      candidates.add(new Locale(language, country, variant));
+    }
+    if (!country.isEmpty()) {
+      candidates.add(new Locale(language, country));
+    }
+    if (!language.isEmpty()) {
+      candidates.add(new Locale(language));
+    }
+    return candidates;
+  }
+
+  /** Returns the message files of {@code baseName} by file name. */
+  private static Map<String, URL> findFiles(ClassLoader loader,
+      String baseName, Locale defaultLocale) throws IOException {
+    URL anchor = loader.getResource(baseName + ".properties");
+    for (Locale candidate : candidates(defaultLocale)) {
+      if (anchor == null) {
+        anchor = loader.getResource(
+            baseName + "_" + candidate + ".properties");
+      }
+    }
+    if (anchor == null) {
+      return Collections.emptyMap();
+    }
+
+    Map<String, URL> files = new LinkedHashMap<>();
+    if (anchor.getProtocol().equals("jar")) {
+      JarURLConnection connection =
+          (JarURLConnection) anchor.openConnection();
+      connection.setUseCaches(false);
+      String directory = connection.getEntryName();
+      directory = directory.substring(0, directory.lastIndexOf('/') + 1);
+      try (JarFile jar = connection.getJarFile()) {
+        for (Enumeration<JarEntry> entries = jar.entries();
+            entries.hasMoreElements(); ) {
+          String name = entries.nextElement().getName();
+          String fileName = name.substring(name.lastIndexOf('/') + 1);
+          if (name.startsWith(directory)
+              && name.indexOf('/', directory.length()) < 0
+              && isMessageFile(baseName, fileName)) {
+            files.put(fileName, loader.getResource(name));
+          }
+        }
+      }
+    } else {
+      Path directory;
+      try {
+        directory = Paths.get(anchor.toURI()).getParent();
+      } catch (URISyntaxException | IllegalArgumentException e) {
+        throw new IOException("Cannot list messages next to " + anchor, e);
+      }
+      try (DirectoryStream<Path> stream = Files.newDirectoryStream(
+          directory, baseName + "*.properties")) {
+        for (Path path : stream) {
+          String fileName = path.getFileName().toString();
+          if (isMessageFile(baseName, fileName)) {
+            files.put(fileName, path.toUri().toURL());
+          }
+        }
+      }
+    }
+    return files;
+  }
+
+  private static boolean isMessageFile(String baseName, String fileName) {
+    return fileName.endsWith(".properties")
+        && (fileName.equals(baseName + ".properties")
+            || fileName.startsWith(baseName + "_"));
+  }
+
+  private static Locale localeOf(String baseName, String fileName) {
+    String suffix = fileName.substring(baseName.length(),
+        fileName.length() - ".properties".length());
+    if (suffix.isEmpty()) {
+      return Locale.ROOT;
+    }
+    String[] parts = suffix.substring(1).split("_", 3);
+    return new Locale(parts[0], parts.length > 1 ? parts[1] : "",
+        parts.length > 2 ? parts[2] : "");
+  }
+
+  private static Map<String, String> read(URL url) throws IOException {
+    byte[] bytes;
+    try (InputStream in = url.openStream()) {
+      bytes = readAll(in);
+    }
+    String text;
+    try {
+      text = StandardCharsets.UTF_8.newDecoder()
+          .onMalformedInput(CodingErrorAction.REPORT)
+          .onUnmappableCharacter(CodingErrorAction.REPORT)
+          .decode(ByteBuffer.wrap(bytes))
+          .toString();
+    } catch (CharacterCodingException e) {
+      text = new String(bytes, StandardCharsets.ISO_8859_1);
+    }
+    Properties properties = new Properties();
+    properties.load(new StringReader(text));
+    Map<String, String> messages = new HashMap<>();
+    for (String key : properties.stringPropertyNames()) {
+      messages.put(key, properties.getProperty(key));
+    }
+    return messages;
+  }
+
+  private static byte[] readAll(InputStream in) throws IOException {
+    byte[] buffer = new byte[4096];
+    int length = 0;
+    int read;
+    while ((read = in.read(buffer, length, buffer.length - length)) != -1) {
+      length += read;
+      if (length == buffer.length) {
+        byte[] larger = new byte[buffer.length * 2];
+        System.arraycopy(buffer, 0, larger, 0, length);
+        buffer = larger;
+      }
+    }
+    byte[] result = new byte[length];
+    System.arraycopy(buffer, 0, result, 0, length);
+    return result;
+  }
+
+  /** The flattened messages of one locale. */
+  static final class Messages {
+
+    private final Locale locale;
+    private final Map<String, Message> messages;
+
+    Messages(Locale locale, Map<String, Message> messages) {
+      this.locale = locale;
+      this.messages = messages;
+    }
+
+    Locale locale() {
+      return locale;
+    }
+
+    /** Returns the message for {@code key} as written in its file. */
+    String get(String key) {
+      return message(key).text;
+    }
+
+    /** Formats the message for {@code key} with {@link MessageFormat}. */
+    String format(String key, Object... arguments) {
+      return message(key).format(arguments);
+    }
+
+    private Message message(String key) {
+      Message message = messages.get(key);
+      if (message == null) {
+        throw new MissingResourceException("No message " + key + " for "
+            + locale, MessageCatalog.class.getName(), key);
+      }
+      return message;
+    }
+  }
+
+  /**
+   * One message and its parsed pattern. Patterns whose arguments are all
+   * plain ({@code {0}}) are split into literal text and argument indexes up
+   * front, following {@link MessageFormat}'s quoting rules, and formatted by
+   * concatenation. Anything else, including numbers and dates passed to a
+   * plain argument, goes through a per-thread {@link MessageFormat} built for
+   * the message's locale.
+   */
+  private static final class Message {
+
+    final String text;
+    private final Locale locale;
+    /** Literal strings, with Integer argument indexes in between. */
+    private final Object[] parts;
+    private volatile ThreadLocal<MessageFormat> format;
+
+    /**
+     * @throws IllegalArgumentException if the pattern has a negative
+     *     argument index
+     */
+    Message(String key, String text, Locale locale) {
+      this.text = text;
+      this.locale = locale;
+      this.parts = parse(key, text, locale);
+    }
+
+    String format(Object[] arguments) {
+      if (parts != null) {
+        StringBuilder sb = new StringBuilder(text.length() + 16);
+        for (Object part : parts) {
+          if (part instanceof String) {
+            sb.append((String) part);
+            continue;
+          }
+          int index = (Integer) part;
+          if (index >= arguments.length) {
+            sb.append('{').append(index).append('}');
+            continue;
+          }
+          Object argument = arguments[index];
+          if (argument == null || argument instanceof String) {
+            sb.append(argument);
+          } else {
+            return messageFormat().format(arguments);
+          }
+        }
+        return sb.toString();
+      }
+      return messageFormat().format(arguments);
+    }
+
+    private MessageFormat messageFormat() {
+      ThreadLocal<MessageFormat> local = format;
+      if (local == null) {
+        local = ThreadLocal.withInitial(() -> new MessageFormat(text, locale));
+        format = local;
+      }
+      return local.get();
+    }
+
+    /** Returns null if the pattern needs a full MessageFormat. */
+    private static Object[] parse(String key, String pattern, Locale locale) {
+      List<Object> parts = new ArrayList<>();
+      StringBuilder literal = new StringBuilder();
+      boolean quoted = false;
+      for (int i = 0; i < pattern.length(); i++) {
+        char c = pattern.charAt(i);
+        if (c == '\'') {
+          if (i + 1 < pattern.length() && pattern.charAt(i + 1) == '\'') {
+            literal.append('\'');
+            i++;
+          } else {
+            quoted = !quoted;
+          }
+        } else if (c == '{' && !quoted) {
+          int close = pattern.indexOf('}', i);
+          if (close < 0) {
+            return null;
+          }
+          int index;
+          try {
+            index = Integer.parseInt(pattern.substring(i + 1, close).trim());
+          } catch (NumberFormatException e) {
+            return null; // {0,number}, {0,date,short} and so on
+          }
+          if (index < 0) {
+            throw new IllegalArgumentException("Negative argument index "
+                + index + " in message " + key + " for " + locale);
+          }
+          if (literal.length() > 0) {
+            parts.add(literal.toString());
+            literal.setLength(0);
+          }
+          parts.add(index);
+          i = close;
+        } else {
+          literal.append(c);
+        }
+      }
+      if (literal.length() > 0) {
+        parts.add(literal.toString());
+      }
+      return parts.toArray();
+    }
+  }
+}
@@ -0,0 +1,263 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * {@link SessionStore} in this instance, with the values kept outside the
+ * Java heap so that a large number of conversations does not add to garbage
+ * collection work.
+ *
+ * <p>Values live in one direct buffer of {@code maxEntries} slots of
+ * {@code slotBytes} each; only the key and a small slot descriptor per
+ * entry are on the heap. Every access to a slot happens inside a
+ * {@link ConcurrentHashMap#compute} of its key, which serializes writes and
+ * reads of a conversation and makes it safe to reuse a slot as soon as its
+ * entry is removed.
+ *
+ * <p>Entries expire {@code ttlMillis} after they were last written. Slots in
+ * use are kept in the order they were last written, so the oldest is always
+ * the first to expire, and when all slots are taken the least recently
+ * written entry is evicted to make room. Rewriting a slot moves it to the
+ * end, so the order never holds more than {@code maxEntries} slots.
+ */
+final class OffHeapSessionStore implements SessionStore {
+
+  private final ByteBuffer arena;
+  private final int slotBytes;
+  private final long ttlNanos;
+  private final LongSupplier nanoClock;
+  private final ConcurrentMap<String, Slot> slots = new ConcurrentHashMap<>();
+  /** Indexes of unused slots; guarded by itself, as is the rest below. */
+  private final int[] free;
+  private int freeCount;
+  /** Current slots by index, least recently written first. */
+  private final LinkedHashMap<Integer, Slot> order = new LinkedHashMap<>();
+
+  OffHeapSessionStore(Config config) {
+    this(config, System::nanoTime);
+  }
+
+  OffHeapSessionStore(Config config, LongSupplier nanoClock) {
+    if (config.maxEntries <= 0 || config.slotBytes <= 0
+        || (long) config.maxEntries * config.slotBytes > Integer.MAX_VALUE) {
+      throw new IllegalArgumentException("Invalid session store size: "
+          + config.maxEntries + " slots of " + config.slotBytes + " bytes");
+    }
+    this.arena =
+        ByteBuffer.allocateDirect(config.maxEntries * config.slotBytes);
+    this.slotBytes = config.slotBytes;
+    this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(config.ttlMillis);
+    this.nanoClock = nanoClock;
+    this.free = new int[config.maxEntries];
+    for (int i = 0; i < free.length; i++) {
+      free[i] = free.length - 1 - i;
+    }
+    this.freeCount = free.length;
+  }
+
+  @Override
+  public byte[] get(String key) {
+    long now = nanoClock.getAsLong();
+    byte[][] value = new byte[1][];
+    slots.computeIfPresent(key, (k, slot) -> {
+      if (slot.expired(now, ttlNanos)) {
+        release(slot.index);
+        return null;
+      }
+      value[0] = read(slot);
+      return slot;
+    });
+    return value[0];
+  }
+
+  @Override
+  public boolean compareAndSet(String key, byte[] expected, byte[] value)
+      throws IOException {
+    if (value.length > slotBytes) {
+      throw new IOException("Session state of " + value.length
+          + " bytes exceeds actions.sessions.slotBytes=" + slotBytes);
+    }
+    while (true) {
+      long now = nanoClock.getAsLong();
+      evict(now, false);
+      // 1 if stored, 0 if expected did not match, -1 if no slot was free
+      int[] outcome = new int[1];
+      slots.compute(key, (k, slot) -> {
+        if (slot != null && slot.expired(now, ttlNanos)) {
+          release(slot.index);
+          slot = null;
+        }
+        if (!matches(slot, expected)) {
+          return slot;
+        }
+        // Readers of the key wait for this, so the slot can be rewritten
+        int index = slot != null ? slot.index : allocate();
+        if (index < 0) {
+          outcome[0] = -1;
+          return null;
+        }
+        Slot next = new Slot(key, index, value.length, now);
+        write(next, value);
+        written(next);
+        outcome[0] = 1;
+        return next;
+      });
+      if (outcome[0] >= 0) {
+        return outcome[0] > 0;
+      }
+      evict(now, true);
+    }
+  }
+
+  /** Returns the number of entries, including expired ones not yet evicted. */
+  int size() {
+    return slots.size();
+  }
+
+  /**
+   * Removes expired entries, oldest first, and with {@code makeRoom} the
+   * least recently written entry if no slot is free.
+   */
+  private void evict(long now, boolean makeRoom) {
+    while (true) {
+      Slot oldest;
+      synchronized (free) {
+        Iterator<Slot> slotsInOrder = order.values().iterator();
+        oldest = slotsInOrder.hasNext() ? slotsInOrder.next() : null;
+        if (oldest == null
+            || (!oldest.expired(now, ttlNanos)
+                && (!makeRoom || freeCount > 0))) {
+          return;
+        }
+      }
+      // Not under the lock: compute may be waiting for it to write a slot
+      Slot head = oldest;
+      slots.computeIfPresent(head.key, (k, slot) -> {
+        if (slot != head) {
+          return slot;
+        }
+        release(slot.index);
+        return null;
+      });
+    }
+  }
+
+  private boolean matches(Slot slot, byte[] expected) {
+    if (slot == null || expected == null) {
+      return slot == null && expected == null;
+    }
+    if (slot.length != expected.length) {
+      return false;
+    }
+    int offset = slot.index * slotBytes;
+    for (int i = 0; i < expected.length; i++) {
+      if (arena.get(offset + i) != expected[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private byte[] read(Slot slot) {
+    byte[] value = new byte[slot.length];
+    ByteBuffer buffer = arena.duplicate();
+    buffer.position(slot.index * slotBytes);
+    buffer.get(value);
+    return value;
+  }
+
+  private void write(Slot slot, byte[] value) {
+    ByteBuffer buffer = arena.duplicate();
+    buffer.position(slot.index * slotBytes);
+    buffer.put(value);
+  }
+
+  /** Returns the index of a free slot, or -1 if there is none. */
+  private int allocate() {
+    synchronized (free) {
+      return freeCount > 0 ? free[--freeCount] : -1;
+    }
+  }
+
+  /** Moves a slot that was just written to the end of the order. */
+  private void written(Slot slot) {
+    synchronized (free) {
+      order.remove(slot.index);
+      order.put(slot.index, slot);
+    }
+  }
+
+  private void release(int index) {
+    synchronized (free) {
+      order.remove(index);
+      free[freeCount++] = index;
+    }
+  }
+
+  private static final class Slot {
+
+    final String key;
+    final int index;
+    final int length;
+    final long writtenNanos;
+
+    Slot(String key, int index, int length, long writtenNanos) {
+      this.key = key;
+      this.index = index;
+      this.length = length;
+      this.writtenNanos = writtenNanos;
+    }
+
+    boolean expired(long now, long ttlNanos) {
+      return now - writtenNanos >= ttlNanos;
+    }
+  }
+
+  static final class Config {
+
+    final int maxEntries;
+    final int slotBytes;
+    final long ttlMillis;
+
+    Config(int maxEntries, int slotBytes, long ttlMillis) {
+      this.maxEntries = maxEntries;
+      this.slotBytes = slotBytes;
+      this.ttlMillis = ttlMillis;
+    }
+
+    /**
+     * Uses {@code actions.sessions.maxEntries} (default 10000),
+     * {@code actions.sessions.slotBytes} (default 512) and
+     * {@code actions.sessions.ttlMillis} (default one hour).
+     */
+    static Config fromSystemProperties() {
+      return new Config(
+          Integer.getInteger("actions.sessions.maxEntries", 10000),
+          Integer.getInteger("actions.sessions.slotBytes", 512),
+          Long.getLong("actions.sessions.ttlMillis", 3600000L));
+    }
+  }
+}
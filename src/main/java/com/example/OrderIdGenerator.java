@@ -0,0 +1,157 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Generates unique, time-ordered order IDs without coordination between
+ * instances. An ID is 20 characters of Crockford base32: 11 for a stamp laid
+ * out as
+ * <pre>
+ *   42 bits milliseconds since 2019-01-01 | 12 bits sequence
+ * </pre>
+ * followed by 9 for a 45-bit node ID, so IDs sort in creation order as
+ * strings.
+ *
+ * <p>Within a node the stamp lives in one {@link AtomicLong} and is advanced
+ * with a compare-and-set, so generation never blocks. When more than 4096
+ * IDs are taken in one millisecond the sequence carries into the next
+ * millisecond instead of waiting for the clock, and a clock that steps
+ * backwards is ignored until it catches up again. Either way the IDs run
+ * ahead of the clock only for as long as that lasts.
+ *
+ * <p>The node ID is {@code actions.orderId.nodeId} if it is set, in which
+ * case every instance that can run at the same time must have a distinct
+ * value. Otherwise each instance picks a random one, which suits autoscaled
+ * deployments where instances cannot be numbered. Two instances then only
+ * issue the same ID if they picked the same node ID and take the same
+ * sequence in the same millisecond. The chance that any two of {@code n}
+ * instances pick the same node ID is about {@code n * n / 2^46}: one in a
+ * billion for 250 instances, one in 70 million for 1,000.
+ */
+final class OrderIdGenerator {
+
+  private static final Logger LOGGER =
+      LoggerFactory.getLogger(OrderIdGenerator.class);
+
+  static final long EPOCH_MILLIS = 1546300800000L; // 2019-01-01T00:00:00Z
+  static final int SEQUENCE_BITS = 12;
+  static final int NODE_BITS = 45;
+  static final long MAX_NODE_ID = (1L << NODE_BITS) - 1;
+
+  private static final int STAMP_LENGTH = 11;
+  private static final int NODE_LENGTH = 9;
+  static final int ID_LENGTH = STAMP_LENGTH + NODE_LENGTH;
+  private static final int USER_VISIBLE_LENGTH = 10;
+  private static final char[] ALPHABET =
+      "0123456789ABCDEFGHJKMNPQRSTVWXYZ".toCharArray();
+
+  private final char[] node = new char[NODE_LENGTH];
+  private final LongSupplier clock;
+  /** Milliseconds since the epoch shifted left, plus the sequence. */
+  private final AtomicLong state = new AtomicLong();
+
+  OrderIdGenerator(long nodeId) {
+    this(nodeId, System::currentTimeMillis);
+  }
+
+  OrderIdGenerator(long nodeId, LongSupplier clock) {
+    if (nodeId < 0 || nodeId > MAX_NODE_ID) {
+      throw new IllegalArgumentException(
+          "Node ID must be between 0 and " + MAX_NODE_ID + ": " + nodeId);
+    }
+    format(nodeId, node, 0, NODE_LENGTH);
+    this.clock = clock;
+  }
+
+  /** Uses {@code actions.orderId.nodeId}, or a random node ID if unset. */
+  static OrderIdGenerator fromSystemProperties() {
+    Long nodeId = Long.getLong("actions.orderId.nodeId");
+    if (nodeId == null) {
+      nodeId = new SecureRandom().nextLong() & MAX_NODE_ID;
+      LOGGER.info("Using random order ID node {}", nodeId);
+    }
+    return new OrderIdGenerator(nodeId);
+  }
+
+  /** Returns the stamp of the next ID. */
+  long nextStamp() {
+    long now = (clock.getAsLong() - EPOCH_MILLIS) << SEQUENCE_BITS;
+    while (true) {
+      long previous = state.get();
+      long next = Math.max(previous + 1, now);
+      if (state.compareAndSet(previous, next)) {
+        return next;
+      }
+    }
+  }
+
+  /** Returns the next ID. */
+  String next() {
+    char[] chars = new char[ID_LENGTH];
+    format(nextStamp(), chars, 0, STAMP_LENGTH);
+    System.arraycopy(node, 0, chars, STAMP_LENGTH, NODE_LENGTH);
+    return new String(chars);
+  }
+
+  /**
+   * Returns the short form of {@code orderId} shown to users: the last eight
+   * characters of the stamp, which hold the sequence and about three days'
+   * worth of the timestamp, and the first two of the node. It is easy to
+   * read out but is not unique over longer periods, so look orders up by
+   * the full ID. IDs of another length are shortened to their last ten
+   * characters. Returns null for null.
+   */
+  static String userVisible(String orderId) {
+    if (orderId == null) {
+      return null;
+    }
+    if (orderId.length() == ID_LENGTH) {
+      return orderId.substring(STAMP_LENGTH - 8, STAMP_LENGTH + 2);
+    }
+    return orderId.length() > USER_VISIBLE_LENGTH
+        ? orderId.substring(orderId.length() - USER_VISIBLE_LENGTH)
+        : orderId;
+  }
+
+  /** Returns the creation time, in epoch milliseconds, of an ID. */
+  static long timestampMillis(String orderId) {
+    long stamp = 0;
+    for (int i = 0; i < STAMP_LENGTH; i++) {
+      int digit = Arrays.binarySearch(ALPHABET, orderId.charAt(i));
+      if (digit < 0) {
+        throw new IllegalArgumentException("Not an order ID: " + orderId);
+      }
+      stamp = (stamp << 5) | digit;
+    }
+    return (stamp >>> SEQUENCE_BITS) + EPOCH_MILLIS;
+  }
+
+  private static void format(long value, char[] chars, int offset,
+      int length) {
+    for (int i = offset + length - 1; i >= offset; i--) {
+      chars[i] = ALPHABET[(int) (value & 31)];
+      value >>>= 5;
+    }
+  }
+}
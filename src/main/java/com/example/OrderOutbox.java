@@ -0,0 +1,497 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import com.google.api.services.actions_fulfillment.v2.model.OrderUpdateV3;
+import com.google.api.client.json.JsonFactory;
+import com.google.api.client.json.jackson2.JacksonFactory;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Append-only journal of order updates that have been accepted but not yet
+ * delivered to the Orders API. Appending costs a JSON encode and a copy
+ * into a memory-mapped segment, so it is cheap enough for the request path;
+ * the data is in the page cache as soon as {@link #append} returns and
+ * survives the process dying. Set {@code forceOnWrite} to also survive the
+ * machine going down, at the price of an msync per record.
+ *
+ * <p>The journal is a directory of fixed-size segment files. Each record is
+ * framed as
+ * <pre>
+ *   int length | int crc32 | byte type | long sequence | payload
+ * </pre>
+ * where {@code length} and {@code crc32} cover everything after the crc.
+ * {@code type} is either an update (payload is the JSON of the
+ * {@link OrderUpdateV3}) or an ack of an earlier sequence (no payload). The
+ * length is written last, so a zero length marks the end of a segment and a
+ * crc mismatch marks a torn write; either stops the scan of that segment.
+ *
+ * <p>When the journal is opened every segment is scanned in order and the
+ * updates without a matching ack are available from {@link #pending()}.
+ * Segments are deleted oldest first once every update in them has been
+ * acked, which keeps acks from outliving the updates they refer to. If more
+ * than {@code maxSegments} segments pile up because of a few unacked
+ * updates, those updates are copied forward into the active segment and the
+ * oldest segment is dropped.
+ *
+ * <p>A lock file keeps a second process from opening the same directory.
+ */
+final class OrderOutbox implements Closeable {
+
+  private static final Logger LOGGER =
+      LoggerFactory.getLogger(OrderOutbox.class);
+
+  private static final int MAGIC = 0x4f425831; // "OBX1"
+  private static final int SEGMENT_HEADER_SIZE = 8;
+  private static final int RECORD_HEADER_SIZE = 4 + 4 + 1 + 8;
+  private static final byte TYPE_UPDATE = 1;
+  private static final byte TYPE_ACK = 2;
+  private static final String SEGMENT_PREFIX = "outbox-";
+  private static final String SEGMENT_SUFFIX = ".seg";
+
+  private static final JsonFactory JSON = JacksonFactory.getDefaultInstance();
+
+  private final Config config;
+  private final FileChannel lockChannel;
+  private final FileLock lock;
+  private final CRC32 crc = new CRC32();
+
+  /** Unacked updates by sequence. */
+  private final TreeMap<Long, Record> pending = new TreeMap<>();
+  /** Oldest first; the last one is the segment being appended to. */
+  private final ArrayDeque<Segment> segments = new ArrayDeque<>();
+
+  private Segment active;
+  private long nextSequence = 1;
+  private boolean closed;
+
+  private OrderOutbox(Config config, FileChannel lockChannel, FileLock lock) {
+    this.config = config;
+    this.lockChannel = lockChannel;
+    this.lock = lock;
+  }
+
+  /**
+   * Opens the journal in {@code config.directory}, creating it if needed,
+   * and recovers the unacked updates of a previous run.
+   */
+  static OrderOutbox open(Config config) throws IOException {
+    Files.createDirectories(config.directory);
+    FileChannel lockChannel = FileChannel.open(
+        config.directory.resolve("lock"),
+        StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+    FileLock lock = lockChannel.tryLock();
+    if (lock == null) {
+      lockChannel.close();
+      throw new IOException("Outbox " + config.directory
+          + " is in use by another process");
+    }
+    OrderOutbox outbox = new OrderOutbox(config, lockChannel, lock);
+    try {
+      outbox.recover();
+    } catch (IOException | RuntimeException e) {
+      outbox.close();
+      throw e;
+    }
+    return outbox;
+  }
+
+  /**
+   * Journals {@code update}.
+   *
+   * @return the sequence number to {@link #ack} once the update is delivered
+   */
+  long append(OrderUpdateV3 update) throws IOException {
+    byte[] payload = JSON.toByteArray(update);
+    synchronized (this) {
+      checkOpen();
+      long sequence = nextSequence++;
+      write(TYPE_UPDATE, sequence, payload);
+      Record record = new Record(payload, active);
+      pending.put(sequence, record);
+      active.live++;
+      return sequence;
+    }
+  }
+
+  /** Marks the update with {@code sequence} as delivered. */
+  synchronized void ack(long sequence) throws IOException {
+    checkOpen();
+    Record record = pending.remove(sequence);
+    if (record == null) {
+      return;
+    }
+    write(TYPE_ACK, sequence, null);
+    record.segment.live--;
+    deleteAckedSegments();
+  }
+
+  /**
+   * Returns the unacked updates, oldest first. Each is parsed when its
+   * {@link Entry#update()} is called, so one unreadable record does not keep
+   * the others from being read.
+   */
+  List<Entry> pending() {
+    List<Map.Entry<Long, Record>> snapshot;
+    synchronized (this) {
+      snapshot = new ArrayList<>(pending.entrySet());
+    }
+    List<Entry> entries = new ArrayList<>(snapshot.size());
+    for (Map.Entry<Long, Record> e : snapshot) {
+      entries.add(new Entry(e.getKey(), e.getValue().payload));
+    }
+    return entries;
+  }
+
+  synchronized int pendingCount() {
+    return pending.size();
+  }
+
+  @Override
+  public synchronized void close() throws IOException {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    try {
+      if (active != null && active.channel != null) {
+        active.buffer.force();
+        active.channel.close();
+      }
+    } finally {
+      try {
+        lock.release();
+      } finally {
+        lockChannel.close();
+      }
+    }
+  }
+
+  private void checkOpen() throws IOException {
+    if (closed) {
+      throw new IOException("Outbox is closed");
+    }
+  }
+
+  private static int recordLength(byte[] payload) {
+    return RECORD_HEADER_SIZE + (payload != null ? payload.length : 0);
+  }
+
+  private void write(byte type, long sequence, byte[] payload)
+      throws IOException {
+    int recordLength = recordLength(payload);
+    if (recordLength > config.segmentSize - SEGMENT_HEADER_SIZE) {
+      throw new IOException("Order update of " + payload.length
+          + " bytes does not fit in an outbox segment");
+    }
+    if (active.buffer.remaining() < recordLength) {
+      roll();
+    }
+
+    MappedByteBuffer buffer = active.buffer;
+    int start = buffer.position();
+    int bodyLength = recordLength - 8;
+    buffer.position(start + 8);
+    buffer.put(type).putLong(sequence);
+    if (payload != null) {
+      buffer.put(payload);
+    }
+    ByteBuffer body = buffer.duplicate();
+    body.position(start + 8).limit(start + recordLength);
+    crc.reset();
+    crc.update(body);
+    buffer.putInt(start + 4, (int) crc.getValue());
+    // The length goes in last: until it is non-zero the record does not exist
+    buffer.putInt(start, bodyLength);
+    if (config.forceOnWrite) {
+      buffer.force();
+    }
+  }
+
+  /** Starts a new active segment and compacts the old ones. */
+  private void roll() throws IOException {
+    Segment previous = active;
+    active = createSegment(previous.index + 1);
+    segments.addLast(active);
+    previous.buffer.force();
+    previous.buffer = null;
+    previous.channel.close();
+    previous.channel = null;
+    deleteAckedSegments();
+    if (segments.size() > config.maxSegments) {
+      carryForward(segments.peekFirst());
+    }
+  }
+
+  /** Deletes the longest run of fully acked segments at the head. */
+  private void deleteAckedSegments() throws IOException {
+    while (segments.size() > 1 && segments.peekFirst().live == 0) {
+      Files.deleteIfExists(segments.removeFirst().path);
+    }
+  }
+
+  /**
+   * Copies the unacked updates of {@code oldest} into the active segment
+   * and deletes it. A crash in between leaves both copies, which replay
+   * collapses by sequence. Nothing is copied unless it fits comfortably,
+   * so a mostly live segment is left alone rather than moved around.
+   */
+  private void carryForward(Segment oldest) throws IOException {
+    List<Map.Entry<Long, Record>> carried = new ArrayList<>();
+    long bytes = 0;
+    for (Map.Entry<Long, Record> e : pending.entrySet()) {
+      if (e.getValue().segment == oldest) {
+        carried.add(e);
+        bytes += recordLength(e.getValue().payload);
+      }
+    }
+    if (bytes > active.buffer.remaining() / 2) {
+      return;
+    }
+    for (Map.Entry<Long, Record> e : carried) {
+      write(TYPE_UPDATE, e.getKey(), e.getValue().payload);
+      e.getValue().segment = active;
+    }
+    active.live += carried.size();
+    oldest.live = 0;
+    LOGGER.info("Carried {} unacked order updates forward from {}",
+        carried.size(), oldest.path.getFileName());
+    deleteAckedSegments();
+  }
+
+  private void recover() throws IOException {
+    List<Path> paths = new ArrayList<>();
+    try (DirectoryStream<Path> stream = Files.newDirectoryStream(
+        config.directory, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+      for (Path path : stream) {
+        paths.add(path);
+      }
+    }
+    Collections.sort(paths);
+
+    long records = 0;
+    long lastIndex = 0;
+    int end = 0;
+    for (Path path : paths) {
+      Segment segment = new Segment(path, parseIndex(path));
+      lastIndex = segment.index;
+      ByteBuffer data = ByteBuffer.wrap(Files.readAllBytes(path));
+      if (data.remaining() < SEGMENT_HEADER_SIZE || data.getInt() != MAGIC) {
+        LOGGER.warn("Ignoring outbox segment {} with a bad header", path);
+        continue;
+      }
+      data.getInt(); // reserved
+      end = scan(segment, data);
+      records += segment.records;
+      segments.addLast(segment);
+    }
+    for (Record record : pending.values()) {
+      record.segment.live++;
+    }
+
+    Segment last = segments.peekLast();
+    if (last != null && last.index == lastIndex
+        && Files.size(last.path) == config.segmentSize
+        && config.segmentSize - end >= RECORD_HEADER_SIZE) {
+      // Keep appending where the previous run stopped, overwriting any
+      // partial record it left behind
+      active = last;
+      active.channel = FileChannel.open(last.path,
+          StandardOpenOption.READ, StandardOpenOption.WRITE);
+      active.buffer = active.channel.map(FileChannel.MapMode.READ_WRITE, 0,
+          config.segmentSize);
+      for (int i = end; i < config.segmentSize; i++) {
+        active.buffer.put(i, (byte) 0);
+      }
+      active.buffer.position(end);
+    } else {
+      active = createSegment(lastIndex + 1);
+      segments.addLast(active);
+    }
+    deleteAckedSegments();
+    if (records > 0) {
+      LOGGER.info("Recovered outbox {}: {} records, {} unacked order updates",
+          config.directory, records, pending.size());
+    }
+  }
+
+  /** Reads the records of one segment; returns the offset after the last. */
+  private int scan(Segment segment, ByteBuffer data) {
+    while (data.remaining() >= RECORD_HEADER_SIZE) {
+      int start = data.position();
+      int bodyLength = data.getInt();
+      if (bodyLength == 0) {
+        return start;
+      }
+      if (bodyLength < RECORD_HEADER_SIZE - 8
+          || bodyLength > data.remaining() - 4) {
+        LOGGER.warn("Truncated record at {} in {}", start, segment.path);
+        return start;
+      }
+      int expectedCrc = data.getInt();
+      ByteBuffer body = data.slice();
+      body.limit(bodyLength);
+      crc.reset();
+      crc.update(body);
+      if ((int) crc.getValue() != expectedCrc) {
+        LOGGER.warn("Corrupt record at {} in {}", start, segment.path);
+        return start;
+      }
+      byte type = data.get();
+      long sequence = data.getLong();
+      byte[] payload = new byte[bodyLength - 9];
+      data.get(payload);
+      segment.records++;
+      nextSequence = Math.max(nextSequence, sequence + 1);
+      if (type == TYPE_UPDATE) {
+        // A carried-forward copy replaces the original
+        pending.put(sequence, new Record(payload, segment));
+      } else if (type == TYPE_ACK) {
+        pending.remove(sequence);
+      }
+    }
+    return data.position();
+  }
+
+  private Segment createSegment(long index) throws IOException {
+    Path path = config.directory.resolve(
+        String.format("%s%016d%s", SEGMENT_PREFIX, index, SEGMENT_SUFFIX));
+    Segment segment = new Segment(path, index);
+    segment.channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW,
+        StandardOpenOption.READ, StandardOpenOption.WRITE);
+    segment.buffer = segment.channel.map(FileChannel.MapMode.READ_WRITE, 0,
+        config.segmentSize);
+    segment.buffer.putInt(MAGIC).putInt(0);
+    return segment;
+  }
+
+  private static long parseIndex(Path path) {
+    String name = path.getFileName().toString();
+    return Long.parseLong(name.substring(SEGMENT_PREFIX.length(),
+        name.length() - SEGMENT_SUFFIX.length()));
+  }
+
+  /** One segment file and the number of unacked updates it still holds. */
+  private static final class Segment {
+
+    final Path path;
+    final long index;
+    int live;
+    int records;
+    FileChannel channel;
+    MappedByteBuffer buffer;
+
+    Segment(Path path, long index) {
+      this.path = path;
+      this.index = index;
+    }
+  }
+
+  /** An unacked update and the segment holding its newest copy. */
+  private static final class Record {
+
+    final byte[] payload;
+    Segment segment;
+
+    Record(byte[] payload, Segment segment) {
+      this.payload = payload;
+      this.segment = segment;
+    }
+  }
+
+  /** An unacked update and the sequence to ack it with. */
+  static final class Entry {
+
+    private final long sequence;
+    private final byte[] payload;
+
+    Entry(long sequence, byte[] payload) {
+      this.sequence = sequence;
+      this.payload = payload;
+    }
+
+    long sequence() {
+      return sequence;
+    }
+
+    /**
+     * Parses the update.
+     *
+     * @throws IOException if the record passed its checksum but is not an
+     *     {@link OrderUpdateV3}
+     */
+    OrderUpdateV3 update() throws IOException {
+      try {
+        return JSON.createJsonParser(new ByteArrayInputStream(payload))
+            .parse(OrderUpdateV3.class);
+      } catch (IllegalArgumentException e) {
+        throw new IOException("Unreadable order update " + sequence, e);
+      }
+    }
+  }
+
+  /** Location and sizing of the journal. */
+  static final class Config {
+
+    final Path directory;
+    final int segmentSize;
+    final int maxSegments;
+    final boolean forceOnWrite;
+
+    Config(Path directory, int segmentSize, int maxSegments,
+        boolean forceOnWrite) {
+      this.directory = directory;
+      this.segmentSize = segmentSize;
+      this.maxSegments = maxSegments;
+      this.forceOnWrite = forceOnWrite;
+    }
+
+    /** Returns null unless {@code actions.outbox.dir} is set. */
+    static Config fromSystemProperties() {
+      String directory = System.getProperty("actions.outbox.dir");
+      if (directory == null || directory.isEmpty()) {
+        return null;
+      }
+      return new Config(
+          Paths.get(directory),
+          Integer.getInteger("actions.outbox.segmentSize", 4 << 20),
+          Integer.getInteger("actions.outbox.maxSegments", 8),
+          Boolean.parseBoolean(
+              System.getProperty("actions.outbox.forceOnWrite", "false")));
+    }
+  }
+}
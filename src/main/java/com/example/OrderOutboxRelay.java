@@ -0,0 +1,126 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import com.google.api.services.actions_fulfillment.v2.model.OrderUpdateV3;
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Delivers the updates journaled in an {@link OrderOutbox} and acks them.
+ * Updates are sent oldest first; a pass stops at the first update that
+ * fails with a retryable error (429, 5xx or I/O) so that updates for an
+ * order are never delivered out of order, and the next pass picks it up
+ * again. Updates rejected outright, updates whose send throws an unexpected
+ * exception and records that cannot be parsed are logged and acked, so that
+ * one bad record cannot hold up everything behind it.
+ */
+final class OrderOutboxRelay implements Closeable {
+
+  private static final Logger LOGGER =
+      LoggerFactory.getLogger(OrderOutboxRelay.class);
+
+  private final OrderOutbox outbox;
+  private final OrderUpdateClient client;
+  private final ScheduledExecutorService scheduler =
+      Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "order-outbox-relay");
+        thread.setDaemon(true);
+        return thread;
+      });
+
+  OrderOutboxRelay(OrderOutbox outbox, OrderUpdateClient client) {
+    this.outbox = outbox;
+    this.client = client;
+  }
+
+  /** Drains the outbox now and then every {@code intervalMillis}. */
+  void start(long intervalMillis) {
+    scheduler.scheduleWithFixedDelay(() -> {
+      try {
+        drain();
+      } catch (RuntimeException e) {
+        LOGGER.error("Order outbox relay failed", e);
+      }
+    }, 0, intervalMillis, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Sends every pending update once.
+   *
+   * @return the number of updates still pending afterwards
+   */
+  int drain() {
+    for (OrderOutbox.Entry entry : outbox.pending()) {
+      OrderUpdateV3 update;
+      String orderId;
+      try {
+        update = entry.update();
+        orderId = update.getOrder().getMerchantOrderId();
+      } catch (IOException | RuntimeException e) {
+        LOGGER.error("Dropping unreadable order update " + entry.sequence()
+            + " from the outbox", e);
+        if (!ack(entry)) {
+          break;
+        }
+        continue;
+      }
+      try {
+        int code = client.send(update);
+        if (code == 429 || code >= 500) {
+          LOGGER.warn("Order update for {} failed with {}, will retry",
+              orderId, code);
+          break;
+        }
+        if (code < 200 || code >= 300) {
+          LOGGER.error("Order update for {} rejected with {}", orderId, code);
+        }
+      } catch (IOException e) {
+        LOGGER.warn("Order update for {} failed, will retry: {}", orderId,
+            e.toString());
+        break;
+      } catch (RuntimeException e) {
+        // Sending it again would fail the same way
+        LOGGER.error("Order update for " + orderId + " failed", e);
+      }
+      if (!ack(entry)) {
+        break;
+      }
+    }
+    return outbox.pendingCount();
+  }
+
+  private boolean ack(OrderOutbox.Entry entry) {
+    try {
+      outbox.ack(entry.sequence());
+      return true;
+    } catch (IOException e) {
+      LOGGER.error("Could not ack order update " + entry.sequence(), e);
+      return false;
+    }
+  }
+
+  @Override
+  public void close() {
+    scheduler.shutdownNow();
+  }
+}
@@ -0,0 +1,309 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import com.google.api.services.actions_fulfillment.v2.model.Action;
+import com.google.api.services.actions_fulfillment.v2.model.LineItemV3;
+import com.google.api.services.actions_fulfillment.v2.model.Location;
+import com.google.api.services.actions_fulfillment.v2.model.MerchantV3;
+import com.google.api.services.actions_fulfillment.v2.model.MoneyV3;
+import com.google.api.services.actions_fulfillment.v2.model.OpenUrlAction;
+import com.google.api.services.actions_fulfillment.v2.model.OrderContents;
+import com.google.api.services.actions_fulfillment.v2.model.OrderOptionsV3;
+import com.google.api.services.actions_fulfillment.v2.model.OrderV3;
+import com.google.api.services.actions_fulfillment.v2.model.PresentationOptionsV3;
+import com.google.api.services.actions_fulfillment.v2.model.PriceAttribute;
+import com.google.api.services.actions_fulfillment.v2.model.PurchaseFulfillmentInfo;
+import com.google.api.services.actions_fulfillment.v2.model.PurchaseOrderExtension;
+import com.google.api.services.actions_fulfillment.v2.model.PurchaseReturnsInfo;
+import com.google.api.services.actions_fulfillment.v2.model.TimeV3;
+import com.google.api.services.actions_fulfillment.v2.model.UserInfo;
+import com.google.api.services.actions_fulfillment.v2.model.UserInfoOptions;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The parts of an order that are the same for every transaction decision:
+ * merchant, line items, prices, follow-up actions and fulfillment details.
+ * They are built once and shared by every {@link OrderV3} created from the
+ * template, so a request only allocates the few objects that carry its own
+ * order ID, timestamps and delivery location. Line items are built from the
+ * {@link ProductCatalog} and rebuilt after it is reloaded; the order's
+ * prices are worked out by {@link PriceEngine} for the delivery location,
+ * with the delivery fee and time of the {@link DeliveryZones} zone that
+ * serves it.
+ *
+ * <p>Shared objects must be treated as read-only once the template is built.
+ */
+final class OrderTemplate {
+
+  static final String CURRENCY_CODE = "USD";
+
+  private final MerchantV3 merchant;
+  private final ProductCatalog catalog;
+  private final List<String> productIds;
+  /** Line items of {@code productIds} built from a catalog snapshot. */
+  private volatile Contents contents;
+  private final UserInfo buyerInfo;
+  private final PriceEngine prices;
+  /** Order price attributes of the last quote, reused while it is the same. */
+  private volatile Prices lastPrices;
+  private final List<Action> followUpActions;
+  private final String termsOfServiceUrl;
+  private final String note;
+  private final PurchaseReturnsInfo returnsInfo;
+  private final UserInfo fulfillmentContact;
+  private final PresentationOptionsV3 presentationOptions;
+  private final OrderOptionsV3 orderOptions;
+
+  private OrderTemplate(MerchantV3 merchant, ProductCatalog catalog,
+      List<String> productIds, UserInfo buyerInfo,
+      PriceEngine prices, List<Action> followUpActions,
+      String termsOfServiceUrl, String note, PurchaseReturnsInfo returnsInfo,
+      UserInfo fulfillmentContact) {
+    this.merchant = merchant;
+    this.catalog = catalog;
+    this.productIds = Collections.unmodifiableList(productIds);
+    this.buyerInfo = buyerInfo;
+    this.prices = prices;
+    this.followUpActions = Collections.unmodifiableList(followUpActions);
+    this.termsOfServiceUrl = termsOfServiceUrl;
+    this.note = note;
+    this.returnsInfo = returnsInfo;
+    this.fulfillmentContact = fulfillmentContact;
+    this.presentationOptions = new PresentationOptionsV3()
+        .setActionDisplayName("PLACE_ORDER");
+    this.orderOptions = new OrderOptionsV3()
+        .setUserInfoOptions(new UserInfoOptions()
+            .setUserInfoProperties(Collections.singletonList("EMAIL")));
+  }
+
+  /**
+   * Template for the memoir collection sold by this sample: one of each
+   * memoir in {@code catalog}, priced by {@code prices}.
+   */
+  static OrderTemplate memoirCollection(ProductCatalog catalog,
+      PriceEngine prices) {
+    return new OrderTemplate(
+        new MerchantV3()
+            .setId("http://www.example.com")
+            .setName("Example Merchant"),
+        catalog,
+        Arrays.asList("memoirs_1", "memoirs_2", "memoirs_3", "memoirs_4"),
+        new UserInfo()
+            .setEmail("janedoe@gmail.com")
+            .setFirstName("Jane")
+            .setLastName("Doe")
+            .setDisplayName("Jane Doe"),
+        prices,
+        Arrays.asList(
+            action("VIEW_DETAILS", "View details", "https://example.com"),
+            action("CALL", "Call us", "tel:+16501112222"),
+            action("EMAIL", "Email us", "mailto:person@example.com")),
+        "https://example.com",
+        "The Memoir collection",
+        new PurchaseReturnsInfo()
+            .setIsReturnable(false)
+            .setDaysToReturn(1)
+            .setPolicyUrl("https://example.com"),
+        new UserInfo()
+            .setEmail("johnjohnson@gmail.com")
+            .setFirstName("John")
+            .setLastName("Johnson")
+            .setDisplayName("John Johnson"));
+  }
+
+  /**
+   * Creates an order from this template, delivered to {@code location} in
+   * {@code zone}, and fills in {@code quote} with the prices the order
+   * shows. Only the order itself, its purchase and fulfillment extensions
+   * and the expected delivery time are allocated; everything else is shared
+   * with the template or, for the price attributes, with the previous order
+   * at the same prices.
+   */
+  OrderV3 newOrder(String orderId, String userVisibleOrderId, Instant now,
+      Location location, DeliveryZones.Zone zone, PriceEngine.Quote quote) {
+    Contents contents = contents();
+    DeliveryZones.Rate rate = zone.rate;
+    prices.quote(contents.subtotalMicros,
+        rate.feeMicros(contents.subtotalMicros),
+        prices.taxRule(location, CURRENCY_CODE), quote);
+    Prices orderPrices = prices(quote);
+    String createTime = now.toString();
+    PurchaseOrderExtension purchaseOrderExtension = new PurchaseOrderExtension()
+        .setStatus("CREATED")
+        .setUserVisibleStatusLabel("CREATED")
+        .setType("RETAIL")
+        .setReturnsInfo(returnsInfo)
+        .setFulfillmentInfo(new PurchaseFulfillmentInfo()
+            .setId("FULFILLMENT_SERVICE_ID")
+            .setFulfillmentType("DELIVERY")
+            .setExpectedFulfillmentTime(new TimeV3().setTimeIso8601(
+                now.plus(rate.etaMinutes, ChronoUnit.MINUTES).toString()))
+            .setLocation(location)
+            .setPrice(orderPrices.fulfillmentPrice)
+            .setFulfillmentContact(fulfillmentContact))
+        .setPurchaseLocationType("ONLINE_PURCHASE");
+
+    return new OrderV3()
+        .setCreateTime(createTime)
+        .setLastUpdateTime(createTime)
+        .setMerchantOrderId(orderId)
+        .setUserVisibleOrderId(userVisibleOrderId)
+        .setTransactionMerchant(merchant)
+        .setContents(contents.contents)
+        .setBuyerInfo(buyerInfo)
+        .setPriceAttributes(orderPrices.attributes)
+        .setFollowUpActions(followUpActions)
+        .setTermsOfServiceUrl(termsOfServiceUrl)
+        .setNote(note)
+        .setPurchase(purchaseOrderExtension);
+  }
+
+  /**
+   * Returns the line items from the current catalog and their subtotal,
+   * building them only when the catalog has been reloaded since they were
+   * last built.
+   */
+  private Contents contents() {
+    ProductCatalog.Snapshot snapshot = catalog.current();
+    Contents built = contents;
+    if (built == null || built.snapshot != snapshot) {
+      List<LineItemV3> lineItems = new ArrayList<>(productIds.size());
+      long subtotalMicros = 0;
+      for (String id : productIds) {
+        LineItemV3 lineItem = snapshot.lineItem(id, 1);
+        if (lineItem == null) {
+          throw new IllegalStateException(
+              "Product " + id + " is not in the catalog");
+        }
+        lineItems.add(lineItem);
+        subtotalMicros = Math.addExact(subtotalMicros, totalMicros(lineItem));
+      }
+      built = new Contents(snapshot, new OrderContents()
+          .setLineItems(Collections.unmodifiableList(lineItems)),
+          subtotalMicros);
+      contents = built;
+    }
+    return built;
+  }
+
+  private static long totalMicros(LineItemV3 lineItem) {
+    for (PriceAttribute price : lineItem.getPriceAttributes()) {
+      if (price.getType().equals("TOTAL")) {
+        return price.getAmount().getAmountInMicros();
+      }
+    }
+    throw new IllegalStateException("Line item " + lineItem.getId()
+        + " has no total");
+  }
+
+  /** Returns the order and delivery price attributes for {@code quote}. */
+  private Prices prices(PriceEngine.Quote quote) {
+    Prices last = lastPrices;
+    if (last != null && last.matches(quote)) {
+      return last;
+    }
+    Prices built = new Prices(quote);
+    lastPrices = built;
+    return built;
+  }
+
+  PresentationOptionsV3 presentationOptions() {
+    return presentationOptions;
+  }
+
+  OrderOptionsV3 orderOptions() {
+    return orderOptions;
+  }
+
+  /** Returns the unit and total price attributes of a line item. */
+  static List<PriceAttribute> itemPrices(long unitMicros, long totalMicros) {
+    return Collections.unmodifiableList(Arrays.asList(
+        price("REGULAR", "Item Price", "ACTUAL", unitMicros),
+        price("TOTAL", "Total Price", "ACTUAL", totalMicros)));
+  }
+
+  private static PriceAttribute price(String type, String name, String state,
+      long amountInMicros) {
+    return new PriceAttribute()
+        .setType(type)
+        .setName(name)
+        .setState(state)
+        .setAmount(new MoneyV3()
+            .setCurrencyCode(CURRENCY_CODE)
+            .setAmountInMicros(amountInMicros))
+        .setTaxIncluded(true);
+  }
+
+  private static final class Contents {
+
+    final ProductCatalog.Snapshot snapshot;
+    final OrderContents contents;
+    final long subtotalMicros;
+
+    Contents(ProductCatalog.Snapshot snapshot, OrderContents contents,
+        long subtotalMicros) {
+      this.snapshot = snapshot;
+      this.contents = contents;
+      this.subtotalMicros = subtotalMicros;
+    }
+  }
+
+  private static final class Prices {
+
+    final long subtotalMicros;
+    final long deliveryMicros;
+    final long taxMicros;
+    final long totalMicros;
+    final List<PriceAttribute> attributes;
+    final PriceAttribute fulfillmentPrice;
+
+    Prices(PriceEngine.Quote quote) {
+      this.subtotalMicros = quote.subtotalMicros;
+      this.deliveryMicros = quote.deliveryMicros;
+      this.taxMicros = quote.taxMicros;
+      this.totalMicros = quote.totalMicros;
+      this.attributes = Collections.unmodifiableList(Arrays.asList(
+          price("SUBTOTAL", "Subtotal", "ESTIMATE", subtotalMicros),
+          price("DELIVERY", "Delivery", "ACTUAL", deliveryMicros),
+          price("TAX", "Tax", "ESTIMATE", taxMicros),
+          price("TOTAL", "Total Price", "ESTIMATE", totalMicros)));
+      this.fulfillmentPrice =
+          price("REGULAR", "Delivery price", "ACTUAL", deliveryMicros);
+    }
+
+    boolean matches(PriceEngine.Quote quote) {
+      return quote.subtotalMicros == subtotalMicros
+          && quote.deliveryMicros == deliveryMicros
+          && quote.taxMicros == taxMicros
+          && quote.totalMicros == totalMicros;
+    }
+  }
+
+  private static Action action(String type, String title, String url) {
+    return new Action()
+        .setType(type)
+        .setTitle(title)
+        .setOpenUrlAction(new OpenUrlAction()
+            .setUrl(url));
+  }
+}
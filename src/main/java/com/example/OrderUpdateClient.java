@@ -0,0 +1,220 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import com.google.api.services.actions_fulfillment.v2.model.OrderUpdateV3;
+import com.google.auth.oauth2.ServiceAccountCredentials;
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import java.io.Closeable;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpPatch;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.util.EntityUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Long-lived client for the Actions Orders API. Connections are pooled and
+ * kept alive between updates, and the OAuth access token is cached and
+ * refreshed in the background by {@link AccessTokenCache}.
+ *
+ * <p>Settings are read from system properties by
+ * {@link Config#fromSystemProperties()}; pointing
+ * {@code actions.orders.baseUrl} at a local stub server and supplying a
+ * fixed {@link AccessTokenCache.TokenSource} makes the client testable
+ * without network access.
+ *
+ * <p>Besides the connect and socket timeouts, which bound each step, a whole
+ * update is bounded by {@code actions.orders.requestTimeoutMillis}, or by the
+ * {@link Deadline} of the webhook request it is sent from if that is sooner:
+ * an update that would start after it fails at once, and one still running
+ * when it expires is aborted.
+ */
+final class OrderUpdateClient implements Closeable {
+
+  private static final Logger LOGGER =
+      LoggerFactory.getLogger(OrderUpdateClient.class);
+  private static final String SERVICE_ACCOUNT_KEY_FILE = "service-account.json";
+  private static final String ORDERS_SCOPE =
+      "https://www.googleapis.com/auth/actions.order.developer";
+
+  private final Config config;
+  private final Gson gson;
+  private final AccessTokenCache tokens;
+  private final PoolingHttpClientConnectionManager connectionManager;
+  private final CloseableHttpClient httpClient;
+
+  OrderUpdateClient(Config config, Gson gson,
+      AccessTokenCache.TokenSource tokenSource) {
+    this.config = config;
+    this.gson = gson;
+    this.tokens = new AccessTokenCache(tokenSource,
+        config.tokenRefreshMarginMillis);
+    this.connectionManager = new PoolingHttpClientConnectionManager(
+        config.connectionTimeToLiveMillis, TimeUnit.MILLISECONDS);
+    connectionManager.setMaxTotal(config.maxConnections);
+    connectionManager.setDefaultMaxPerRoute(config.maxConnections);
+    this.httpClient = HttpClients.custom()
+        .setConnectionManager(connectionManager)
+        .setDefaultRequestConfig(RequestConfig.custom()
+            .setConnectTimeout(config.connectTimeoutMillis)
+            .setSocketTimeout(config.socketTimeoutMillis)
+            .setConnectionRequestTimeout(config.connectionRequestTimeoutMillis)
+            .build())
+        .build();
+  }
+
+  /**
+   * Creates a client authenticated with the {@code service-account.json} key
+   * on the classpath.
+   */
+  static OrderUpdateClient create(Config config, Gson gson) throws IOException {
+    ServiceAccountCredentials credentials;
+    try (InputStream serviceAccount = OrderUpdateClient.class.getClassLoader()
+        .getResourceAsStream(SERVICE_ACCOUNT_KEY_FILE)) {
+      if (serviceAccount == null) {
+        throw new FileNotFoundException(
+            SERVICE_ACCOUNT_KEY_FILE + " not found on the classpath");
+      }
+      credentials = (ServiceAccountCredentials) ServiceAccountCredentials
+          .fromStream(serviceAccount)
+          .createScoped(Collections.singleton(ORDERS_SCOPE));
+    }
+    return new OrderUpdateClient(config, gson, credentials::refreshAccessToken);
+  }
+
+  /**
+   * Sends an order update and returns the HTTP status code of the response.
+   * The response is always consumed so the connection returns to the pool.
+   *
+   * @throws IOException also if the update ran out of time, in which case it
+   *     may or may not have been applied
+   */
+  int send(OrderUpdateV3 orderUpdate) throws IOException {
+    Deadline deadline = Deadline.within(config.requestTimeoutMillis,
+        TimeUnit.MILLISECONDS);
+    String orderId = orderUpdate.getOrder().getMerchantOrderId();
+    checkDeadline(deadline, orderId);
+    HttpPatch request = new HttpPatch(config.baseUrl + orderId);
+    Object token = FlightEvents.beginOrderUpdate();
+    request.setHeader("Authorization",
+        "Bearer " + tokens.get().getTokenValue());
+    FlightEvents.endOrderUpdate(token, "token", orderId, 0, 0);
+    // Fetching the token may have taken the time that was left
+    checkDeadline(deadline, orderId);
+    Object codec = FlightEvents.beginCodec();
+    String body = toRequestBody(orderUpdate);
+    FlightEvents.endCodec(codec, "OrderUpdateV3", "encode", orderId,
+        body.length());
+    request.setEntity(new StringEntity(body, ContentType.APPLICATION_JSON));
+
+    Object execute = FlightEvents.beginOrderUpdate();
+    int status = 0;
+    ScheduledFuture<?> abort = deadline.onExpiry(request::abort);
+    try (CloseableHttpResponse response = httpClient.execute(request)) {
+      status = response.getStatusLine().getStatusCode();
+      LOGGER.info("Order update for {}: {} {}", orderId, status,
+          response.getStatusLine().getReasonPhrase());
+      EntityUtils.consume(response.getEntity());
+      return status;
+    } finally {
+      abort.cancel(false);
+      FlightEvents.endOrderUpdate(execute, "execute", orderId, body.length(),
+          status);
+    }
+  }
+
+  private static void checkDeadline(Deadline deadline, String orderId)
+      throws IOException {
+    if (deadline.expired()) {
+      throw new IOException(
+          "Out of time before sending the order update for " + orderId);
+    }
+  }
+
+  private String toRequestBody(OrderUpdateV3 orderUpdate) {
+    JsonObject body = new JsonObject();
+    body.add("orderUpdate", gson.toJsonTree(orderUpdate));
+    JsonObject header = new JsonObject();
+    header.addProperty("isInSandbox", config.sandbox);
+    body.add("header", header);
+    return body.toString();
+  }
+
+  @Override
+  public void close() throws IOException {
+    tokens.close();
+    httpClient.close();
+  }
+
+  /** Connection and authentication settings of an {@link OrderUpdateClient}. */
+  static final class Config {
+
+    final String baseUrl;
+    final boolean sandbox;
+    final int connectTimeoutMillis;
+    final int socketTimeoutMillis;
+    final int connectionRequestTimeoutMillis;
+    final int maxConnections;
+    final long connectionTimeToLiveMillis;
+    final long tokenRefreshMarginMillis;
+    final long requestTimeoutMillis;
+
+    Config(String baseUrl, boolean sandbox, int connectTimeoutMillis,
+        int socketTimeoutMillis, int connectionRequestTimeoutMillis,
+        int maxConnections, long connectionTimeToLiveMillis,
+        long tokenRefreshMarginMillis, long requestTimeoutMillis) {
+      this.baseUrl = baseUrl.endsWith("/") ? baseUrl : baseUrl + "/";
+      this.sandbox = sandbox;
+      this.connectTimeoutMillis = connectTimeoutMillis;
+      this.socketTimeoutMillis = socketTimeoutMillis;
+      this.connectionRequestTimeoutMillis = connectionRequestTimeoutMillis;
+      this.maxConnections = maxConnections;
+      this.connectionTimeToLiveMillis = connectionTimeToLiveMillis;
+      this.tokenRefreshMarginMillis = tokenRefreshMarginMillis;
+      this.requestTimeoutMillis = requestTimeoutMillis;
+    }
+
+    static Config fromSystemProperties() {
+      return new Config(
+          System.getProperty("actions.orders.baseUrl",
+              "https://actions.googleapis.com/v3/orders/"),
+          Boolean.parseBoolean(
+              System.getProperty("actions.orders.sandbox", "true")),
+          Integer.getInteger("actions.orders.connectTimeoutMillis", 5000),
+          Integer.getInteger("actions.orders.socketTimeoutMillis", 10000),
+          Integer.getInteger("actions.orders.connectionRequestTimeoutMillis",
+              2000),
+          Integer.getInteger("actions.orders.maxConnections", 20),
+          Long.getLong("actions.orders.connectionTimeToLiveMillis", 60000L),
+          Long.getLong("actions.orders.tokenRefreshMarginMillis", 300000L),
+          Long.getLong("actions.orders.requestTimeoutMillis", 15000L));
+    }
+  }
+}
@@ -0,0 +1,257 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import com.google.api.client.util.Data;
+import com.google.api.client.util.GenericData;
+import com.google.api.client.util.Types;
+import com.google.api.services.actions_fulfillment.v2.model.OrderUpdateV3;
+import com.google.protobuf.FieldMask;
+import com.google.protobuf.util.FieldMaskUtil;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Coalesces bursts of updates to the same order into a single
+ * {@link OrderUpdateV3}.
+ *
+ * <p>The first update for an order opens a window of {@code windowMillis};
+ * updates for that order arriving within the window are merged into it.
+ * Field masks are unioned and, for every path in an incoming mask, the
+ * incoming value replaces the pending one (last writer wins). An update
+ * without a mask is treated as a full snapshot and replaces the pending
+ * update. When the window closes the merged update is handed to the sender.
+ *
+ * <p>Orders are assigned to a fixed set of single-threaded stripes by order
+ * ID, so different orders are sent in parallel. The sender may finish a send
+ * asynchronously, for example after retries; updates to an order arriving
+ * meanwhile are merged and held back until it reports completion, so updates
+ * to one order are always sent in submission order.
+ */
+final class OrderUpdateCoalescer implements AutoCloseable {
+
+  private static final Logger LOGGER =
+      LoggerFactory.getLogger(OrderUpdateCoalescer.class);
+
+  /** Receives a merged update and a callback to run once it is done. */
+  private final BiConsumer<OrderUpdateV3, Runnable> sender;
+  private final long windowMillis;
+  private final ScheduledThreadPoolExecutor[] stripes;
+  private final ConcurrentMap<String, Pending> pending =
+      new ConcurrentHashMap<>();
+  private final LongAdder submitted = new LongAdder();
+  private final LongAdder sent = new LongAdder();
+
+  OrderUpdateCoalescer(BiConsumer<OrderUpdateV3, Runnable> sender,
+      long windowMillis, int stripeCount) {
+    this.sender = sender;
+    this.windowMillis = windowMillis;
+    this.stripes = new ScheduledThreadPoolExecutor[stripeCount];
+    for (int i = 0; i < stripeCount; i++) {
+      String name = "order-update-coalescer-" + i;
+      stripes[i] = new ScheduledThreadPoolExecutor(1, runnable -> {
+        Thread thread = new Thread(runnable, name);
+        thread.setDaemon(true);
+        return thread;
+      });
+      // close() flushes pending updates itself; their timers can be dropped
+      stripes[i].setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+    }
+  }
+
+  /**
+   * Adds an update, merging it with any pending update for the order.
+   * {@code done} runs once the merged update carrying it has been sent.
+   */
+  void submit(OrderUpdateV3 update, Runnable done) {
+    String orderId = update.getOrder().getMerchantOrderId();
+    submitted.increment();
+    pending.compute(orderId, (id, current) -> {
+      if (current == null) {
+        Pending created = new Pending(update, done);
+        stripeFor(id).schedule(() -> flush(id, created), windowMillis,
+            TimeUnit.MILLISECONDS);
+        return created;
+      }
+      if (current.sending) {
+        // Goes out once the send in progress completes
+        if (current.next == null) {
+          current.next = new Pending(update, done);
+        } else {
+          current.next.merge(update, done);
+        }
+        return current;
+      }
+      current.merge(update, done);
+      return current;
+    });
+  }
+
+  long submittedCount() {
+    return submitted.sum();
+  }
+
+  long sentCount() {
+    return sent.sum();
+  }
+
+  /**
+   * Sends every pending update immediately and waits until the sender has
+   * been called for each of them. Updates held back behind a send still in
+   * progress go out when it completes, so callers that need every update
+   * sent must wait for their callbacks. Callers must stop submitting before
+   * closing.
+   */
+  @Override
+  public void close() throws InterruptedException {
+    for (String orderId : pending.keySet()) {
+      Pending current = pending.get(orderId);
+      if (current != null) {
+        stripeFor(orderId).execute(() -> flush(orderId, current));
+      }
+    }
+    for (ScheduledThreadPoolExecutor stripe : stripes) {
+      stripe.shutdown();
+    }
+    for (ScheduledThreadPoolExecutor stripe : stripes) {
+      stripe.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+    }
+    LOGGER.info("Coalesced {} order updates into {} requests",
+        submitted.sum(), sent.sum());
+  }
+
+  private void flush(String orderId, Pending expected) {
+    // Only the task that marks the entry as sending sends it
+    boolean[] claimed = new boolean[1];
+    pending.computeIfPresent(orderId, (id, current) -> {
+      if (current == expected && !current.sending) {
+        current.sending = true;
+        claimed[0] = true;
+      }
+      return current;
+    });
+    if (claimed[0]) {
+      sent.increment();
+      sender.accept(expected.toUpdate(), () -> completed(orderId, expected));
+    }
+  }
+
+  private void completed(String orderId, Pending done) {
+    // Updates held back during the send take its place, or the order is done
+    // and a later update starts a new window
+    pending.compute(orderId, (id, current) -> current == done
+        ? done.next : current);
+    done.callbacks.forEach(Runnable::run);
+    Pending next = done.next;
+    if (next != null) {
+      try {
+        stripeFor(orderId).execute(() -> flush(orderId, next));
+      } catch (RejectedExecutionException e) {
+        // Closed while the send was in progress
+        flush(orderId, next);
+      }
+    }
+  }
+
+  private ScheduledThreadPoolExecutor stripeFor(String orderId) {
+    return stripes[(orderId.hashCode() & Integer.MAX_VALUE) % stripes.length];
+  }
+
+  /** Merged state of the updates received for one order in a window. */
+  private static final class Pending {
+
+    private final List<Runnable> callbacks = new ArrayList<>();
+    private OrderUpdateV3 update;
+    private FieldMask mask;
+    /** Set once handed to the sender; guarded by the map entry. */
+    private boolean sending;
+    /** Updates received while sending. */
+    private Pending next;
+
+    Pending(OrderUpdateV3 first, Runnable done) {
+      this.update = first.clone();
+      this.mask = parseMask(first);
+      callbacks.add(done);
+    }
+
+    void merge(OrderUpdateV3 next, Runnable done) {
+      callbacks.add(done);
+      FieldMask nextMask = parseMask(next);
+      if (nextMask == null) {
+        update = next.clone();
+        mask = null;
+        return;
+      }
+      for (String path : nextMask.getPathsList()) {
+        copyPath(update.getOrder(), next.getOrder(), path.split("\\."), 0);
+      }
+      if (mask != null) {
+        mask = FieldMaskUtil.union(mask, nextMask);
+      }
+      if (next.getReason() != null) {
+        update.setReason(next.getReason());
+      }
+      if (next.getType() != null) {
+        update.setType(next.getType());
+      }
+    }
+
+    OrderUpdateV3 toUpdate() {
+      return update.setUpdateMask(
+          mask != null ? FieldMaskUtil.toString(mask) : null);
+    }
+
+    private static FieldMask parseMask(OrderUpdateV3 update) {
+      String updateMask = update.getUpdateMask();
+      return updateMask == null || updateMask.isEmpty()
+          ? null : FieldMaskUtil.fromString(updateMask);
+    }
+
+    private static void copyPath(GenericData target, GenericData source,
+        String[] segments, int index) {
+      String name = segments[index];
+      Object value = source != null ? source.get(name) : null;
+      if (index == segments.length - 1) {
+        target.set(name, Data.clone(value));
+        return;
+      }
+      Object child = target.get(name);
+      if (child == null) {
+        if (!(value instanceof GenericData)) {
+          // Nothing to write and nothing to clear
+          return;
+        }
+        child = Types.newInstance(value.getClass());
+        target.set(name, child);
+      }
+      if (child instanceof GenericData) {
+        copyPath((GenericData) child,
+            value instanceof GenericData ? (GenericData) value : null,
+            segments, index + 1);
+      }
+    }
+  }
+}
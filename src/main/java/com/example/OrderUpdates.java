@@ -0,0 +1,74 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import com.google.api.services.actions_fulfillment.v2.model.OrderUpdateV3;
+import com.google.api.services.actions_fulfillment.v2.model.OrderV3;
+import com.google.api.services.actions_fulfillment.v2.model.PurchaseOrderExtension;
+import com.google.protobuf.FieldMask;
+import com.google.protobuf.util.FieldMaskUtil;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Locale;
+
+/** Factory for the order updates sent to the Orders API. */
+final class OrderUpdates {
+
+  private static final String STATUS_UPDATE_MASK = FieldMaskUtil.toString(
+      FieldMask.newBuilder().addAllPaths(Arrays.asList(
+          "lastUpdateTime",
+          "purchase.status",
+          "purchase.userVisibleStatusLabel"))
+          .build());
+
+  private OrderUpdates() {
+  }
+
+  /**
+   * Creates an update that moves an order to a new purchase status. A null
+   * {@code label} is replaced by a default label for the status.
+   */
+  static OrderUpdateV3 statusUpdate(String orderId, String status,
+      String label) {
+    String userVisibleLabel = label != null ? label : defaultLabel(status);
+    return new OrderUpdateV3()
+        .setOrder(new OrderV3()
+            .setMerchantOrderId(orderId)
+            .setLastUpdateTime(Instant.now().toString())
+            .setPurchase(new PurchaseOrderExtension()
+                .setStatus(status)
+                .setUserVisibleStatusLabel(userVisibleLabel)))
+        .setUpdateMask(STATUS_UPDATE_MASK)
+        .setReason("Order status was updated to "
+            + status.toLowerCase(Locale.ROOT).replace('_', ' ') + ".");
+  }
+
+  private static String defaultLabel(String status) {
+    switch (status) {
+      case "DELIVERED":
+        return "Order delivered.";
+      case "IN_TRANSIT":
+        return "Order in transit.";
+      case "SHIPPED":
+        return "Order shipped.";
+      case "CANCELLED":
+        return "Order cancelled.";
+      default:
+        return "Order " + status.toLowerCase(Locale.ROOT).replace('_', ' ') + ".";
+    }
+  }
+}
@@ -0,0 +1,210 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+import com.google.gson.stream.MalformedJsonException;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Logs webhook request and response payloads with personal data removed.
+ * Successful exchanges are logged for a sample of requests
+ * ({@code actions.payloads.sampleRate}, 0 to 1, default 0.01); failures are
+ * always logged with the request that caused them.
+ *
+ * <p>Redaction is a single streaming pass over the JSON that replaces the
+ * value of every redacted field, whatever it holds, with
+ * {@value #REDACTED}. {@code actions.payloads.redactedFields} lists the
+ * fields as comma-separated names, matched anywhere in the payload, or as
+ * {@code parent.name} to match a field only directly under {@code parent}.
+ * The default covers the buyer's and the delivery location's personal data,
+ * tokens, user storage and conversation data.
+ */
+final class PayloadLogger {
+
+  private static final Logger LOGGER =
+      LoggerFactory.getLogger(PayloadLogger.class);
+
+  static final String REDACTED = "[redacted]";
+  static final String DEFAULT_REDACTED_FIELDS = String.join(",",
+      // User profile and buyer info
+      "profile.displayName", "buyerInfo.displayName", "givenName",
+      "familyName", "firstName", "lastName", "email", "phoneNumber",
+      "phoneNumbers", "idToken", "accessToken",
+      // Delivery location
+      "formattedAddress", "postalAddress", "addressLines", "recipients",
+      "locality", "postalCode", "zipCode", "city", "coordinates",
+      "fulfillmentContact",
+      // Storage, which holds the delivery location between turns
+      "userStorage", "parameters.data");
+
+  private final double sampleRate;
+  private final Set<String> names;
+  /** Qualified entries as "parent.name", and the names they end in. */
+  private final Set<String> qualified;
+  private final Set<String> qualifiedNames;
+
+  PayloadLogger(double sampleRate, Set<String> redactedFields) {
+    if (sampleRate < 0 || sampleRate > 1) {
+      throw new IllegalArgumentException(
+          "Sample rate must be between 0 and 1: " + sampleRate);
+    }
+    this.sampleRate = sampleRate;
+    Set<String> names = new HashSet<>();
+    Set<String> qualified = new HashSet<>();
+    Set<String> qualifiedNames = new HashSet<>();
+    for (String field : redactedFields) {
+      int dot = field.lastIndexOf('.');
+      if (dot < 0) {
+        names.add(field);
+      } else {
+        qualified.add(field);
+        qualifiedNames.add(field.substring(dot + 1));
+      }
+    }
+    this.names = Collections.unmodifiableSet(names);
+    this.qualified = Collections.unmodifiableSet(qualified);
+    this.qualifiedNames = Collections.unmodifiableSet(qualifiedNames);
+  }
+
+  static PayloadLogger fromSystemProperties() {
+    Set<String> fields = new HashSet<>();
+    for (String field : System.getProperty("actions.payloads.redactedFields",
+        DEFAULT_REDACTED_FIELDS).split(",")) {
+      if (!field.trim().isEmpty()) {
+        fields.add(field.trim());
+      }
+    }
+    return new PayloadLogger(Double.parseDouble(
+        System.getProperty("actions.payloads.sampleRate", "0.01")), fields);
+  }
+
+  /** Decides whether to log the current request's payloads. */
+  boolean sample() {
+    return sampleRate > 0 && LOGGER.isInfoEnabled()
+        && (sampleRate >= 1
+            || ThreadLocalRandom.current().nextDouble() < sampleRate);
+  }
+
+  /** Logs a request and its response; call only if {@link #sample()}. */
+  void logExchange(String intent, String request, String response) {
+    LOGGER.info("{}: request={} response={}", intent, redact(request),
+        redact(response));
+  }
+
+  /** Logs the request that {@code error} was raised for. */
+  void logFailure(String intent, String request, Throwable error) {
+    LOGGER.warn("{} failed with {}: request={}", intent, error,
+        redact(request));
+  }
+
+  /**
+   * Returns {@code json} with the values of redacted fields replaced, or a
+   * placeholder if it is not valid JSON.
+   */
+  String redact(String json) {
+    StringWriter out = new StringWriter(json.length());
+    try {
+      JsonReader reader = new JsonReader(new StringReader(json));
+      JsonWriter writer = new JsonWriter(out);
+      writer.setSerializeNulls(true);
+      copy(reader, writer);
+      writer.flush();
+    } catch (IOException | IllegalStateException | NumberFormatException e) {
+      return "<invalid JSON, " + json.length() + " chars>";
+    }
+    return out.toString();
+  }
+
+  private void copy(JsonReader reader, JsonWriter writer) throws IOException {
+    // Name of the field holding each open object or array
+    Deque<String> parents = new ArrayDeque<>();
+    String name = "";
+    while (true) {
+      switch (reader.peek()) {
+        case BEGIN_OBJECT:
+          reader.beginObject();
+          writer.beginObject();
+          parents.push(name);
+          break;
+        case END_OBJECT:
+          reader.endObject();
+          writer.endObject();
+          // Back to the field holding it, the parent of an array's next value
+          name = parents.pop();
+          break;
+        case BEGIN_ARRAY:
+          reader.beginArray();
+          writer.beginArray();
+          parents.push(name);
+          break;
+        case END_ARRAY:
+          reader.endArray();
+          writer.endArray();
+          name = parents.pop();
+          break;
+        case NAME:
+          name = reader.nextName();
+          writer.name(name);
+          if (redacted(parents.peek(), name)) {
+            reader.skipValue();
+            writer.value(REDACTED);
+          }
+          break;
+        case STRING:
+          writer.value(reader.nextString());
+          break;
+        case NUMBER:
+          writer.jsonValue(reader.nextString());
+          break;
+        case BOOLEAN:
+          writer.value(reader.nextBoolean());
+          break;
+        case NULL:
+          reader.nextNull();
+          writer.nullValue();
+          break;
+        case END_DOCUMENT:
+          if (!parents.isEmpty()) {
+            throw new MalformedJsonException("Unterminated JSON");
+          }
+          return;
+        default:
+          throw new IllegalStateException("Unexpected token " + reader.peek());
+      }
+    }
+  }
+
+  private boolean redacted(String parent, String name) {
+    return names.contains(name)
+        || (qualifiedNames.contains(name)
+            && qualified.contains(parent + '.' + name));
+  }
+}
@@ -0,0 +1,320 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import com.google.api.services.actions_fulfillment.v2.model.Location;
+import com.google.api.services.actions_fulfillment.v2.model.PostalAddress;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.util.Collections;
+import java.util.Currency;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.MissingResourceException;
+import java.util.Properties;
+
+/**
+ * Computes order prices in micros of the currency with {@code long}
+ * arithmetic. Amounts are rounded to the currency's minor unit only where a
+ * rate is applied, with the rule's explicit {@link RoundingMode}, and
+ * overflow throws {@link ArithmeticException} instead of wrapping. Quoting
+ * an order does not allocate: rules are resolved from maps built when the
+ * engine is loaded and the result goes into a caller-supplied
+ * {@link Quote}.
+ *
+ * <p>Tax rules are read from a properties resource with the entries
+ * {@code <region>.<currency>.rate}, the tax in percent with at most four
+ * decimals; {@code .delivery}, true if delivery is taxed (default false);
+ * and {@code .rounding}, how the tax is rounded (default HALF_UP). A region
+ * is a CLDR region code such as {@code US}, a subdivision
+ * such as {@code US-CA} (region code and administrative area of the
+ * delivery address), or {@code *} for everywhere else. The most specific
+ * rule for the currency applies.
+ */
+final class PriceEngine {
+
+  private static final long MICROS_PER_UNIT = 1_000_000L;
+  private static final long PPM = 1_000_000L;
+  private static final String ANY_REGION = "*";
+
+  /** The tax rule of one region and currency. */
+  static final class TaxRule {
+
+    final String currencyCode;
+    /** Tax rate in parts per million. */
+    final long ratePpm;
+    final boolean deliveryTaxable;
+    final RoundingMode rounding;
+    final int fractionDigits;
+    /** Micros in the currency's minor unit, e.g. 10000 for cents. */
+    final long minorUnitMicros;
+
+    TaxRule(String currencyCode, long ratePpm, boolean deliveryTaxable,
+        RoundingMode rounding) {
+      this.currencyCode = currencyCode;
+      this.ratePpm = ratePpm;
+      this.deliveryTaxable = deliveryTaxable;
+      this.rounding = rounding;
+      this.fractionDigits = Math.max(0,
+          Currency.getInstance(currencyCode).getDefaultFractionDigits());
+      long minorUnit = MICROS_PER_UNIT;
+      for (int i = 0; i < fractionDigits; i++) {
+        minorUnit /= 10;
+      }
+      this.minorUnitMicros = minorUnit;
+    }
+  }
+
+  /** The prices of one order, filled in by {@link #quote}. */
+  static final class Quote {
+
+    TaxRule rule;
+    long subtotalMicros;
+    long deliveryMicros;
+    long taxMicros;
+    long totalMicros;
+
+    /** Returns the total as a decimal string, e.g. "37.00". */
+    String totalPrice() {
+      return format(totalMicros, rule.fractionDigits, rule.rounding);
+    }
+  }
+
+  /** Rules by currency, for each region and then each subdivision. */
+  private final Map<String, Map<String, TaxRule>> byRegion;
+  private final Map<String, Map<String, Map<String, TaxRule>>> bySubdivision;
+
+  private PriceEngine(Map<String, Map<String, TaxRule>> byRegion,
+      Map<String, Map<String, Map<String, TaxRule>>> bySubdivision) {
+    this.byRegion = byRegion;
+    this.bySubdivision = bySubdivision;
+  }
+
+  /** Loads the tax rules in the properties resource {@code name}. */
+  static PriceEngine load(String name) {
+    Properties properties = new Properties();
+    try (InputStream input =
+        PriceEngine.class.getClassLoader().getResourceAsStream(name)) {
+      if (input == null) {
+        throw new MissingResourceException("No tax rules " + name,
+            PriceEngine.class.getName(), name);
+      }
+      properties.load(input);
+    } catch (IOException e) {
+      throw new UncheckedIOException("Could not load tax rules " + name, e);
+    }
+    return fromProperties(properties);
+  }
+
+  static PriceEngine fromProperties(Properties properties) {
+    Map<String, Map<String, TaxRule>> byRegion = new HashMap<>();
+    Map<String, Map<String, Map<String, TaxRule>>> bySubdivision =
+        new HashMap<>();
+    for (String key : properties.stringPropertyNames()) {
+      if (!key.endsWith(".rate")) {
+        continue;
+      }
+      String prefix = key.substring(0, key.length() - ".rate".length());
+      int dot = prefix.lastIndexOf('.');
+      if (dot < 0) {
+        throw new IllegalArgumentException("Tax rule " + key
+            + " must be <region>.<currency>.rate");
+      }
+      String region = prefix.substring(0, dot);
+      String currencyCode = prefix.substring(dot + 1);
+      TaxRule rule = new TaxRule(currencyCode,
+          ppm(properties.getProperty(key).trim(), key),
+          Boolean.parseBoolean(
+              properties.getProperty(prefix + ".delivery", "false").trim()),
+          RoundingMode.valueOf(
+              properties.getProperty(prefix + ".rounding", "HALF_UP").trim()));
+      int dash = region.indexOf('-');
+      Map<String, TaxRule> rules = dash < 0
+          ? byRegion.computeIfAbsent(region, r -> new HashMap<>())
+          : bySubdivision
+              .computeIfAbsent(region.substring(0, dash), r -> new HashMap<>())
+              .computeIfAbsent(region.substring(dash + 1),
+                  a -> new HashMap<>());
+      rules.put(currencyCode, rule);
+    }
+    return new PriceEngine(immutable(byRegion), immutable(bySubdivision));
+  }
+
+  private static long ppm(String percent, String key) {
+    // Parsed once at load time, so BigDecimal is fine here
+    try {
+      return new BigDecimal(percent).movePointRight(4).longValueExact();
+    } catch (ArithmeticException | NumberFormatException e) {
+      throw new IllegalArgumentException("Tax rate " + key + " must be a "
+          + "percentage with at most 4 decimals: " + percent, e);
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  private static <K, V> Map<K, V> immutable(Map<K, V> map) {
+    for (Map.Entry<K, V> entry : map.entrySet()) {
+      if (entry.getValue() instanceof Map) {
+        entry.setValue((V) immutable((Map<?, ?>) entry.getValue()));
+      }
+    }
+    return Collections.unmodifiableMap(map);
+  }
+
+  /**
+   * Returns the tax rule for a delivery to {@code location}, or to anywhere
+   * if it is null.
+   *
+   * @throws IllegalArgumentException if there is no rule for the currency
+   */
+  TaxRule taxRule(Location location, String currencyCode) {
+    PostalAddress address = location != null
+        ? location.getPostalAddress() : null;
+    String regionCode = address != null ? address.getRegionCode() : null;
+    TaxRule rule = null;
+    if (regionCode != null) {
+      Map<String, Map<String, TaxRule>> subdivisions =
+          bySubdivision.get(regionCode);
+      String area = address.getAdministrativeArea();
+      if (subdivisions != null && area != null) {
+        rule = get(subdivisions.get(area), currencyCode);
+      }
+      if (rule == null) {
+        rule = get(byRegion.get(regionCode), currencyCode);
+      }
+    }
+    if (rule == null) {
+      rule = get(byRegion.get(ANY_REGION), currencyCode);
+    }
+    if (rule == null) {
+      throw new IllegalArgumentException("No tax rule for " + currencyCode);
+    }
+    return rule;
+  }
+
+  private static TaxRule get(Map<String, TaxRule> rules, String currencyCode) {
+    return rules != null ? rules.get(currencyCode) : null;
+  }
+
+  /**
+   * Prices an order of {@code subtotalMicros} worth of items delivered for
+   * {@code deliveryMicros} under {@code rule} into {@code quote}.
+   */
+  void quote(long subtotalMicros, long deliveryMicros, TaxRule rule,
+      Quote quote) {
+    long taxable = rule.deliveryTaxable
+        ? Math.addExact(subtotalMicros, deliveryMicros)
+        : subtotalMicros;
+    long tax = Math.multiplyExact(divide(Math.multiplyExact(taxable,
+        rule.ratePpm), PPM * rule.minorUnitMicros, rule.rounding),
+        rule.minorUnitMicros);
+    quote.rule = rule;
+    quote.subtotalMicros = subtotalMicros;
+    quote.deliveryMicros = deliveryMicros;
+    quote.taxMicros = tax;
+    quote.totalMicros =
+        Math.addExact(Math.addExact(subtotalMicros, deliveryMicros), tax);
+  }
+
+  /**
+   * Returns the total of a line: {@code quantity} items at
+   * {@code unitMicros}, each with options adding {@code optionMicros}.
+   */
+  static long lineTotal(long unitMicros, long optionMicros, int quantity) {
+    return Math.multiplyExact(Math.addExact(unitMicros, optionMicros),
+        (long) quantity);
+  }
+
+  /**
+   * Divides with the given rounding, like {@link BigDecimal#divide} with a
+   * scale of 0 but on longs.
+   *
+   * @throws ArithmeticException if {@code mode} is
+   *     {@link RoundingMode#UNNECESSARY} and the division is inexact
+   */
+  static long divide(long dividend, long divisor, RoundingMode mode) {
+    if (divisor <= 0) {
+      throw new IllegalArgumentException("Divisor must be positive");
+    }
+    long quotient = dividend / divisor;
+    long remainder = dividend % divisor;
+    if (remainder == 0) {
+      return quotient;
+    }
+    long sign = dividend < 0 ? -1 : 1;
+    // Comparing the remainder with what is left avoids doubling it
+    int half = Long.compare(Math.abs(remainder),
+        divisor - Math.abs(remainder));
+    boolean awayFromZero;
+    switch (mode) {
+      case UP:
+        awayFromZero = true;
+        break;
+      case DOWN:
+        awayFromZero = false;
+        break;
+      case CEILING:
+        awayFromZero = sign > 0;
+        break;
+      case FLOOR:
+        awayFromZero = sign < 0;
+        break;
+      case HALF_UP:
+        awayFromZero = half >= 0;
+        break;
+      case HALF_DOWN:
+        awayFromZero = half > 0;
+        break;
+      case HALF_EVEN:
+        awayFromZero = half > 0 || (half == 0 && (quotient & 1) != 0);
+        break;
+      default:
+        throw new ArithmeticException("Rounding necessary");
+    }
+    return awayFromZero ? quotient + sign : quotient;
+  }
+
+  /**
+   * Formats {@code micros} as a decimal string with {@code fractionDigits}
+   * digits, rounding with {@code mode}, e.g. "37.00" or "-0.05".
+   */
+  static String format(long micros, int fractionDigits, RoundingMode mode) {
+    long scale = 1;
+    for (int i = 0; i < fractionDigits; i++) {
+      scale *= 10;
+    }
+    long minor = divide(micros, MICROS_PER_UNIT / scale, mode);
+    StringBuilder out = new StringBuilder(24);
+    if (minor < 0) {
+      out.append('-');
+    }
+    long units = Math.abs(minor / scale);
+    long fraction = Math.abs(minor % scale);
+    out.append(units);
+    if (fractionDigits > 0) {
+      out.append('.');
+      String digits = Long.toString(fraction);
+      for (int i = digits.length(); i < fractionDigits; i++) {
+        out.append('0');
+      }
+      out.append(digits);
+    }
+    return out.toString();
+  }
+}
@@ -0,0 +1,517 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import com.google.api.services.actions_fulfillment.v2.model.LineItemV3;
+import com.google.api.services.actions_fulfillment.v2.model.PurchaseItemExtension;
+import com.google.api.services.actions_fulfillment.v2.model.PurchaseItemExtensionItemOption;
+import com.google.gson.Gson;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Products, prices and item options, read from a memory-mapped catalog file
+ * so that neither the products nor the index take up heap, however many
+ * there are. A {@link LineItemV3} is decoded from the file when a product is
+ * looked up.
+ *
+ * <p>The file is built from JSON Lines, one {@link Product} per line, by
+ * {@link #build} (or {@code ./gradlew buildCatalog}), and is laid out as
+ * <pre>
+ *   int magic | int productCount | int slotCount
+ *   slotCount * (int idHash | int recordOffset)
+ *   records
+ * </pre>
+ * The slots are an open-addressing hash table on the UTF-8 bytes of the
+ * product ID, probed linearly from {@code idHash & (slotCount - 1)}, with an
+ * offset of 0 marking an empty slot. It is at most half full, so a lookup
+ * reads one or two slots and one record. A record is
+ * <pre>
+ *   id | name | long priceMicros | short noteCount | notes
+ *      | short optionCount | optionCount * (id | name | long priceMicros)
+ * </pre>
+ * with strings stored as an unsigned short length and UTF-8 bytes. Offsets
+ * are ints, which limits a catalog to 2 GiB.
+ *
+ * <p>With {@code actions.catalog.file} set, that file is mapped and checked
+ * for changes every {@code actions.catalog.reloadIntervalMillis} (default
+ * 10000, 0 to disable). A changed file is mapped and checked on the
+ * reloader thread and then swapped in, so request threads never wait for a
+ * reload; a request keeps the {@link Snapshot} it started with. Replace the
+ * file by renaming a new one over it, as {@link #build} does, rather than
+ * rewriting it in place. Without {@code actions.catalog.file} the catalog
+ * bundled as {@code products.jsonl} is used.
+ */
+final class ProductCatalog implements Closeable {
+
+  private static final Logger LOGGER =
+      LoggerFactory.getLogger(ProductCatalog.class);
+
+  private static final int MAGIC = 0x50434131; // "PCA1"
+  private static final int HEADER_SIZE = 12;
+  private static final int SLOT_SIZE = 8;
+  private static final String BUNDLED_PRODUCTS = "products.jsonl";
+  private static final Gson GSON = new Gson();
+
+  /** A product as written to the catalog's JSON Lines source. */
+  static final class Product {
+    String id;
+    String name;
+    long priceMicros;
+    List<String> notes;
+    List<Option> options;
+  }
+
+  /** An item option of a {@link Product}, such as an add-on. */
+  static final class Option {
+    String id;
+    String name;
+    long priceMicros;
+  }
+
+  private final Path file;
+  private final ScheduledExecutorService reloader;
+  private volatile Snapshot current;
+  /** Identity of the file {@code current} was mapped from. */
+  private Object loadedVersion;
+
+  private ProductCatalog(Path file, long reloadIntervalMillis)
+      throws IOException {
+    this.file = file;
+    this.loadedVersion = version(file);
+    this.current = Snapshot.map(file);
+    if (reloadIntervalMillis > 0) {
+      reloader = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "product-catalog-reloader");
+        thread.setDaemon(true);
+        return thread;
+      });
+      reloader.scheduleWithFixedDelay(this::reloadIfChanged,
+          reloadIntervalMillis, reloadIntervalMillis, TimeUnit.MILLISECONDS);
+    } else {
+      reloader = null;
+    }
+  }
+
+  /**
+   * Maps the catalog in {@code file}, reloading it whenever it changes if
+   * {@code reloadIntervalMillis} is positive.
+   */
+  static ProductCatalog open(Path file, long reloadIntervalMillis)
+      throws IOException {
+    ProductCatalog catalog = new ProductCatalog(file, reloadIntervalMillis);
+    LOGGER.info("Loaded {} products from {}", catalog.current.size(), file);
+    return catalog;
+  }
+
+  /**
+   * Opens {@code actions.catalog.file} if it is set, or builds the bundled
+   * catalog into a temporary file.
+   */
+  static ProductCatalog fromSystemProperties() {
+    String file = System.getProperty("actions.catalog.file");
+    try {
+      if (file != null && !file.isEmpty()) {
+        return open(Paths.get(file),
+            Long.getLong("actions.catalog.reloadIntervalMillis", 10000L));
+      }
+      Path bundled = Files.createTempFile("products", ".catalog");
+      bundled.toFile().deleteOnExit();
+      try (InputStream input = ProductCatalog.class.getClassLoader()
+          .getResourceAsStream(BUNDLED_PRODUCTS)) {
+        if (input == null) {
+          throw new IOException(BUNDLED_PRODUCTS + " not found");
+        }
+        build(new BufferedReader(
+            new InputStreamReader(input, StandardCharsets.UTF_8)), bundled);
+      }
+      return open(bundled, 0);
+    } catch (IOException e) {
+      throw new UncheckedIOException("Could not load the product catalog", e);
+    }
+  }
+
+  /** Returns the catalog as of now; it does not change when reloaded. */
+  Snapshot current() {
+    return current;
+  }
+
+  private void reloadIfChanged() {
+    try {
+      Object version = version(file);
+      if (version.equals(loadedVersion)) {
+        return;
+      }
+      // Only try each version once, so a bad file is reported once
+      loadedVersion = version;
+      Snapshot reloaded = Snapshot.map(file);
+      current = reloaded;
+      LOGGER.info("Reloaded {} products from {}", reloaded.size(), file);
+    } catch (IOException | RuntimeException e) {
+      LOGGER.error("Could not reload product catalog " + file
+          + ", keeping the current one", e);
+    }
+  }
+
+  private static Object version(Path file) throws IOException {
+    BasicFileAttributes attributes =
+        Files.readAttributes(file, BasicFileAttributes.class);
+    return Arrays.asList(attributes.fileKey(), attributes.size(),
+        attributes.lastModifiedTime());
+  }
+
+  @Override
+  public void close() {
+    if (reloader != null) {
+      reloader.shutdownNow();
+    }
+  }
+
+  /**
+   * Builds a catalog file from JSON Lines, one {@link Product} per line, and
+   * renames it to {@code target}. Records are streamed to a temporary file
+   * next to {@code target}; only the index is kept in memory. Product IDs
+   * must be unique; only records whose ID hashes collide are read back to
+   * check.
+   *
+   * @return the number of products
+   */
+  static int build(BufferedReader products, Path target) throws IOException {
+    Path records = target.resolveSibling(target.getFileName() + ".records");
+    Path partial = target.resolveSibling(target.getFileName() + ".partial");
+    int count = 0;
+    int[] hashes = new int[1024];
+    long[] offsets = new long[1024];
+    int[] lineNumbers = new int[1024];
+    try {
+      try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+          Files.newOutputStream(records)))) {
+        String line;
+        int lineNumber = 0;
+        while ((line = products.readLine()) != null) {
+          lineNumber++;
+          if (line.trim().isEmpty()) {
+            continue;
+          }
+          Product product = GSON.fromJson(line, Product.class);
+          if (product == null || product.id == null || product.name == null) {
+            throw new IOException("Line " + lineNumber
+                + ": a product needs an id and a name");
+          }
+          if (count == hashes.length) {
+            hashes = Arrays.copyOf(hashes, count * 2);
+            offsets = Arrays.copyOf(offsets, count * 2);
+            lineNumbers = Arrays.copyOf(lineNumbers, count * 2);
+          }
+          hashes[count] = hash(product.id.getBytes(StandardCharsets.UTF_8));
+          offsets[count] = out.size();
+          lineNumbers[count] = lineNumber;
+          count++;
+          writeRecord(out, product);
+        }
+      }
+      int slotCount = Integer.highestOneBit(Math.max(count, 1) * 2 - 1) << 1;
+      long recordsStart = HEADER_SIZE + (long) slotCount * SLOT_SIZE;
+      if (recordsStart + Files.size(records) > Integer.MAX_VALUE) {
+        throw new IOException("Catalog would exceed 2 GiB");
+      }
+      int[] slots = new int[slotCount * 2];
+      int mask = slotCount - 1;
+      // Mapped on the first hash collision, to compare the IDs
+      ByteBuffer written = null;
+      for (int i = 0; i < count; i++) {
+        int slot = hashes[i] & mask;
+        while (slots[slot * 2 + 1] != 0) {
+          if (slots[slot * 2] == hashes[i]) {
+            if (written == null) {
+              written = mapRecords(records);
+            }
+            String id = idAt(written, offsets[i]);
+            if (id.equals(idAt(written, slots[slot * 2 + 1] - recordsStart))) {
+              throw new IOException("Line " + lineNumbers[i]
+                  + ": duplicate product id " + id);
+            }
+          }
+          slot = (slot + 1) & mask;
+        }
+        slots[slot * 2] = hashes[i];
+        slots[slot * 2 + 1] = (int) (recordsStart + offsets[i]);
+      }
+      try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+          Files.newOutputStream(partial)))) {
+        out.writeInt(MAGIC);
+        out.writeInt(count);
+        out.writeInt(slotCount);
+        for (int value : slots) {
+          out.writeInt(value);
+        }
+        Files.copy(records, out);
+      }
+      Snapshot.map(partial); // Fail here rather than in the reloader
+      Files.move(partial, target, StandardCopyOption.REPLACE_EXISTING,
+          StandardCopyOption.ATOMIC_MOVE);
+    } finally {
+      Files.deleteIfExists(records);
+      Files.deleteIfExists(partial);
+    }
+    return count;
+  }
+
+  private static ByteBuffer mapRecords(Path records) throws IOException {
+    try (FileChannel channel = FileChannel.open(records,
+        StandardOpenOption.READ)) {
+      return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+    }
+  }
+
+  /** Reads the ID of the record at {@code offset} in {@code records}. */
+  private static String idAt(ByteBuffer records, long offset) {
+    ByteBuffer record = records.duplicate();
+    record.position((int) offset);
+    return Snapshot.readString(record);
+  }
+
+  private static void writeRecord(DataOutputStream out, Product product)
+      throws IOException {
+    writeString(out, product.id);
+    writeString(out, product.name);
+    out.writeLong(product.priceMicros);
+    List<String> notes = product.notes != null
+        ? product.notes : Collections.emptyList();
+    writeCount(out, notes.size());
+    for (String note : notes) {
+      writeString(out, note);
+    }
+    List<Option> options = product.options != null
+        ? product.options : Collections.emptyList();
+    writeCount(out, options.size());
+    for (Option option : options) {
+      writeString(out, option.id);
+      writeString(out, option.name);
+      out.writeLong(option.priceMicros);
+    }
+  }
+
+  private static void writeCount(DataOutputStream out, int count)
+      throws IOException {
+    if (count > 0xffff) {
+      throw new IOException("More than 65535 entries: " + count);
+    }
+    out.writeShort(count);
+  }
+
+  private static void writeString(DataOutputStream out, String value)
+      throws IOException {
+    byte[] bytes = Objects.requireNonNull(value, "null string in product")
+        .getBytes(StandardCharsets.UTF_8);
+    writeCount(out, bytes.length);
+    out.write(bytes);
+  }
+
+  /** FNV-1a, over bytes so that it does not depend on String.hashCode. */
+  private static int hash(byte[] bytes) {
+    int hash = 0x811c9dc5;
+    for (byte b : bytes) {
+      hash ^= b & 0xff;
+      hash *= 0x01000193;
+    }
+    return hash;
+  }
+
+  /**
+   * One version of the catalog file. Lookups only use absolute reads, or
+   * reads from a duplicate of the buffer, so a snapshot can be shared
+   * between threads.
+   */
+  static final class Snapshot {
+
+    private final ByteBuffer buffer;
+    private final int size;
+    private final int mask;
+
+    private Snapshot(ByteBuffer buffer, int size, int slotCount) {
+      this.buffer = buffer;
+      this.size = size;
+      this.mask = slotCount - 1;
+    }
+
+    /** Maps {@code file} and checks its header and index. */
+    static Snapshot map(Path file) throws IOException {
+      ByteBuffer buffer;
+      try (FileChannel channel = FileChannel.open(file,
+          StandardOpenOption.READ)) {
+        long length = channel.size();
+        if (length < HEADER_SIZE || length > Integer.MAX_VALUE) {
+          throw new IOException(file + " is not a product catalog");
+        }
+        // The mapping stays valid after the channel is closed, and is
+        // released when the snapshot is garbage collected
+        buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+      }
+      int size = buffer.getInt(4);
+      int slotCount = buffer.getInt(8);
+      long recordsStart = HEADER_SIZE + (long) slotCount * SLOT_SIZE;
+      if (buffer.getInt(0) != MAGIC || size < 0 || slotCount <= size
+          || Integer.bitCount(slotCount) != 1
+          || recordsStart > buffer.capacity()) {
+        throw new IOException(file + " is not a product catalog");
+      }
+      for (int slot = 0; slot < slotCount; slot++) {
+        int offset = buffer.getInt(HEADER_SIZE + slot * SLOT_SIZE + 4);
+        if (offset != 0 && (offset < recordsStart
+            || offset >= buffer.capacity())) {
+          throw new IOException(file + " has a corrupt index");
+        }
+      }
+      return new Snapshot(buffer, size, slotCount);
+    }
+
+    /** Returns the number of products. */
+    int size() {
+      return size;
+    }
+
+    boolean contains(String id) {
+      return find(id) != 0;
+    }
+
+    /**
+     * Returns a new line item for {@code quantity} of the product, with its
+     * notes and item options, or null if there is no such product. The
+     * line's total includes its item options.
+     */
+    LineItemV3 lineItem(String id, int quantity) {
+      int offset = find(id);
+      if (offset == 0) {
+        return null;
+      }
+      ByteBuffer record = buffer.duplicate();
+      record.position(offset);
+      LineItemV3 lineItem = new LineItemV3()
+          .setId(readString(record))
+          .setName(readString(record));
+      long priceMicros = record.getLong();
+      int noteCount = record.getShort() & 0xffff;
+      if (noteCount > 0) {
+        List<String> notes = new ArrayList<>(noteCount);
+        for (int i = 0; i < noteCount; i++) {
+          notes.add(readString(record));
+        }
+        lineItem.setNotes(notes);
+      }
+      PurchaseItemExtension purchase = new PurchaseItemExtension()
+          .setQuantity(quantity);
+      int optionCount = record.getShort() & 0xffff;
+      long optionMicros = 0;
+      if (optionCount > 0) {
+        List<PurchaseItemExtensionItemOption> options =
+            new ArrayList<>(optionCount);
+        for (int i = 0; i < optionCount; i++) {
+          PurchaseItemExtensionItemOption option =
+              new PurchaseItemExtensionItemOption()
+                  .setId(readString(record))
+                  .setName(readString(record));
+          long optionPrice = record.getLong();
+          optionMicros = Math.addExact(optionMicros, optionPrice);
+          options.add(option.setPrices(OrderTemplate.itemPrices(optionPrice,
+              PriceEngine.lineTotal(optionPrice, 0, quantity))));
+        }
+        purchase.setItemOptions(options);
+      }
+      return lineItem
+          .setPriceAttributes(OrderTemplate.itemPrices(priceMicros,
+              PriceEngine.lineTotal(priceMicros, optionMicros, quantity)))
+          .setPurchase(purchase);
+    }
+
+    /** Returns the offset of the product's record, or 0. */
+    private int find(String id) {
+      byte[] key = id.getBytes(StandardCharsets.UTF_8);
+      int hash = hash(key);
+      for (int slot = hash & mask; ; slot = (slot + 1) & mask) {
+        int position = HEADER_SIZE + slot * SLOT_SIZE;
+        int offset = buffer.getInt(position + 4);
+        if (offset == 0) {
+          return 0;
+        }
+        if (buffer.getInt(position) == hash && idEquals(offset, key)) {
+          return offset;
+        }
+      }
+    }
+
+    private boolean idEquals(int offset, byte[] key) {
+      if ((buffer.getShort(offset) & 0xffff) != key.length) {
+        return false;
+      }
+      for (int i = 0; i < key.length; i++) {
+        if (buffer.get(offset + 2 + i) != key[i]) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    private static String readString(ByteBuffer record) {
+      byte[] bytes = new byte[record.getShort() & 0xffff];
+      record.get(bytes);
+      return new String(bytes, StandardCharsets.UTF_8);
+    }
+  }
+
+  /**
+   * Builds a catalog file: {@code ProductCatalog <products.jsonl> <catalog>}.
+   * A running webhook with {@code actions.catalog.file} pointing at the
+   * catalog picks up the new version on its next check.
+   */
+  public static void main(String[] args) throws IOException {
+    if (args.length != 2) {
+      System.err.println("Usage: ProductCatalog <products.jsonl> <catalog>");
+      System.exit(2);
+    }
+    try (BufferedReader products = Files.newBufferedReader(Paths.get(args[0]),
+        StandardCharsets.UTF_8)) {
+      int count = build(products, Paths.get(args[1]));
+      LOGGER.info("Wrote {} products to {}", count, args[1]);
+    }
+  }
+}
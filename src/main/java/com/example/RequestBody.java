@@ -0,0 +1,120 @@
+/*
+ * Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Accumulates the raw bytes of a webhook request in a pooled buffer. When the
+ * request declares a Content-Length the buffer is sized once up front;
+ * otherwise it grows by doubling. Either way the body is capped by the
+ * {@code actions.request.maxBodySize} system property.
+ *
+ * <p>Callers must {@link #release()} the body once it has been decoded.
+ */
+final class RequestBody {
+
+  static final int MAX_BODY_SIZE =
+      Integer.getInteger("actions.request.maxBodySize", 1024 * 1024);
+  private static final BufferPool POOL = new BufferPool(
+      Integer.getInteger("actions.request.bufferSize", 16 * 1024),
+      Integer.getInteger("actions.request.pooledBuffers", 64));
+
+  private final boolean sized;
+  private final int limit;
+  private byte[] buffer;
+  private int length;
+
+  RequestBody(long contentLength) throws TooLargeException {
+    if (contentLength > MAX_BODY_SIZE) {
+      throw new TooLargeException(contentLength);
+    }
+    this.sized = contentLength >= 0;
+    this.limit = sized ? (int) contentLength : MAX_BODY_SIZE;
+    this.buffer = POOL.acquire(sized ? limit : POOL.bufferSize());
+  }
+
+  /**
+   * Reads everything {@code input} has to offer, decodes it as UTF-8 and
+   * releases the buffer. {@link #length()} still reports the size read.
+   */
+  String readFully(InputStream input) throws IOException {
+    try {
+      while (readFrom(input) >= 0) {
+        // keep reading until the stream is exhausted
+      }
+      return decode();
+    } finally {
+      release();
+    }
+  }
+
+  /**
+   * Performs a single read from {@code input} into the buffer.
+   *
+   * @return the number of bytes read, or -1 at the end of the stream
+   */
+  int readFrom(InputStream input) throws IOException {
+    if (sized && length == limit) {
+      // Content-Length is satisfied; anything beyond it is ignored.
+      return -1;
+    }
+    if (length == buffer.length) {
+      grow();
+    }
+    int read = input.read(buffer, length,
+        Math.min(buffer.length, limit) - length);
+    if (read > 0) {
+      length += read;
+    }
+    return read;
+  }
+
+  int length() {
+    return length;
+  }
+
+  String decode() {
+    return new String(buffer, 0, length, StandardCharsets.UTF_8);
+  }
+
+  void release() {
+    POOL.release(buffer);
+    buffer = null;
+  }
+
+  private void grow() throws TooLargeException {
+    if (buffer.length >= MAX_BODY_SIZE) {
+      throw new TooLargeException(buffer.length + 1L);
+    }
+    byte[] larger = new byte[Math.min(buffer.length * 2, MAX_BODY_SIZE)];
+    System.arraycopy(buffer, 0, larger, 0, length);
+    POOL.release(buffer);
+    buffer = larger;
+  }
+
+  /** Signals a request body larger than {@link #MAX_BODY_SIZE}. */
+  static final class TooLargeException extends IOException {
+
+    TooLargeException(long size) {
+      super("Request body of " + size + " bytes exceeds limit of "
+          + MAX_BODY_SIZE + " bytes");
+    }
+  }
+}
@@ -0,0 +1,200 @@
+/*
+ * Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Reusable buffer that encodes a JSON response as UTF-8, optionally gzipped,
+ * so that it can be written to the servlet output stream with an exact
+ * Content-Length. Instances keep their byte arrays, encoder and deflater
+ * between requests and are recycled through a small pool.
+ */
+final class ResponseBuffer {
+
+  static final int GZIP_MIN_SIZE =
+      Integer.getInteger("actions.response.gzipMinSize", 1024);
+  private static final int INITIAL_SIZE = 16 * 1024;
+  private static final ArrayBlockingQueue<ResponseBuffer> POOL =
+      new ArrayBlockingQueue<>(
+          Integer.getInteger("actions.response.pooledBuffers", 64));
+  private static final byte[] GZIP_HEADER = {
+      (byte) 0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, 0};
+
+  private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+      .onMalformedInput(CodingErrorAction.REPLACE)
+      .onUnmappableCharacter(CodingErrorAction.REPLACE);
+  private final Deflater deflater =
+      new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+  private final CRC32 crc = new CRC32();
+  private byte[] plain = new byte[INITIAL_SIZE];
+  private byte[] compressed = new byte[INITIAL_SIZE];
+  private int plainLength;
+  private int compressedLength;
+  private boolean gzipped;
+
+  private ResponseBuffer() {
+  }
+
+  static ResponseBuffer acquire() {
+    ResponseBuffer buffer = POOL.poll();
+    return buffer != null ? buffer : new ResponseBuffer();
+  }
+
+  void release() {
+    POOL.offer(this);
+  }
+
+  /**
+   * Encodes {@code json} into this buffer, gzipping it when requested and the
+   * payload is at least {@link #GZIP_MIN_SIZE} bytes.
+   *
+   * @return whether the encoded payload is gzipped
+   */
+  boolean encode(String json, boolean gzip) throws CharacterCodingException {
+    encodeUtf8(json);
+    gzipped = gzip && plainLength >= GZIP_MIN_SIZE;
+    if (gzipped) {
+      deflate();
+    }
+    return gzipped;
+  }
+
+  int length() {
+    return gzipped ? compressedLength : plainLength;
+  }
+
+  byte[] array() {
+    return gzipped ? compressed : plain;
+  }
+
+  void writeTo(OutputStream output) throws IOException {
+    output.write(array(), 0, length());
+  }
+
+  private void encodeUtf8(String json) throws CharacterCodingException {
+    CharBuffer in = CharBuffer.wrap(json);
+    ByteBuffer out = ByteBuffer.wrap(plain);
+    encoder.reset();
+    boolean flushing = false;
+    while (true) {
+      CoderResult result = flushing
+          ? encoder.flush(out) : encoder.encode(in, out, true);
+      if (result.isOverflow()) {
+        plain = grow(plain, out.position());
+        out = ByteBuffer.wrap(plain, out.position(),
+            plain.length - out.position());
+        continue;
+      }
+      if (result.isError()) {
+        result.throwException();
+      }
+      if (flushing) {
+        break;
+      }
+      flushing = true;
+    }
+    plainLength = out.position();
+  }
+
+  private void deflate() {
+    crc.reset();
+    crc.update(plain, 0, plainLength);
+    deflater.reset();
+    deflater.setInput(plain, 0, plainLength);
+    deflater.finish();
+
+    System.arraycopy(GZIP_HEADER, 0, compressed, 0, GZIP_HEADER.length);
+    compressedLength = GZIP_HEADER.length;
+    while (!deflater.finished()) {
+      if (compressedLength == compressed.length) {
+        compressed = grow(compressed, compressedLength);
+      }
+      compressedLength += deflater.deflate(compressed, compressedLength,
+          compressed.length - compressedLength);
+    }
+
+    if (compressed.length - compressedLength < 8) {
+      compressed = grow(compressed, compressedLength);
+    }
+    writeIntLe((int) crc.getValue());
+    writeIntLe(plainLength);
+  }
+
+  private void writeIntLe(int value) {
+    compressed[compressedLength++] = (byte) value;
+    compressed[compressedLength++] = (byte) (value >>> 8);
+    compressed[compressedLength++] = (byte) (value >>> 16);
+    compressed[compressedLength++] = (byte) (value >>> 24);
+  }
+
+  private static byte[] grow(byte[] array, int used) {
+    byte[] larger = new byte[array.length * 2];
+    System.arraycopy(array, 0, larger, 0, used);
+    return larger;
+  }
+
+  /**
+   * Returns whether an Accept-Encoding header value permits gzip. An entry
+   * for {@code gzip} (or {@code x-gzip}) takes precedence over {@code *},
+   * and a coding is only acceptable with a q-value above zero.
+   */
+  static boolean acceptsGzip(String acceptEncoding) {
+    if (acceptEncoding == null) {
+      return false;
+    }
+    double gzipQuality = -1;
+    double anyQuality = -1;
+    for (String coding : acceptEncoding.split(",")) {
+      String[] parts = coding.trim().split(";");
+      String name = parts[0].trim();
+      if (name.equalsIgnoreCase("gzip") || name.equalsIgnoreCase("x-gzip")) {
+        gzipQuality = Math.max(gzipQuality, quality(parts));
+      } else if (name.equals("*")) {
+        anyQuality = Math.max(anyQuality, quality(parts));
+      }
+    }
+    return gzipQuality >= 0 ? gzipQuality > 0 : anyQuality > 0;
+  }
+
+  /** Returns the q-value among the parameters of a coding, 1 if absent. */
+  private static double quality(String[] parts) {
+    for (int i = 1; i < parts.length; i++) {
+      String[] param = parts[i].split("=", 2);
+      if (param.length == 2 && param[0].trim().equalsIgnoreCase("q")) {
+        try {
+          return Double.parseDouble(param[1].trim());
+        } catch (NumberFormatException e) {
+          // Not a qvalue; treated as if absent
+          return 1;
+        }
+      }
+    }
+    return 1;
+  }
+}
@@ -0,0 +1,170 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.function.LongSupplier;
+
+/**
+ * Serialized webhook responses by session, Dialogflow response ID and
+ * intent, so that a request Dialogflow or the Assistant retries is answered
+ * with the response already produced for it instead of running the handler
+ * again (and, for the transaction decision, proposing a second order).
+ *
+ * <p>The first request for a key stores its response future before running
+ * the handler, so duplicates that arrive while it is still running wait for
+ * the same future rather than starting their own. Failed responses are
+ * dropped, so a retry after a failure runs the handler again.
+ *
+ * <p>Entries expire {@code ttlMillis} after they were created and at most
+ * {@code maxEntries} are kept. As every entry lives equally long, the
+ * oldest is always the first to expire, so entries are evicted in insertion
+ * order from a queue, when they expire or to make room. Both checks happen
+ * as new entries are added.
+ */
+final class ResponseCache {
+
+  private final ConcurrentMap<String, Entry> entries =
+      new ConcurrentHashMap<>();
+  /** Entries in insertion order, including ones already removed. */
+  private final Queue<Entry> order = new ConcurrentLinkedQueue<>();
+  private final long ttlNanos;
+  private final int maxEntries;
+  private final LongSupplier nanoClock;
+
+  ResponseCache(Config config) {
+    this(config, System::nanoTime);
+  }
+
+  ResponseCache(Config config, LongSupplier nanoClock) {
+    this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(config.ttlMillis);
+    this.maxEntries = config.maxEntries;
+    this.nanoClock = nanoClock;
+  }
+
+  /**
+   * Returns the response for a request: the stored or in-flight response if
+   * it duplicates an earlier one, or else the response from
+   * {@code handler}, which is stored for the requests that duplicate this
+   * one. Nothing is stored if {@code responseId} or {@code sessionId} is
+   * null or the cache is disabled.
+   *
+   * @param handler given a callback that drops the response it produces,
+   *     so that duplicates run the handler again; for handlers that turn a
+   *     failure into a response. The callback only drops this request's
+   *     entry, never a newer one for the same key.
+   * @param replayed run when a stored or in-flight response is returned
+   */
+  CompletableFuture<String> get(String sessionId, String responseId,
+      String intent, Function<Runnable, CompletableFuture<String>> handler,
+      Runnable replayed) {
+    if (maxEntries <= 0 || sessionId == null || responseId == null) {
+      return handler.apply(() -> { });
+    }
+    String key = sessionId + '\n' + responseId + '\n' + intent;
+    long now = nanoClock.getAsLong();
+    Entry entry = new Entry(key, now);
+    while (true) {
+      Entry existing = entries.putIfAbsent(key, entry);
+      if (existing == null) {
+        break;
+      }
+      if (!existing.expired(now, ttlNanos)) {
+        replayed.run();
+        return existing.response;
+      }
+      if (entries.replace(key, existing, entry)) {
+        break;
+      }
+    }
+    order.add(entry);
+    evict(now);
+
+    CompletableFuture<String> response;
+    try {
+      response = handler.apply(() -> entries.remove(key, entry));
+    } catch (RuntimeException | Error e) {
+      entries.remove(key, entry);
+      entry.response.completeExceptionally(e);
+      throw e;
+    }
+    response.whenComplete((json, throwable) -> {
+      if (throwable != null) {
+        entries.remove(key, entry);
+        entry.response.completeExceptionally(throwable);
+      } else {
+        entry.response.complete(json);
+      }
+    });
+    return entry.response;
+  }
+
+  /** Returns the number of stored and in-flight responses. */
+  int size() {
+    return entries.size();
+  }
+
+  private void evict(long now) {
+    Entry oldest;
+    while ((oldest = order.peek()) != null
+        && (oldest.expired(now, ttlNanos) || entries.size() > maxEntries)) {
+      if (order.remove(oldest)) {
+        entries.remove(oldest.key, oldest);
+      }
+    }
+  }
+
+  private static final class Entry {
+
+    final String key;
+    final long createdNanos;
+    final CompletableFuture<String> response = new CompletableFuture<>();
+
+    Entry(String key, long createdNanos) {
+      this.key = key;
+      this.createdNanos = createdNanos;
+    }
+
+    boolean expired(long now, long ttlNanos) {
+      return now - createdNanos >= ttlNanos;
+    }
+  }
+
+  static final class Config {
+
+    final long ttlMillis;
+    final int maxEntries;
+
+    Config(long ttlMillis, int maxEntries) {
+      this.ttlMillis = ttlMillis;
+      this.maxEntries = maxEntries;
+    }
+
+    /** Set {@code actions.responses.maxEntries} to 0 to disable the cache. */
+    static Config fromSystemProperties() {
+      return new Config(
+          Long.getLong("actions.responses.ttlMillis", 60000L),
+          Integer.getInteger("actions.responses.maxEntries", 1024));
+    }
+  }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Server-side storage for the state of conversations, keyed by the session
+ * token that {@link ConversationStore} keeps in conversation data in place
+ * of the state itself.
+ *
+ * <p>This is the extension point for a store shared between instances, such
+ * as Memcached, Redis or Datastore. Values are opaque bytes of a few hundred
+ * bytes at most. Concurrent turns of a conversation are reconciled with
+ * {@link #compareAndSet}, so an implementation only needs an atomic
+ * compare-and-set of a single key, and may expire values that have not been
+ * written for a while. Calls are made while handling a webhook request, so
+ * an implementation that calls out to a service should bound them by the
+ * request's {@link Deadline#current()} and throw {@link IOException} when it
+ * runs out, which falls back to conversation data.
+ *
+ * <p>{@code actions.sessions.store} selects the store:
+ * <ul>
+ *   <li>{@code offheap} (the default): an {@link OffHeapSessionStore} in this
+ *       instance, for deployments whose conversations stay on one instance;
+ *       {@code appengine-web.xml} selects {@code conversation} instead, as
+ *       App Engine spreads a conversation over autoscaled instances
+ *   <li>{@code embedded}: an {@link EmbeddedSessionStore}, a stand-in for a
+ *       shared store to develop and test against
+ *   <li>{@code conversation}: no store; the whole state travels in
+ *       conversation data as it did before
+ *   <li>otherwise the name of a {@code SessionStore} class in this package
+ *       with a no-argument constructor, which reads its own configuration
+ * </ul>
+ */
+interface SessionStore extends Closeable {
+
+  /** Returns the value stored under {@code key}, or null if there is none. */
+  byte[] get(String key) throws IOException;
+
+  /**
+   * Stores {@code value} under {@code key} if the value stored there equals
+   * {@code expected}, or if there is none and {@code expected} is null.
+   *
+   * @return whether the value was stored
+   * @throws IOException if the value could not be stored, for example
+   *     because it is too large
+   */
+  boolean compareAndSet(String key, byte[] expected, byte[] value)
+      throws IOException;
+
+  @Override
+  default void close() {
+  }
+
+  /**
+   * Creates the store selected by {@code actions.sessions.store}, or returns
+   * null if the state is to be kept in conversation data.
+   */
+  static SessionStore fromSystemProperties() {
+    String store = System.getProperty("actions.sessions.store", "offheap");
+    switch (store) {
+      case "offheap":
+        return new OffHeapSessionStore(
+            OffHeapSessionStore.Config.fromSystemProperties());
+      case "embedded":
+        return new EmbeddedSessionStore(
+            EmbeddedSessionStore.Config.fromSystemProperties());
+      case "conversation":
+        return null;
+      default:
+        try {
+          return Class.forName(store).asSubclass(SessionStore.class)
+              .getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException | ClassCastException e) {
+          throw new IllegalArgumentException(
+              "Invalid actions.sessions.store: " + store, e);
+        }
+    }
+  }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A fixed-bucket histogram that threads can record into concurrently
+ * without locks or allocation. Counts are spread over stripes picked by
+ * thread ID, each stripe padded to its own cache lines, so request threads
+ * rarely write to the same line; a {@link #snapshot()} adds the stripes up.
+ */
+final class StripedHistogram {
+
+  private static final int STRIPES = stripes();
+  /** Longs between stripes, two cache lines, so stripes never share one. */
+  private static final int PADDING = 16;
+
+  private final long[] bounds;
+  private final int sumIndex;
+  private final int stride;
+  /** Per stripe: one count per bucket, then +Inf, then the sum of values. */
+  private final AtomicLongArray cells;
+
+  /**
+   * @param bounds the inclusive upper bound of each bucket, ascending;
+   *     larger values fall into an implicit last bucket
+   */
+  StripedHistogram(long... bounds) {
+    for (int i = 1; i < bounds.length; i++) {
+      if (bounds[i] <= bounds[i - 1]) {
+        throw new IllegalArgumentException(
+            "Bucket bounds must be ascending: " + Arrays.toString(bounds));
+      }
+    }
+    this.bounds = bounds.clone();
+    this.sumIndex = bounds.length + 1;
+    this.stride = sumIndex + 1 + PADDING;
+    this.cells = new AtomicLongArray(STRIPES * stride);
+  }
+
+  void record(long value) {
+    int bucket = Arrays.binarySearch(bounds, value);
+    if (bucket < 0) {
+      bucket = -bucket - 1;
+    }
+    int base = ((int) Thread.currentThread().getId() & (STRIPES - 1)) * stride;
+    cells.getAndIncrement(base + bucket);
+    cells.getAndAdd(base + sumIndex, value);
+  }
+
+  long[] bounds() {
+    return bounds.clone();
+  }
+
+  /** Adds up the stripes. Concurrent records may be partly included. */
+  Snapshot snapshot() {
+    long[] counts = new long[bounds.length + 1];
+    long sum = 0;
+    for (int stripe = 0; stripe < STRIPES; stripe++) {
+      int base = stripe * stride;
+      for (int i = 0; i < counts.length; i++) {
+        counts[i] += cells.get(base + i);
+      }
+      sum += cells.get(base + sumIndex);
+    }
+    return new Snapshot(counts, sum);
+  }
+
+  private static int stripes() {
+    int cpus = Runtime.getRuntime().availableProcessors();
+    return Math.min(Integer.highestOneBit(cpus * 2 - 1) << 1, 64);
+  }
+
+  /** Bucket counts and sum at one point in time. */
+  static final class Snapshot {
+
+    /** Count per bucket (not cumulative), the last one for +Inf. */
+    final long[] counts;
+    final long sum;
+
+    Snapshot(long[] counts, long sum) {
+      this.counts = counts;
+      this.sum = sum;
+    }
+
+    long count() {
+      long count = 0;
+      for (long c : counts) {
+        count += c;
+      }
+      return count;
+    }
+  }
+}
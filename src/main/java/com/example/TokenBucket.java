@@ -0,0 +1,71 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Token-bucket rate limiter. Tokens accrue at a fixed rate up to the bucket
+ * capacity, and {@link #acquire()} blocks until a token is available.
+ */
+final class TokenBucket {
+
+  private final double tokensPerNano;
+  private final double capacity;
+  private double tokens;
+  private long lastRefillNanos;
+
+  /**
+   * @throws IllegalArgumentException if {@code permitsPerSecond} is not a
+   *     positive, finite number
+   */
+  TokenBucket(double permitsPerSecond, int burst) {
+    if (!(permitsPerSecond > 0) || Double.isInfinite(permitsPerSecond)) {
+      throw new IllegalArgumentException(
+          "Invalid rate: " + permitsPerSecond + " permits per second");
+    }
+    this.tokensPerNano = permitsPerSecond / TimeUnit.SECONDS.toNanos(1);
+    this.capacity = Math.max(1, burst);
+    this.tokens = capacity;
+    this.lastRefillNanos = System.nanoTime();
+  }
+
+  /** Takes one token, sleeping until one is available. */
+  void acquire() throws InterruptedException {
+    long waitNanos;
+    while ((waitNanos = tryAcquire()) > 0) {
+      TimeUnit.NANOSECONDS.sleep(waitNanos);
+    }
+  }
+
+  /**
+   * Takes one token if available.
+   *
+   * @return 0 if a token was taken, otherwise the nanoseconds until the next
+   *     token accrues
+   */
+  private synchronized long tryAcquire() {
+    long now = System.nanoTime();
+    tokens = Math.min(capacity, tokens + (now - lastRefillNanos) * tokensPerNano);
+    lastRefillNanos = now;
+    if (tokens >= 1) {
+      tokens -= 1;
+      return 0;
+    }
+    return (long) Math.ceil((1 - tokens) / tokensPerNano);
+  }
+}
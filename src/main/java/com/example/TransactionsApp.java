@@ -24,154 +24,405 @@ import com.google.actions.api.response.ResponseBuilder;
 import com.google.actions.api.response.helperintent.DeliveryAddress;
 import com.google.actions.api.response.helperintent.transactions.v3.TransactionDecision;
 import com.google.actions.api.response.helperintent.transactions.v3.TransactionRequirements;
-import com.google.api.services.actions_fulfillment.v2.model.Action;
 import com.google.api.services.actions_fulfillment.v2.model.Argument;
 import com.google.api.services.actions_fulfillment.v2.model.DeliveryAddressValueSpecAddressOptions;
 import com.google.api.services.actions_fulfillment.v2.model.GooglePaymentOption;
-import com.google.api.services.actions_fulfillment.v2.model.LineItemV3;
 import com.google.api.services.actions_fulfillment.v2.model.Location;
 import com.google.api.services.actions_fulfillment.v2.model.MerchantPaymentMethod;
 import com.google.api.services.actions_fulfillment.v2.model.MerchantPaymentOption;
-import com.google.api.services.actions_fulfillment.v2.model.MerchantV3;
-import com.google.api.services.actions_fulfillment.v2.model.MoneyV3;
-import com.google.api.services.actions_fulfillment.v2.model.OpenUrlAction;
-import com.google.api.services.actions_fulfillment.v2.model.OrderContents;
-import com.google.api.services.actions_fulfillment.v2.model.OrderOptionsV3;
 import com.google.api.services.actions_fulfillment.v2.model.OrderUpdateV3;
 import com.google.api.services.actions_fulfillment.v2.model.OrderV3;
 import com.google.api.services.actions_fulfillment.v2.model.PaymentMethodDisplayInfo;
 import com.google.api.services.actions_fulfillment.v2.model.PaymentMethodStatus;
 import com.google.api.services.actions_fulfillment.v2.model.PaymentParameters;
-import com.google.api.services.actions_fulfillment.v2.model.PresentationOptionsV3;
-import com.google.api.services.actions_fulfillment.v2.model.PriceAttribute;
-import com.google.api.services.actions_fulfillment.v2.model.PurchaseFulfillmentInfo;
-import com.google.api.services.actions_fulfillment.v2.model.PurchaseItemExtension;
-import com.google.api.services.actions_fulfillment.v2.model.PurchaseItemExtensionItemOption;
 import com.google.api.services.actions_fulfillment.v2.model.PurchaseOrderExtension;
-import com.google.api.services.actions_fulfillment.v2.model.PurchaseReturnsInfo;
 import com.google.api.services.actions_fulfillment.v2.model.StructuredResponse;
-import com.google.api.services.actions_fulfillment.v2.model.TimeV3;
-import com.google.api.services.actions_fulfillment.v2.model.UserInfo;
-import com.google.api.services.actions_fulfillment.v2.model.UserInfoOptions;
-import com.google.auth.oauth2.AccessToken;
-import com.google.auth.oauth2.ServiceAccountCredentials;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
+import com.google.gson.JsonArray;
 import com.google.gson.JsonObject;
-import com.google.gson.JsonParser;
-import com.google.protobuf.FieldMask;
-import com.google.protobuf.util.FieldMaskUtil;
-import java.io.FileInputStream;
+import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStream;
-import java.text.MessageFormat;
+import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 import java.time.Instant;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.Locale;
 import java.util.Map;
-import java.util.ResourceBundle;
-import org.apache.http.HttpResponse;
-import org.apache.http.client.HttpClient;
-import org.apache.http.client.methods.HttpPatch;
-import org.apache.http.entity.ContentType;
-import org.apache.http.entity.StringEntity;
-import org.apache.http.impl.client.HttpClientBuilder;
-import org.json.simple.JSONArray;
-import org.json.simple.JSONObject;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import java.util.Random;
 
 public class TransactionsApp extends DialogflowApp {
 
   private static final Logger LOGGER = LoggerFactory.getLogger(TransactionsApp.class.getName());
 
-  private static final GsonBuilder GSON_BUILDER;
-  private static final LocationDeserializer LOCATION_DESERIALIZER;
+  // Gson is thread-safe; share one instance so its adapters are built once
+  private static final Gson GSON = new GsonBuilder()
+      .registerTypeAdapter(Location.class, new LocationTypeAdapter())
+      .create();
+
+  private static final ProductCatalog CATALOG =
+      ProductCatalog.fromSystemProperties();
+
+  // Tax rules by delivery region, resolved once; see PriceEngine
+  private static final PriceEngine PRICES =
+      PriceEngine.load("tax_rules.properties");
+
+  // Delivery zones and rates, indexed for lookup; see DeliveryZones
+  private static final DeliveryZones DELIVERY_ZONES =
+      DeliveryZones.fromSystemProperties();
+
+  private static final OrderTemplate ORDER_TEMPLATE =
+      OrderTemplate.memoirCollection(CATALOG, PRICES);
+
+  // Every locale's messages, parsed once; see MessageCatalog for fallback
+  private static final MessageCatalog MESSAGES =
+      MessageCatalog.load("resources");
+
+  // Deadline fallback responses, serialized once per message text
+  private static final Map<String, String> FALLBACKS =
+      new ConcurrentHashMap<>();
+
+  // Sent at a deadline when the request was not parsed in time
+  private static final String STATIC_FALLBACK = fallbackFor(null);
+
+  private static final OrderIdGenerator ORDER_IDS =
+      OrderIdGenerator.fromSystemProperties();
+
+  private static final PayloadLogger PAYLOADS =
+      PayloadLogger.fromSystemProperties();
+
+  // Conversation state kept on the server; see actions.sessions.store
+  private static final ConversationStore CONVERSATIONS =
+      new ConversationStore(SessionStore.fromSystemProperties());
+
+  private static final FacilitationSpecCache.MerchantConfig GOOGLE_PAY_MERCHANT =
+      new FacilitationSpecCache.MerchantConfig(
+          "Example Merchant",
+          "example",
+          "exampleGatewayMerchantId",
+          Arrays.asList("PAN_ONLY", "CRYPTOGRAM_3DS"),
+          Arrays.asList("AMEX", "DISCOVER", "JCB", "MASTERCARD", "VISA"));
+  private static final FacilitationSpecCache FACILITATION_SPECS =
+      new FacilitationSpecCache();
   static {
-    LOCATION_DESERIALIZER = new LocationDeserializer();
-    GSON_BUILDER = new GsonBuilder();
-    GSON_BUILDER.registerTypeAdapter(Location.class, LOCATION_DESERIALIZER);
+    FACILITATION_SPECS.putMerchant(GOOGLE_PAY_MERCHANT);
   }
 
-  private static String generateRandomOrderId() {
-    StringBuilder sb = new StringBuilder();
-    Random random = new Random();
-    String validCharacters = "ABCDEFGHIJKLMNOPQRSTUVWXYZ1234567890";
-    for (int i = 0; i < 6; i++) {
-      sb.append(validCharacters.charAt(random.nextInt(validCharacters.length())));
+  /**
+   * Journal of order updates still to be sent, with the relay that sends
+   * them. Opened on first use and only when {@code actions.outbox.dir} is
+   * set; updates journaled before a restart are sent when it is reopened.
+   *
+   * <p>Confirmed orders only get a follow-up update when
+   * {@code actions.outbox.followUpStatus} names the status to move them to,
+   * for example {@code DELIVERED} to demonstrate order updates. The webhook
+   * never learns the real state of an order, so nothing is journaled by
+   * default.
+   */
+  private static final class Outbox {
+
+    static final OrderOutbox INSTANCE = open();
+    static final String FOLLOW_UP_STATUS =
+        System.getProperty("actions.outbox.followUpStatus");
+
+    private static OrderOutbox open() {
+      OrderOutbox.Config config = OrderOutbox.Config.fromSystemProperties();
+      if (config == null) {
+        return null;
+      }
+      OrderOutbox outbox;
+      try {
+        outbox = OrderOutbox.open(config);
+      } catch (IOException e) {
+        LOGGER.error("Could not open order outbox " + config.directory, e);
+        return null;
+      }
+      long interval = Long.getLong("actions.outbox.relayIntervalMillis", 5000L);
+      if (interval > 0) {
+        try {
+          new OrderOutboxRelay(outbox, OrderUpdateClient.create(
+              OrderUpdateClient.Config.fromSystemProperties(), GSON))
+              .start(interval);
+        } catch (IOException e) {
+          LOGGER.error("Could not start order outbox relay; updates stay "
+              + "journaled until the outbox is drained", e);
+        }
+      }
+      return outbox;
     }
-    return sb.toString();
   }
 
-  private static void sendOrderUpdate(String orderId) throws IOException {
-    // Setup service account credentials
-    String serviceAccountKeyFileName = "service-account.json";
-    // Setup service account credentials
-    String serviceAccountFile = TransactionsApp.class.getClassLoader()
-        .getResource(serviceAccountKeyFileName)
-        .getFile();
-    InputStream actionsApiServiceAccount = new FileInputStream(
-        serviceAccountFile);
-    ServiceAccountCredentials serviceAccountCredentials = (ServiceAccountCredentials)
-        ServiceAccountCredentials.fromStream(actionsApiServiceAccount)
-            .createScoped(Collections.singleton(
-                "https://www.googleapis.com/auth/actions.order.developer"));
-    AccessToken token = serviceAccountCredentials.refreshAccessToken();
-
-    // Setup request with headers
-    HttpPatch request = new HttpPatch(
-        "https://actions.googleapis.com/v3/orders/" + orderId);
-    request.setHeader("Content-type", "application/json");
-    request.setHeader("Authorization", "Bearer " + token.getTokenValue());
-
-    // Create order update
-    FieldMask fieldMask = FieldMask.newBuilder().addAllPaths(Arrays.asList(
-        "lastUpdateTime",
-        "purchase.status",
-        "purchase.userVisibleStatusLabel"))
-        .build();
+  private final WebhookMetrics metrics;
+  private final IntentRouter router;
+  private final ResponseCache responses =
+      new ResponseCache(ResponseCache.Config.fromSystemProperties());
+
+  public TransactionsApp() {
+    this(new WebhookMetrics());
+  }
+
+  /**
+   * Binds the intent handlers and, where the agent is available (see
+   * {@code actions.agent.intentsDirectory}, default {@code agent/intents}),
+   * fails if any of its webhook intents has no handler.
+   */
+  TransactionsApp(WebhookMetrics metrics) {
+    this.metrics = metrics;
+    this.router = IntentRouter.forApp(this);
+    try {
+      router.validate(Paths.get(System.getProperty(
+          "actions.agent.intentsDirectory", "agent/intents")));
+    } catch (IOException e) {
+      throw new UncheckedIOException("Could not read the agent's intents", e);
+    }
+    // Register the handled intents up front so they are reported from zero
+    for (String intent : router.intents()) {
+      metrics.intent(intent);
+    }
+  }
+
+  /**
+   * Handles a request the way {@link DialogflowApp} does, but routes it
+   * through an {@link IntentRouter} instead of reflection. The dispatch,
+   * handler and serialize phases are timed and errors counted per intent in
+   * {@link WebhookMetrics}, and the phases are recorded as
+   * {@link FlightEvents}. Payloads are logged, redacted, for a sample of
+   * requests and for every failure; see {@link PayloadLogger}.
+   *
+   * <p>Retries of a request, which have the same session, response ID and
+   * intent, are answered with the response to the first one from a
+   * {@link ResponseCache} without running the handler again.
+   */
+  @Override
+  public CompletableFuture<String> handleRequest(String inputJson,
+      Map<?, ?> headers) {
+    return handleRequest(inputJson, headers, new Turn());
+  }
+
+  /**
+   * Handles a request as {@link #handleRequest(String, Map)} does, and fills
+   * in {@code turn} once the request is parsed so that it can be passed to
+   * {@link #timeOut}.
+   */
+  CompletableFuture<String> handleRequest(String inputJson,
+      Map<?, ?> headers, Turn turn) {
+    long start = System.nanoTime();
+    if (inputJson == null || inputJson.isEmpty()) {
+      rejected(start);
+      return super.handleRequest(inputJson, headers);
+    }
+    Object dispatch = FlightEvents.beginPhase();
+    ActionRequest request;
+    try {
+      request = createRequest(inputJson, headers);
+    } catch (Exception e) {
+      rejected(start);
+      PAYLOADS.logFailure("unknown", inputJson, e);
+      return handleError(e);
+    }
+    String intentName = request.getIntent();
+    turn.parsed(intentName, fallbackFor(request.getLocale()));
+    WebhookMetrics.Intent intent = metrics.intent(intentName);
+    FlightEvents.identify(intentName, request.getSessionId());
+    FlightEvents.endPhase(dispatch, "dispatch", inputJson.length());
+    long routed = System.nanoTime();
+    intent.dispatched(routed - start);
+    String sessionId = request.getSessionId();
+    String responseId = request.getWebhookRequest().getResponseId();
+    return responses.get(sessionId, responseId, intentName,
+        failed -> respond(request, intent, inputJson, routed, failed),
+        intent::replayed);
+  }
+
+  /**
+   * Runs the handler of a parsed request and serializes its response.
+   *
+   * @param failed run when the handler fails and its error message is
+   *     returned as the response, so that the message is not replayed
+   */
+  private CompletableFuture<String> respond(ActionRequest request,
+      WebhookMetrics.Intent intent, String inputJson, long routed,
+      Runnable failed) {
+    String intentName = request.getIntent();
+    Object handler = FlightEvents.beginPhase();
+    CompletableFuture<ActionResponse> future;
+    try {
+      future = router.route(request);
+    } catch (Exception e) {
+      intent.failed();
+      PAYLOADS.logFailure(intentName, inputJson, e);
+      return handleError(e);
+    }
+    return future
+        .thenApply(response -> {
+          long handled = System.nanoTime();
+          intent.handled(handled - routed);
+          FlightEvents.endPhase(handler, "handler", 0);
+          Object serialize = FlightEvents.beginPhase();
+          String json = response.toJson();
+          intent.serialized(System.nanoTime() - handled);
+          FlightEvents.endPhase(serialize, "serialize", json.length());
+          if (PAYLOADS.sample()) {
+            PAYLOADS.logExchange(intentName, inputJson, json);
+          }
+          return json;
+        })
+        .exceptionally(throwable -> {
+          intent.failed();
+          failed.run();
+          // The response is the error message, so log the cause here
+          LOGGER.error("Handling {} failed", intentName, throwable);
+          PAYLOADS.logFailure(intentName, inputJson, throwable);
+          return throwable.getMessage();
+        });
+  }
+
+  /**
+   * Answers a request that has reached its {@link Deadline} with a fallback
+   * response asking the user to try again, unless {@code response} is
+   * already complete, and counts a timeout for its intent if it is not. The
+   * fallback is in the locale of the request, chosen when the request was
+   * parsed, or the default locale if it has not been parsed yet. It sets no
+   * output contexts, so Dialogflow keeps the conversation's contexts, and
+   * with them its conversation data, and the turn can be repeated.
+   *
+   * <p>This runs on the deadline timer thread, so it only completes
+   * {@code response}; nothing is parsed or built here.
+   *
+   * <p>The handler is not interrupted. A repeated turn has a new response ID,
+   * so the {@link ResponseCache} does not recognize it, and handlers check
+   * {@link Deadline#currentExpired()} before side effects that outlive the
+   * request, such as journaling an order update, so that they are not done
+   * twice. A side effect already under way when the deadline passes still
+   * happens.
+   *
+   * @param turn the turn passed to {@link #handleRequest(String, Map, Turn)}
+   * @return whether {@code response} was completed with the fallback
+   */
+  boolean timeOut(Turn turn, CompletableFuture<String> response) {
+    String fallback = turn.fallback;
+    if (!response.complete(fallback != null ? fallback : STATIC_FALLBACK)) {
+      return false;
+    }
+    String intentName = turn.intentName;
+    metrics.intent(intentName).timedOut();
+    LOGGER.warn("Handling {} missed its deadline, sent the fallback response",
+        intentName);
+    return true;
+  }
+
+  /**
+   * What {@link #timeOut} needs to know about a request, recorded when the
+   * request is parsed. Both fields are null until then.
+   */
+  static final class Turn {
+    private volatile String intentName;
+    private volatile String fallback;
+
+    private void parsed(String intentName, String fallback) {
+      this.intentName = intentName;
+      this.fallback = fallback;
+    }
+  }
 
-    OrderUpdateV3 orderUpdate = new OrderUpdateV3()
-        .setOrder(new OrderV3()
-            .setMerchantOrderId(orderId)
-            .setLastUpdateTime(Instant.now().toString())
-            .setPurchase(new PurchaseOrderExtension()
-                .setStatus("DELIVERED")
-                .setUserVisibleStatusLabel("Order delivered.")))
-        .setUpdateMask(FieldMaskUtil.toString(fieldMask))
-        .setReason("Order status was updated to delivered.");
-
-    // Setup JSON body containing order update
-    JsonParser parser = new JsonParser();
-    JsonObject orderUpdateJson =
-        parser.parse(new Gson().toJson(orderUpdate)).getAsJsonObject();
-    JsonObject body = new JsonObject();
-    body.add("orderUpdate", orderUpdateJson);
-    JsonObject header = new JsonObject();
-    header.addProperty("isInSandbox", true);
-    body.add("header", header);
-    StringEntity entity = new StringEntity(body.toString());
-    entity.setContentType(ContentType.APPLICATION_JSON.getMimeType());
-    request.setEntity(entity);
-
-    // Make request
-    HttpClient httpClient = HttpClientBuilder.create().build();
-    HttpResponse response = httpClient.execute(request);
-    LOGGER.info(response.getStatusLine().getStatusCode() + " " + response
-        .getStatusLine().getReasonPhrase());
+  /**
+   * Returns the serialized deadline fallback response for {@code locale},
+   * which may be null for the default locale.
+   */
+  private static String fallbackFor(Locale locale) {
+    String text = MESSAGES.forLocale(locale).get("deadline_exceeded");
+    return FALLBACKS.computeIfAbsent(text, TransactionsApp::fallback);
   }
 
-  public static void main(String[] args) throws IOException {
+  /**
+   * Returns a minimal webhook response with the message {@code text}, which
+   * keeps the conversation going.
+   */
+  private static String fallback(String text) {
+    JsonObject simpleResponse = new JsonObject();
+    simpleResponse.addProperty("textToSpeech", text);
+    JsonObject item = new JsonObject();
+    item.add("simpleResponse", simpleResponse);
+    JsonArray items = new JsonArray();
+    items.add(item);
+    JsonObject richResponse = new JsonObject();
+    richResponse.add("items", items);
+    JsonObject google = new JsonObject();
+    google.addProperty("expectUserResponse", true);
+    google.add("richResponse", richResponse);
+    JsonObject payload = new JsonObject();
+    payload.add("google", google);
+    JsonObject response = new JsonObject();
+    response.addProperty("fulfillmentText", text);
+    response.add("payload", payload);
+    return response.toString();
+  }
+
+  /** Counts a request that could not be parsed, under the unknown intent. */
+  private void rejected(long start) {
+    WebhookMetrics.Intent unknown = metrics.intent(null);
+    unknown.dispatched(System.nanoTime() - start);
+    unknown.failed();
+  }
+
+  private static void sendOrderUpdate(OrderUpdateClient client,
+      String orderId) throws IOException {
+    client.send(OrderUpdates.statusUpdate(orderId, "DELIVERED", null));
+  }
+
+  /**
+   * Sends order updates. Without arguments a single DELIVERED update is sent
+   * for the order ID below. With {@code --bulk <file>} (or {@code --bulk -}
+   * for stdin) updates are streamed from the file, one
+   * {@code orderId,STATUS[,label]} per line; see {@link BulkOrderUpdater}.
+   * With {@code --outbox} the updates left in the order outbox (see
+   * {@code actions.outbox.dir}) by a stopped server are sent.
+   */
+  public static void main(String[] args)
+      throws IOException, InterruptedException {
     String uniqueOrderId = "<UNIQUE_ORDER_ID>";
-    sendOrderUpdate(uniqueOrderId);
+    try (OrderUpdateClient client = OrderUpdateClient.create(
+        OrderUpdateClient.Config.fromSystemProperties(), GSON)) {
+      if (args.length > 0 && args[0].equals("--bulk")) {
+        String source = args.length > 1 ? args[1] : "-";
+        try (BufferedReader input = new BufferedReader(source.equals("-")
+            ? new InputStreamReader(System.in, StandardCharsets.UTF_8)
+            : Files.newBufferedReader(Paths.get(source)))) {
+          long failed = new BulkOrderUpdater(client,
+              BulkOrderUpdater.Config.fromSystemProperties()).run(input);
+          if (failed > 0) {
+            LOGGER.error("{} order updates failed", failed);
+          }
+        }
+      } else if (args.length > 0 && args[0].equals("--outbox")) {
+        OrderOutbox.Config config = OrderOutbox.Config.fromSystemProperties();
+        if (config == null) {
+          throw new IllegalArgumentException("actions.outbox.dir is not set");
+        }
+        try (OrderOutbox outbox = OrderOutbox.open(config)) {
+          int left = new OrderOutboxRelay(outbox, client).drain();
+          if (left > 0) {
+            LOGGER.error("{} order updates are still pending", left);
+          }
+        }
+      } else {
+        sendOrderUpdate(client, uniqueOrderId);
+      }
+    }
   }
 
   @ForIntent("Default Welcome Intent")
   public ActionResponse welcome(ActionRequest request) {
-    ResourceBundle rb = ResourceBundle.getBundle("resources", request.getLocale());
+    MessageCatalog.Messages messages = MESSAGES.forLocale(request.getLocale());
     return getResponseBuilder(request)
-        .add(rb.getString("welcome"))
+        .add(messages.get("welcome"))
         .addSuggestions(new String[]{"Merchant Transaction", "Google Pay Transaction"})
         .build();
   }
@@ -199,8 +450,7 @@ public class TransactionsApp extends DialogflowApp {
   public ActionResponse transactionCheckComplete(ActionRequest request) {
     LOGGER.info("Checking Transaction Requirements Result.");
 
-    ResourceBundle rb = ResourceBundle
-        .getBundle("resources", request.getLocale());
+    MessageCatalog.Messages messages = MESSAGES.forLocale(request.getLocale());
 
     // Check result of transaction requirements check
     Argument transactionCheckResult = request
@@ -217,10 +467,10 @@ public class TransactionsApp extends DialogflowApp {
     ResponseBuilder responseBuilder = getResponseBuilder(request);
     if (result) {
       responseBuilder
-          .add(rb.getString("get_delivery_address"))
+          .add(messages.get("get_delivery_address"))
           .addSuggestions(new String[]{"get delivery address"});
     } else {
-      responseBuilder.add(rb.getString("transaction_failed"));
+      responseBuilder.add(messages.get("transaction_failed"));
     }
     return responseBuilder.build();
   }
@@ -228,13 +478,12 @@ public class TransactionsApp extends DialogflowApp {
   // Asks for a delivery address to associate with the transaction
   @ForIntent("Delivery Address")
   public ActionResponse deliveryAddress(ActionRequest request) {
-    ResourceBundle rb = ResourceBundle
-        .getBundle("resources", request.getLocale());
+    MessageCatalog.Messages messages = MESSAGES.forLocale(request.getLocale());
 
     // Create options containing reason for asking for delivery address
     DeliveryAddressValueSpecAddressOptions addressOptions =
         new DeliveryAddressValueSpecAddressOptions()
-            .setReason(rb.getString("reason"));
+            .setReason(messages.get("reason"));
 
     return getResponseBuilder(request)
         .add("Placeholder for delivery address text")
@@ -245,8 +494,7 @@ public class TransactionsApp extends DialogflowApp {
   // Verifies delivery address and caches it for later use
   @ForIntent("Delivery Address Complete")
   public ActionResponse deliveryAddressComplete(ActionRequest request) {
-    ResourceBundle rb = ResourceBundle
-        .getBundle("resources", request.getLocale());
+    MessageCatalog.Messages messages = MESSAGES.forLocale(request.getLocale());
 
     // Check delivery address value
     Argument deliveryAddressValue = request
@@ -264,16 +512,18 @@ public class TransactionsApp extends DialogflowApp {
     }
 
     ResponseBuilder responseBuilder = getResponseBuilder(request);
-    if (deliveryAddress != null) {
-      // Cache delivery address in conversation data for later use
-      Map<String, Object> conversationData = request.getConversationData();
-      conversationData.put("location",
-          GSON_BUILDER.create().toJson(deliveryAddress, Location.class));
+    if (deliveryAddress == null) {
+      responseBuilder.add(messages.get("delivery_address_failed"));
+    } else if (DELIVERY_ZONES.find(deliveryAddress) == null) {
+      responseBuilder.add(messages.get("delivery_address_unserved"));
+    } else {
+      // Keep the delivery address in the conversation state for later use
+      Location location = deliveryAddress;
+      CONVERSATIONS.update(request.getConversationData(),
+          state -> state.setLocation(location));
       responseBuilder
-          .add(rb.getString("confirm_transaction"))
+          .add(messages.get("confirm_transaction"))
           .addSuggestions(new String[]{"confirm transaction"});
-    } else {
-      responseBuilder.add(rb.getString("delivery_address_failed"));
     }
     return responseBuilder.build();
   }
@@ -282,325 +532,35 @@ public class TransactionsApp extends DialogflowApp {
   public ActionResponse transactionDecision(ActionRequest request) {
     LOGGER.info("Checking Transaction Decision.");
 
-    Map<String, Object> conversationData = request.getConversationData();
-    String orderId = generateRandomOrderId();
-    conversationData.put("UNIQUE_ORDER_ID", orderId);
-
-    // Build the Order
-
-    // Transaction Merchant
-    MerchantV3 transactionMerchant = new MerchantV3()
-        .setId("http://www.example.com")
-        .setName("Example Merchant");
-
-    // Line Items
-    LineItemV3 firstItem = new LineItemV3()
-        .setId("memoirs_1")
-        .setName("My Memoirs")
-        .setPriceAttributes(Arrays.asList(
-            new PriceAttribute()
-                .setType("REGULAR")
-                .setName("Item Price")
-                .setState("ACTUAL")
-                .setAmount(new MoneyV3()
-                    .setCurrencyCode("USD")
-                    .setAmountInMicros(3990000L))
-                .setTaxIncluded(true),
-            new PriceAttribute()
-                .setType("TOTAL")
-                .setName("Total Price")
-                .setState("ACTUAL")
-                .setAmount(new MoneyV3()
-                    .setCurrencyCode("USD")
-                    .setAmountInMicros(3990000L))
-                .setTaxIncluded(true)))
-        .setNotes(Collections.singletonList("Note from the author."))
-        .setPurchase(new PurchaseItemExtension()
-            .setQuantity(1));
-
-    LineItemV3 secondItem = new LineItemV3()
-        .setId("memoirs_2")
-        .setName("Memoirs of a person")
-        .setPriceAttributes(Arrays.asList(
-            new PriceAttribute()
-                .setType("REGULAR")
-                .setName("Item Price")
-                .setState("ACTUAL")
-                .setAmount(new MoneyV3()
-                    .setCurrencyCode("USD")
-                    .setAmountInMicros(5990000L))
-                .setTaxIncluded(true),
-            new PriceAttribute()
-                .setType("TOTAL")
-                .setName("Total Price")
-                .setState("ACTUAL")
-                .setAmount(new MoneyV3()
-                    .setCurrencyCode("USD")
-                    .setAmountInMicros(5990000L))
-                .setTaxIncluded(true)))
-        .setNotes(Collections.singletonList("Special introduction by author."))
-        .setPurchase(new PurchaseItemExtension()
-            .setQuantity(1));
-
-    LineItemV3 thirdItem = new LineItemV3()
-        .setId("memoirs_3")
-        .setName("Their memoirs")
-        .setPriceAttributes(Arrays.asList(
-            new PriceAttribute()
-                .setType("REGULAR")
-                .setName("Item Price")
-                .setState("ACTUAL")
-                .setAmount(new MoneyV3()
-                    .setCurrencyCode("USD")
-                    .setAmountInMicros(15750000L))
-                .setTaxIncluded(true),
-            new PriceAttribute()
-                .setType("TOTAL")
-                .setName("Total Price")
-                .setState("ACTUAL")
-                .setAmount(new MoneyV3()
-                    .setCurrencyCode("USD")
-                    .setAmountInMicros(15750000L))
-                .setTaxIncluded(true)))
-        .setPurchase(new PurchaseItemExtension()
-            .setQuantity(1)
-            .setItemOptions(Collections.singletonList(
-                new PurchaseItemExtensionItemOption()
-                    .setId("memoirs_epilogue")
-                    .setName("Special memoir epilogue")
-                    .setPrices(Arrays.asList(
-                        new PriceAttribute()
-                            .setType("REGULAR")
-                            .setName("Item Price")
-                            .setState("ACTUAL")
-                            .setAmount(new MoneyV3()
-                                .setCurrencyCode("USD")
-                                .setAmountInMicros(3990000L))
-                            .setTaxIncluded(true),
-                        new PriceAttribute()
-                            .setType("TOTAL")
-                            .setName("Total Price")
-                            .setState("ACTUAL")
-                            .setAmount(new MoneyV3()
-                                .setCurrencyCode("USD")
-                                .setAmountInMicros(3990000L))
-                            .setTaxIncluded(true))))));
-
-    LineItemV3 fourthItem = new LineItemV3()
-        .setId("memoirs_4")
-        .setName("Our memoirs")
-        .setPriceAttributes(Arrays.asList(
-            new PriceAttribute()
-                .setType("REGULAR")
-                .setName("Item Price")
-                .setState("ACTUAL")
-                .setAmount(new MoneyV3()
-                    .setCurrencyCode("USD")
-                    .setAmountInMicros(6490000L))
-                .setTaxIncluded(true),
-            new PriceAttribute()
-                .setType("TOTAL")
-                .setName("Total Price")
-                .setState("ACTUAL")
-                .setAmount(new MoneyV3()
-                    .setCurrencyCode("USD")
-                    .setAmountInMicros(6490000L))
-                .setTaxIncluded(true)))
-        .setNotes(Collections.singletonList("Special introduction by author."))
-        .setPurchase(new PurchaseItemExtension()
-            .setQuantity(1));
-
-    // Order Contents
-    OrderContents contents = new OrderContents()
-        .setLineItems(Arrays.asList(firstItem, secondItem, thirdItem, fourthItem));
-
-    // User Info
-    UserInfo buyerInfo = new UserInfo()
-        .setEmail("janedoe@gmail.com")
-        .setFirstName("Jane")
-        .setLastName("Doe")
-        .setDisplayName("Jane Doe");
-
-    // Price Attributes
-    PriceAttribute subTotal = new PriceAttribute()
-        .setType("SUBTOTAL")
-        .setName("Subtotal")
-        .setState("ESTIMATE")
-        .setAmount(new MoneyV3()
-            .setCurrencyCode("USD")
-            .setAmountInMicros(32220000L)
-        )
-        .setTaxIncluded(true);
-
-    PriceAttribute deliveryFee = new PriceAttribute()
-        .setType("DELIVERY")
-        .setName("Delivery")
-        .setState("ACTUAL")
-        .setAmount(new MoneyV3()
-            .setCurrencyCode("USD")
-            .setAmountInMicros(2000000L)
-        )
-        .setTaxIncluded(true);
-
-    PriceAttribute tax = new PriceAttribute()
-        .setType("TAX")
-        .setName("Tax")
-        .setState("ESTIMATE")
-        .setAmount(new MoneyV3()
-            .setCurrencyCode("USD")
-            .setAmountInMicros(2780000L)
-        )
-        .setTaxIncluded(true);
-
-    PriceAttribute totalPrice = new PriceAttribute()
-        .setType("TOTAL")
-        .setName("Total Price")
-        .setState("ESTIMATE")
-        .setAmount(new MoneyV3()
-            .setCurrencyCode("USD")
-            .setAmountInMicros(37000000L)
-        )
-        .setTaxIncluded(true);
-
-    // Follow up actions
-    Action viewDetails = new Action()
-        .setType("VIEW_DETAILS")
-        .setTitle("View details")
-        .setOpenUrlAction(new OpenUrlAction()
-            .setUrl("https://example.com"));
-
-    Action call = new Action()
-        .setType("CALL")
-        .setTitle("Call us")
-        .setOpenUrlAction(new OpenUrlAction()
-            .setUrl("tel:+16501112222"));
-
-    Action email = new Action()
-        .setType("EMAIL")
-        .setTitle("Email us")
-        .setOpenUrlAction(new OpenUrlAction()
-            .setUrl("mailto:person@example.com"));
-
-    // Terms of service and order note
-    String termsOfServiceUrl = "https://example.com";
-    String orderNote = "The Memoir collection";
-
-    Location location = GSON_BUILDER.create().fromJson(
-        (String) conversationData.get("location"), Location.class);
-
-    // Purchase Order Extension
-    PurchaseOrderExtension purchaseOrderExtension = new PurchaseOrderExtension()
-        .setStatus("CREATED")
-        .setUserVisibleStatusLabel("CREATED")
-        .setType("RETAIL")
-        .setReturnsInfo(new PurchaseReturnsInfo()
-            .setIsReturnable(false)
-            .setDaysToReturn(1)
-            .setPolicyUrl("https://example.com"))
-        .setFulfillmentInfo(new PurchaseFulfillmentInfo()
-            .setId("FULFILLMENT_SERVICE_ID")
-            .setFulfillmentType("DELIVERY")
-            .setExpectedFulfillmentTime(new TimeV3()
-                .setTimeIso8601("2025-09-25T18:00:00.877Z"))
-            .setLocation(location)
-            .setPrice(new PriceAttribute()
-                .setType("REGULAR")
-                .setName("Delivery price")
-                .setState("ACTUAL")
-                .setAmount(new MoneyV3()
-                    .setCurrencyCode("USD")
-                    .setAmountInMicros(2000000L))
-                .setTaxIncluded(true))
-            .setFulfillmentContact(new UserInfo()
-                .setEmail("johnjohnson@gmail.com")
-                .setFirstName("John")
-                .setLastName("Johnson")
-                .setDisplayName("John Johnson")))
-        .setPurchaseLocationType("ONLINE_PURCHASE");
-
-    String now = Instant.now().toString();
-
-    OrderV3 order = new OrderV3()
-        .setCreateTime(now)
-        .setLastUpdateTime(now)
-        .setMerchantOrderId(orderId)
-        .setUserVisibleOrderId(orderId)
-        .setTransactionMerchant(transactionMerchant)
-        .setContents(contents)
-        .setBuyerInfo(buyerInfo)
-        .setPriceAttributes(Arrays.asList(
-            subTotal,
-            deliveryFee,
-            tax,
-            totalPrice
-        ))
-        .setFollowUpActions(Arrays.asList(
-            viewDetails,
-            call,
-            email
-        ))
-        .setTermsOfServiceUrl(termsOfServiceUrl)
-        .setNote(orderNote)
-        .setPurchase(purchaseOrderExtension);
-
-    // Create presentation options
-    PresentationOptionsV3 presentationOptions = new PresentationOptionsV3()
-        .setActionDisplayName("PLACE_ORDER");
-
-    // Create order options
-    OrderOptionsV3 orderOptions = new OrderOptionsV3()
-        .setUserInfoOptions(new UserInfoOptions()
-            .setUserInfoProperties(Collections.singletonList("EMAIL")));
+    Location location =
+        CONVERSATIONS.read(request.getConversationData()).getLocation();
+    // Checked when the address was given, but the zones may have changed
+    DeliveryZones.Zone zone = DELIVERY_ZONES.find(location);
+    if (zone == null) {
+      return getResponseBuilder(request)
+          .add(MESSAGES.forLocale(request.getLocale())
+              .get("delivery_address_unserved"))
+          .build();
+    }
+
+    String orderId = ORDER_IDS.next();
+    FlightEvents.orderId(orderId);
+    CONVERSATIONS.update(request.getConversationData(),
+        state -> state.setOrderId(orderId));
+
+    // Build the Order from the shared template, pricing it for the location
+    PriceEngine.Quote quote = new PriceEngine.Quote();
+    OrderV3 order = ORDER_TEMPLATE.newOrder(orderId,
+        OrderIdGenerator.userVisible(orderId), Instant.now(), location, zone,
+        quote);
 
     // Create payment parameters
     PaymentParameters paymentParameters = new PaymentParameters();
     if (request.getContext("google_payment") != null) {
-
-      JSONObject merchantInfo = new JSONObject();
-      merchantInfo.put("merchantName", "Example Merchant");
-
-      JSONObject facilitationSpec = new JSONObject();
-      facilitationSpec.put("apiVersion", 2);
-      facilitationSpec.put("apiVersionMinor", 0);
-      facilitationSpec.put("merchantInfo", merchantInfo);
-
-      JSONObject allowedPaymentMethod = new JSONObject();
-      allowedPaymentMethod.put("type", "CARD");
-
-      JSONArray allowedAuthMethods = new JSONArray();
-      allowedAuthMethods.addAll(Arrays.asList("PAN_ONLY", "CRYPTOGRAM_3DS"));
-      JSONArray allowedCardNetworks = new JSONArray();
-      allowedCardNetworks.addAll(Arrays.asList("AMEX", "DISCOVER", "JCB", "MASTERCARD", "VISA"));
-
-      JSONObject allowedPaymentMethodParameters = new JSONObject();
-      allowedPaymentMethodParameters.put("allowedAuthMethods", allowedAuthMethods);
-      allowedPaymentMethodParameters.put("allowedCardNetworks", allowedCardNetworks);
-
-      allowedPaymentMethod.put("parameters", allowedPaymentMethodParameters);
-
-      JSONObject tokenizationSpecificationParameters = new JSONObject();
-      tokenizationSpecificationParameters.put("gateway", "example");
-      tokenizationSpecificationParameters.put("gatewayMerchantId", "exampleGatewayMerchantId");
-
-      JSONObject tokenizationSpecification = new JSONObject();
-      tokenizationSpecification.put("type", "PAYMENT_GATEWAY");
-      tokenizationSpecification.put("parameters", tokenizationSpecificationParameters);
-      allowedPaymentMethod.put("tokenizationSpecification", tokenizationSpecification);
-
-      JSONArray allowedPaymentMethods = new JSONArray();
-      allowedPaymentMethods.add(allowedPaymentMethod);
-
-      facilitationSpec.put("allowedPaymentMethods", allowedPaymentMethods);
-
-      JSONObject transactionInfo = new JSONObject();
-      transactionInfo.put("totalPriceStatus", "FINAL");
-      transactionInfo.put("totalPrice", "37.00");
-      transactionInfo.put("currencyCode", "USD");
-
-      facilitationSpec.put("transactionInfo", transactionInfo);
-
       GooglePaymentOption googlePaymentOption = new GooglePaymentOption()
-          .setFacilitationSpec(facilitationSpec.toJSONString());
+          .setFacilitationSpec(FACILITATION_SPECS.get(
+              GOOGLE_PAY_MERCHANT.merchantName(),
+              quote.rule.currencyCode, quote.totalPrice()));
       paymentParameters.setGooglePaymentOption(googlePaymentOption);
     } else {
       MerchantPaymentMethod merchantPaymentMethod = new MerchantPaymentMethod()
@@ -624,8 +584,8 @@ public class TransactionsApp extends DialogflowApp {
     return getResponseBuilder(request)
         .add(new TransactionDecision()
             .setOrder(order)
-            .setOrderOptions(orderOptions)
-            .setPresentationOptions(presentationOptions)
+            .setOrderOptions(ORDER_TEMPLATE.orderOptions())
+            .setPresentationOptions(ORDER_TEMPLATE.presentationOptions())
             .setPaymentParameters(paymentParameters)
         )
         .build();
@@ -634,7 +594,7 @@ public class TransactionsApp extends DialogflowApp {
   // Check result of asking to perform transaction / place order
   @ForIntent("Transaction Decision Complete")
   public ActionResponse transactionDecisionComplete(ActionRequest request) {
-    ResourceBundle rb = ResourceBundle.getBundle("resources", request.getLocale());
+    MessageCatalog.Messages messages = MESSAGES.forLocale(request.getLocale());
 
     // Check transaction decision value
     Argument transactionDecisionValue = request
@@ -665,16 +625,41 @@ public class TransactionsApp extends DialogflowApp {
           .setReason("Reason string")
           .setOrder(order);
 
-      Map<String, Object> conversationData = request.getConversationData();
-      String orderId = (String) conversationData.get("UNIQUE_ORDER_ID");
-      String response = MessageFormat.format(
-          rb.getString("transaction_decision_result_success"),
-          orderId);
+      String orderId =
+          CONVERSATIONS.read(request.getConversationData()).getOrderId();
+      FlightEvents.orderId(orderId);
+      if (orderId == null) {
+        // The state expired or was lost, so the order cannot be confirmed
+        LOGGER.warn("No order ID in the conversation state of {}",
+            request.getSessionId());
+        return responseBuilder
+            .add(messages.get("transaction_failed"))
+            .endConversation()
+            .build();
+      }
+
+      // Journal the follow-up update so it is not lost if we go down
+      OrderOutbox outbox = Outbox.INSTANCE;
+      String followUpStatus = Outbox.FOLLOW_UP_STATUS;
+      if (Deadline.currentExpired()) {
+        // The user was sent the fallback and will repeat the turn
+        LOGGER.warn("Out of time, not journaling the update for {}",
+            orderId);
+      } else if (outbox != null && followUpStatus != null) {
+        try {
+          outbox.append(
+              OrderUpdates.statusUpdate(orderId, followUpStatus, null));
+        } catch (IOException e) {
+          LOGGER.error("Could not journal order update for " + orderId, e);
+        }
+      }
+      String response = messages.format("transaction_decision_result_success",
+          OrderIdGenerator.userVisible(orderId));
       responseBuilder
           .add(response)
           .add(new StructuredResponse().setOrderUpdateV3(orderUpdate));
     } else {
-      responseBuilder.add(rb.getString("transaction_failed"));
+      responseBuilder.add(messages.get("transaction_failed"));
     }
     return responseBuilder.endConversation().build();
   }
@@ -0,0 +1,274 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Request metrics of the webhook, exposed in the Prometheus text format by
+ * {@link ActionsServlet} on {@code actions.metrics.path}.
+ *
+ * <p>Per intent there are request, error, replay and timeout counts, replays
+ * being duplicate requests answered from the {@link ResponseCache} and
+ * timeouts requests answered with a fallback at their {@link Deadline}, and
+ * the time spent in each phase of handling a request:
+ * <ul>
+ *   <li>{@code dispatch}: parsing the request into an {@code ActionRequest}
+ *   <li>{@code handler}: routing to the {@code @ForIntent} method and
+ *       running it
+ *   <li>{@code serialize}: rendering the {@code ActionResponse} as JSON
+ * </ul>
+ * Reading the body, the payload sizes and the requests in flight are
+ * recorded for the webhook as a whole, as the intent is not known yet when
+ * they are measured.
+ *
+ * <p>Recording only adds to {@link LongAdder}s and
+ * {@link StripedHistogram}s, so it takes no locks and does not allocate once
+ * an intent has been seen. At most {@link #MAX_INTENTS} intent names are
+ * tracked; requests for any other intent are counted as {@code other}.
+ */
+final class WebhookMetrics {
+
+  static final String UNKNOWN_INTENT = "unknown";
+  static final String OTHER_INTENT = "other";
+  static final int MAX_INTENTS = 100;
+
+  static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+  private static final long[] LATENCY_BOUNDS_NANOS = nanos(
+      0.0001, 0.00025, 0.0005, 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1,
+      0.25, 0.5, 1, 2.5, 5, 10);
+  private static final long[] SIZE_BOUNDS_BYTES = {
+      256, 1024, 4096, 16384, 65536, 262144, 1048576};
+
+  private final ConcurrentMap<String, Intent> intents =
+      new ConcurrentHashMap<>();
+  private final Intent other = new Intent();
+  private final StripedHistogram bodyRead =
+      new StripedHistogram(LATENCY_BOUNDS_NANOS);
+  private final StripedHistogram requestBytes =
+      new StripedHistogram(SIZE_BOUNDS_BYTES);
+  private final StripedHistogram responseBytes =
+      new StripedHistogram(SIZE_BOUNDS_BYTES);
+  private final LongAdder inFlight = new LongAdder();
+
+  /** Returns the metrics of {@code name}, or of unknown if it is null. */
+  Intent intent(String name) {
+    if (name == null) {
+      name = UNKNOWN_INTENT;
+    }
+    Intent intent = intents.get(name);
+    if (intent != null) {
+      return intent;
+    }
+    if (intents.size() >= MAX_INTENTS) {
+      return other;
+    }
+    intent = new Intent();
+    Intent existing = intents.putIfAbsent(name, intent);
+    return existing != null ? existing : intent;
+  }
+
+  void requestStarted() {
+    inFlight.increment();
+  }
+
+  void requestFinished() {
+    inFlight.decrement();
+  }
+
+  void bodyRead(long nanos, int bytes) {
+    bodyRead.record(nanos);
+    requestBytes.record(bytes);
+  }
+
+  void responseEncoded(int bytes) {
+    responseBytes.record(bytes);
+  }
+
+  /** Appends every metric in the Prometheus text exposition format. */
+  void writeTo(StringBuilder out) {
+    Map<String, Intent> sorted = new TreeMap<>(intents);
+    if (other.requests.sum() > 0) {
+      sorted.put(OTHER_INTENT, other);
+    }
+
+    header(out, "actions_webhook_requests_total", "counter",
+        "Webhook requests handled, by intent.");
+    for (Map.Entry<String, Intent> e : sorted.entrySet()) {
+      sample(out, "actions_webhook_requests_total", intentLabel(e.getKey()),
+          e.getValue().requests.sum());
+    }
+    header(out, "actions_webhook_errors_total", "counter",
+        "Webhook requests that failed, by intent.");
+    for (Map.Entry<String, Intent> e : sorted.entrySet()) {
+      sample(out, "actions_webhook_errors_total", intentLabel(e.getKey()),
+          e.getValue().errors.sum());
+    }
+    header(out, "actions_webhook_replayed_total", "counter",
+        "Duplicate webhook requests answered with a cached response, by "
+        + "intent.");
+    for (Map.Entry<String, Intent> e : sorted.entrySet()) {
+      sample(out, "actions_webhook_replayed_total", intentLabel(e.getKey()),
+          e.getValue().replayed.sum());
+    }
+    header(out, "actions_webhook_timeouts_total", "counter",
+        "Webhook requests answered with a fallback response at their "
+        + "deadline, by intent.");
+    for (Map.Entry<String, Intent> e : sorted.entrySet()) {
+      sample(out, "actions_webhook_timeouts_total", intentLabel(e.getKey()),
+          e.getValue().timeouts.sum());
+    }
+    header(out, "actions_webhook_phase_seconds", "histogram",
+        "Time spent in each phase of handling a request, by intent.");
+    for (Map.Entry<String, Intent> e : sorted.entrySet()) {
+      String intent = intentLabel(e.getKey());
+      Intent metrics = e.getValue();
+      seconds(out, "actions_webhook_phase_seconds",
+          intent + ",phase=\"dispatch\"", metrics.dispatch);
+      seconds(out, "actions_webhook_phase_seconds",
+          intent + ",phase=\"handler\"", metrics.handler);
+      seconds(out, "actions_webhook_phase_seconds",
+          intent + ",phase=\"serialize\"", metrics.serialize);
+    }
+
+    header(out, "actions_webhook_body_read_seconds", "histogram",
+        "Time spent reading request bodies.");
+    seconds(out, "actions_webhook_body_read_seconds", "", bodyRead);
+    header(out, "actions_webhook_request_bytes", "histogram",
+        "Size of request bodies.");
+    histogram(out, "actions_webhook_request_bytes", "", requestBytes,
+        false);
+    header(out, "actions_webhook_response_bytes", "histogram",
+        "Size of response bodies as sent, after compression.");
+    histogram(out, "actions_webhook_response_bytes", "", responseBytes,
+        false);
+    header(out, "actions_webhook_in_flight_requests", "gauge",
+        "Webhook requests being handled.");
+    sample(out, "actions_webhook_in_flight_requests", "", inFlight.sum());
+  }
+
+  private static void header(StringBuilder out, String name, String type,
+      String help) {
+    out.append("# HELP ").append(name).append(' ').append(help).append('\n')
+        .append("# TYPE ").append(name).append(' ').append(type).append('\n');
+  }
+
+  private static void sample(StringBuilder out, String name, String labels,
+      Object value) {
+    out.append(name);
+    if (!labels.isEmpty()) {
+      out.append('{').append(labels).append('}');
+    }
+    out.append(' ').append(value).append('\n');
+  }
+
+  private static void seconds(StringBuilder out, String name, String labels,
+      StripedHistogram histogram) {
+    histogram(out, name, labels, histogram, true);
+  }
+
+  private static void histogram(StringBuilder out, String name,
+      String labels, StripedHistogram histogram, boolean nanosToSeconds) {
+    long[] bounds = histogram.bounds();
+    StripedHistogram.Snapshot snapshot = histogram.snapshot();
+    String prefix = labels.isEmpty() ? "" : labels + ",";
+    long cumulative = 0;
+    for (int i = 0; i < bounds.length; i++) {
+      cumulative += snapshot.counts[i];
+      String le = nanosToSeconds
+          ? Double.toString(bounds[i] / 1e9) : Long.toString(bounds[i]);
+      sample(out, name + "_bucket", prefix + "le=\"" + le + "\"", cumulative);
+    }
+    cumulative += snapshot.counts[bounds.length];
+    sample(out, name + "_bucket", prefix + "le=\"+Inf\"", cumulative);
+    if (nanosToSeconds) {
+      sample(out, name + "_sum", labels, snapshot.sum / 1e9);
+    } else {
+      sample(out, name + "_sum", labels, snapshot.sum);
+    }
+    sample(out, name + "_count", labels, cumulative);
+  }
+
+  private static String intentLabel(String intent) {
+    StringBuilder label = new StringBuilder("intent=\"");
+    for (int i = 0; i < intent.length(); i++) {
+      char c = intent.charAt(i);
+      if (c == '\\' || c == '"') {
+        label.append('\\').append(c);
+      } else if (c == '\n') {
+        label.append("\\n");
+      } else {
+        label.append(c);
+      }
+    }
+    return label.append('"').toString();
+  }
+
+  private static long[] nanos(double... seconds) {
+    long[] nanos = new long[seconds.length];
+    for (int i = 0; i < seconds.length; i++) {
+      nanos[i] = (long) (seconds[i] * TimeUnit.SECONDS.toNanos(1));
+    }
+    return nanos;
+  }
+
+  /** Counts and phase times of one intent. */
+  static final class Intent {
+
+    final LongAdder requests = new LongAdder();
+    final LongAdder errors = new LongAdder();
+    final LongAdder replayed = new LongAdder();
+    final LongAdder timeouts = new LongAdder();
+    final StripedHistogram dispatch =
+        new StripedHistogram(LATENCY_BOUNDS_NANOS);
+    final StripedHistogram handler =
+        new StripedHistogram(LATENCY_BOUNDS_NANOS);
+    final StripedHistogram serialize =
+        new StripedHistogram(LATENCY_BOUNDS_NANOS);
+
+    void dispatched(long nanos) {
+      requests.increment();
+      dispatch.record(nanos);
+    }
+
+    void handled(long nanos) {
+      handler.record(nanos);
+    }
+
+    void serialized(long nanos) {
+      serialize.record(nanos);
+    }
+
+    void failed() {
+      errors.increment();
+    }
+
+    void replayed() {
+      replayed.increment();
+    }
+
+    void timedOut() {
+      timeouts.increment();
+    }
+  }
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.google.api.services.actions_fulfillment.v2.model.LatLng;
+import com.google.api.services.actions_fulfillment.v2.model.Location;
+import com.google.api.services.actions_fulfillment.v2.model.PostalAddress;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.Deflater;
+import org.junit.Test;
+
+public class ConversationStateCodecTest {
+
+  private static ConversationState state() {
+    return new ConversationState()
+        .setOrderId("0WMBV3ST005MZ")
+        .setLocation(new Location()
+            .setCity("Mountain View")
+            .setCoordinates(new LatLng()
+                .setLatitude(37.422)
+                .setLongitude(-122.084))
+            .setFormattedAddress("1600 Amphitheatre Pkwy")
+            .setPhoneNumber("+1 650-253-0000")
+            .setPostalAddress(new PostalAddress()
+                .setAddressLines(Arrays.asList("1600 Amphitheatre Pkwy"))
+                .setAdministrativeArea("CA")
+                .setLocality("Mountain View")
+                .setPostalCode("94043")
+                .setRecipients(Arrays.asList("Jane Doe"))
+                .setRegionCode("US")
+                .setRevision(0))
+            .setZipCode("94043"));
+  }
+
+  private static void assertSameState(ConversationState expected,
+      ConversationState actual) {
+    assertEquals(expected.getOrderId(), actual.getOrderId());
+    assertEquals(expected.getLocation(), actual.getLocation());
+  }
+
+  @Test
+  public void roundTripsThroughBase64() throws IOException {
+    ConversationState state = state();
+    assertSameState(state,
+        ConversationStateCodec.decode(ConversationStateCodec.encode(state)));
+  }
+
+  @Test
+  public void roundTripsBytesWithAndWithoutCompression() throws IOException {
+    ConversationState state = state();
+    for (boolean compress : new boolean[] {false, true}) {
+      byte[] bytes = ConversationStateCodec.toBytes(state, compress);
+      assertEquals(ConversationStateCodec.VERSION, bytes[0]);
+      assertSameState(state, ConversationStateCodec.fromBytes(bytes));
+    }
+  }
+
+  @Test
+  public void roundTripsEmptyState() throws IOException {
+    ConversationState read = ConversationStateCodec.fromBytes(
+        ConversationStateCodec.toBytes(new ConversationState(), false));
+    assertNull(read.getOrderId());
+    assertNull(read.getLocation());
+  }
+
+  @Test
+  public void rejectsTruncatedAndUnknownVersions() {
+    byte[] bytes = ConversationStateCodec.toBytes(state(), false);
+    byte[][] invalid = {
+        {},
+        {ConversationStateCodec.VERSION},
+        {(byte) (ConversationStateCodec.VERSION + 1), 0},
+        Arrays.copyOf(bytes, bytes.length - 5),
+    };
+    for (byte[] encoded : invalid) {
+      try {
+        ConversationStateCodec.fromBytes(encoded);
+        fail("Decoded " + Arrays.toString(encoded));
+      } catch (IOException expected) {
+      }
+    }
+  }
+
+  @Test
+  public void rejectsStateThatInflatesPastTheCap() {
+    // A zero-filled body deflates about a thousandfold
+    byte[] body = new byte[16 * ConversationStateCodec.MAX_INFLATED_BYTES];
+    Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION, true);
+    deflater.setInput(body);
+    deflater.finish();
+    byte[] deflated = new byte[body.length];
+    int length = deflater.deflate(deflated);
+    deflater.end();
+
+    byte[] bytes = new byte[2 + length];
+    bytes[0] = ConversationStateCodec.VERSION;
+    bytes[1] = 0x1; // deflated
+    System.arraycopy(deflated, 0, bytes, 2, length);
+    try {
+      ConversationStateCodec.fromBytes(bytes);
+      fail("Expected IOException");
+    } catch (IOException expected) {
+      assertTrue(expected.getMessage(),
+          expected.getMessage().contains("inflates to more than"));
+    }
+  }
+
+  @Test
+  public void readsStateWrittenToConversationData() {
+    ConversationState state = state();
+    Map<String, Object> conversationData = new HashMap<>();
+    conversationData.put(ConversationState.LEGACY_ORDER_ID_KEY, "old");
+    state.write(conversationData);
+
+    assertEquals(1, conversationData.size());
+    assertSameState(state, ConversationState.read(conversationData));
+  }
+
+  @Test
+  public void readsLegacyConversationData() {
+    Map<String, Object> conversationData = new HashMap<>();
+    conversationData.put(ConversationState.LEGACY_ORDER_ID_KEY,
+        "0WMBV3ST005MZ");
+    conversationData.put(ConversationState.LEGACY_LOCATION_KEY,
+        "{\"zipCode\":\"94043\"}");
+
+    ConversationState read = ConversationState.read(conversationData);
+
+    assertEquals("0WMBV3ST005MZ", read.getOrderId());
+    assertEquals("94043", read.getLocation().getZipCode());
+  }
+}
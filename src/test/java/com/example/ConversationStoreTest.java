@@ -0,0 +1,117 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.google.api.services.actions_fulfillment.v2.model.Location;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+
+public class ConversationStoreTest {
+
+  private final EmbeddedSessionStore sessions = new EmbeddedSessionStore(
+      new EmbeddedSessionStore.Config(100, 60000));
+  private final Map<String, Object> conversationData = new HashMap<>();
+
+  @Test
+  public void keepsOnlyTheTokenInConversationData() {
+    ConversationStore store = new ConversationStore(sessions);
+
+    store.update(conversationData, state -> state.setOrderId("A1"));
+
+    assertEquals(1, conversationData.size());
+    assertTrue(conversationData.get(ConversationStore.TOKEN_KEY)
+        instanceof String);
+    assertEquals("A1", store.read(conversationData).getOrderId());
+    assertEquals("A1", new ConversationStore(sessions)
+        .read(new HashMap<>(conversationData)).getOrderId());
+  }
+
+  @Test
+  public void reappliesAnUpdateRacedByAnotherTurn() {
+    ConversationStore store = new ConversationStore(sessions);
+    store.update(conversationData, state -> state.setOrderId("A1"));
+    Map<String, Object> otherTurn = new HashMap<>(conversationData);
+    AtomicInteger runs = new AtomicInteger();
+
+    store.update(conversationData, state -> {
+      if (runs.getAndIncrement() == 0) {
+        // Another turn commits between this turn's read and write
+        store.update(otherTurn, other -> other.setOrderId("B2"));
+      }
+      state.setLocation(new Location().setZipCode("94043"));
+    });
+
+    ConversationState state = store.read(conversationData);
+    assertEquals(2, runs.get());
+    assertEquals("B2", state.getOrderId());
+    assertEquals("94043", state.getLocation().getZipCode());
+  }
+
+  @Test
+  public void fallsBackToConversationDataWhenTheStoreFails() {
+    ConversationStore store = new ConversationStore(new SessionStore() {
+      @Override
+      public byte[] get(String key) {
+        return null;
+      }
+
+      @Override
+      public boolean compareAndSet(String key, byte[] expected, byte[] value)
+          throws IOException {
+        throw new IOException("unavailable");
+      }
+    });
+
+    store.update(conversationData, state -> state.setOrderId("A1"));
+
+    assertFalse(conversationData.containsKey(ConversationStore.TOKEN_KEY));
+    assertTrue(conversationData.containsKey(ConversationState.STATE_KEY));
+    assertEquals("A1", store.read(conversationData).getOrderId());
+  }
+
+  @Test
+  public void movesStateFromConversationDataToTheStore() {
+    new ConversationStore(null)
+        .update(conversationData, state -> state.setOrderId("A1"));
+    assertTrue(conversationData.containsKey(ConversationState.STATE_KEY));
+
+    ConversationStore store = new ConversationStore(sessions);
+    ConversationState state = store.update(conversationData,
+        updated -> updated.setLocation(new Location().setZipCode("94043")));
+
+    assertEquals("A1", state.getOrderId());
+    assertFalse(conversationData.containsKey(ConversationState.STATE_KEY));
+    assertEquals("A1", store.read(conversationData).getOrderId());
+  }
+
+  @Test
+  public void readsAnEmptyStateForANewConversation() {
+    ConversationState state =
+        new ConversationStore(sessions).read(conversationData);
+
+    assertNull(state.getOrderId());
+    assertNull(state.getLocation());
+  }
+}
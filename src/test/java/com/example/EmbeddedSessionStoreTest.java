@@ -0,0 +1,113 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.Test;
+
+public class EmbeddedSessionStoreTest {
+
+  private static final long TTL_MILLIS = 1000;
+
+  private final AtomicLong now = new AtomicLong();
+  private final EmbeddedSessionStore store = new EmbeddedSessionStore(
+      new EmbeddedSessionStore.Config(2, TTL_MILLIS), now::get);
+
+  @Test
+  public void comparesAndSetsByContent() {
+    byte[] value = {1, 2, 3};
+
+    assertTrue(store.compareAndSet("a", null, value));
+    assertFalse(store.compareAndSet("a", null, new byte[] {4}));
+    assertTrue(store.compareAndSet("a", new byte[] {1, 2, 3}, new byte[] {4}));
+    assertArrayEquals(new byte[] {4}, store.get("a"));
+    assertNull(store.get("b"));
+  }
+
+  @Test
+  public void copiesValuesInAndOut() {
+    byte[] value = {1};
+    store.compareAndSet("a", null, value);
+    value[0] = 2;
+    store.get("a")[0] = 3;
+
+    assertArrayEquals(new byte[] {1}, store.get("a"));
+  }
+
+  @Test
+  public void expiresEntriesAfterTheirTtl() {
+    store.compareAndSet("a", null, new byte[] {1});
+
+    now.addAndGet(TimeUnit.MILLISECONDS.toNanos(TTL_MILLIS) - 1);
+    assertArrayEquals(new byte[] {1}, store.get("a"));
+    now.incrementAndGet();
+    assertNull(store.get("a"));
+    assertTrue(store.compareAndSet("a", null, new byte[] {2}));
+  }
+
+  @Test
+  public void purgesExpiredEntriesOverCapacity() {
+    for (String key : new String[] {"a", "b", "c"}) {
+      store.compareAndSet(key, null, new byte[] {1});
+    }
+    now.addAndGet(TimeUnit.MILLISECONDS.toNanos(TTL_MILLIS));
+    store.compareAndSet("d", null, new byte[] {1});
+
+    assertEquals(1, store.size());
+  }
+
+  @Test
+  public void concurrentUpdatesOfOneSessionLoseNothing() throws Exception {
+    EmbeddedSessionStore shared = new EmbeddedSessionStore(
+        new EmbeddedSessionStore.Config(16, TTL_MILLIS * 60));
+    int threads = 8;
+    int updatesPerThread = 5000;
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    try {
+      List<Future<?>> futures = new ArrayList<>();
+      for (int t = 0; t < threads; t++) {
+        futures.add(executor.submit(() -> {
+          for (int i = 0; i < updatesPerThread; i++) {
+            OffHeapSessionStoreTest.increment(shared, "session");
+          }
+          return null;
+        }));
+      }
+      for (Future<?> future : futures) {
+        future.get();
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+
+    assertEquals(threads * updatesPerThread,
+        ByteBuffer.wrap(shared.get("session")).getLong());
+  }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import com.google.api.services.actions_fulfillment.v2.model.LatLng;
+import com.google.api.services.actions_fulfillment.v2.model.Location;
+import com.google.api.services.actions_fulfillment.v2.model.PostalAddress;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import java.util.Arrays;
+import org.junit.Test;
+
+public class LocationTypeAdapterTest {
+
+  private final Gson gson = new GsonBuilder()
+      .registerTypeAdapter(Location.class, new LocationTypeAdapter())
+      .create();
+
+  @Test
+  public void roundTripsEveryField() {
+    Location location = new Location()
+        .setCity("Mountain View")
+        .setCoordinates(new LatLng().setLatitude(37.422).setLongitude(-122.084))
+        .setFormattedAddress("1600 Amphitheatre Pkwy, Mountain View, CA")
+        .setName("Home")
+        .setNotes("Leave at the door")
+        .setPhoneNumber("+1 650-253-0000")
+        .setPlaceId("ChIJj61dQgK6j4AR4GeTYWZsKWw")
+        .setPostalAddress(new PostalAddress()
+            .setAddressLines(Arrays.asList("1600 Amphitheatre Pkwy", "Bldg 40"))
+            .setAdministrativeArea("CA")
+            .setLanguageCode("en")
+            .setLocality("Mountain View")
+            .setOrganization("Example")
+            .setPostalCode("94043")
+            .setRecipients(Arrays.asList("Jane Doe"))
+            .setRegionCode("US")
+            .setRevision(0)
+            .setSortingCode("A1")
+            .setSublocality("Shoreline"))
+        .setZipCode("94043");
+
+    Location read = gson.fromJson(gson.toJson(location), Location.class);
+
+    assertEquals(location, read);
+  }
+
+  @Test
+  public void roundTripsPartialLocation() {
+    Location location = new Location()
+        .setZipCode("94043")
+        .setPostalAddress(new PostalAddress().setPostalCode("94043"));
+
+    String json = gson.toJson(location);
+    Location read = gson.fromJson(json, Location.class);
+
+    assertEquals("{\"postalAddress\":{\"postalCode\":\"94043\"},"
+        + "\"zipCode\":\"94043\"}", json);
+    assertEquals(location, read);
+  }
+
+  @Test
+  public void skipsNullsAndUnknownProperties() {
+    Location read = gson.fromJson("{\"city\":null,\"extra\":{\"a\":[1,2]},"
+        + "\"coordinates\":{\"latitude\":1.5,\"altitude\":3},"
+        + "\"postalAddress\":{\"regionCode\":\"US\",\"unknown\":true},"
+        + "\"zipCode\":\"94043\"}", Location.class);
+
+    assertNull(read.getCity());
+    assertEquals(Double.valueOf(1.5), read.getCoordinates().getLatitude());
+    assertNull(read.getCoordinates().getLongitude());
+    assertEquals("US", read.getPostalAddress().getRegionCode());
+    assertEquals("94043", read.getZipCode());
+  }
+
+  @Test
+  public void readsAndWritesNull() {
+    assertNull(gson.fromJson("null", Location.class));
+    assertEquals("null", gson.toJson(null, Location.class));
+  }
+}
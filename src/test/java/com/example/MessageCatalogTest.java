@@ -0,0 +1,64 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import org.junit.Test;
+
+public class MessageCatalogTest {
+
+  @Test
+  public void formatsPlainArgumentsAndQuotes() {
+    MessageCatalog.Messages messages = catalog("greeting",
+        "Hi {0}, it''s {1}. '{0}' stays.").forLocale(Locale.US);
+
+    assertEquals("Hi Ada, it's late. {0} stays.",
+        messages.format("greeting", "Ada", "late"));
+  }
+
+  @Test
+  public void leavesMissingArgumentsInPlace() {
+    MessageCatalog.Messages messages =
+        catalog("greeting", "Hi {0} and {1}").forLocale(Locale.US);
+
+    assertEquals("Hi Ada and {1}", messages.format("greeting", "Ada"));
+  }
+
+  @Test
+  public void rejectsNegativeArgumentIndex() {
+    try {
+      catalog("greeting", "Hi {-1}");
+      fail("Expected IllegalArgumentException");
+    } catch (IllegalArgumentException e) {
+      assertTrue(e.getMessage(), e.getMessage().contains("greeting"));
+      assertTrue(e.getMessage(), e.getMessage().contains("en_US"));
+    }
+  }
+
+  private static MessageCatalog catalog(String key, String pattern) {
+    Map<Locale, Map<String, String>> bundles = new HashMap<>();
+    bundles.put(Locale.US, Collections.singletonMap(key, pattern));
+    return new MessageCatalog(bundles, Locale.US);
+  }
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.Test;
+
+public class OffHeapSessionStoreTest {
+
+  private static final long TTL_MILLIS = 1000;
+
+  private final AtomicLong now = new AtomicLong();
+
+  private OffHeapSessionStore store(int maxEntries) {
+    return new OffHeapSessionStore(
+        new OffHeapSessionStore.Config(maxEntries, 64, TTL_MILLIS), now::get);
+  }
+
+  private static byte[] bytes(String value) {
+    return value.getBytes(StandardCharsets.UTF_8);
+  }
+
+  @Test
+  public void comparesAndSets() throws IOException {
+    OffHeapSessionStore store = store(4);
+
+    assertTrue(store.compareAndSet("a", null, bytes("one")));
+    assertFalse(store.compareAndSet("a", null, bytes("two")));
+    assertFalse(store.compareAndSet("a", bytes("other"), bytes("two")));
+    assertTrue(store.compareAndSet("a", bytes("one"), bytes("longer two")));
+    assertArrayEquals(bytes("longer two"), store.get("a"));
+    assertNull(store.get("b"));
+  }
+
+  @Test(expected = IOException.class)
+  public void rejectsValuesLargerThanASlot() throws IOException {
+    store(4).compareAndSet("a", null, new byte[65]);
+  }
+
+  @Test
+  public void expiresEntriesAfterTheirTtl() throws IOException {
+    OffHeapSessionStore store = store(4);
+    store.compareAndSet("a", null, bytes("one"));
+
+    now.addAndGet(TimeUnit.MILLISECONDS.toNanos(TTL_MILLIS) - 1);
+    assertArrayEquals(bytes("one"), store.get("a"));
+    now.incrementAndGet();
+    assertNull(store.get("a"));
+    // An expired entry counts as absent
+    assertTrue(store.compareAndSet("a", null, bytes("two")));
+  }
+
+  @Test
+  public void evictsLeastRecentlyWrittenAtCapacity() throws IOException {
+    OffHeapSessionStore store = store(2);
+    store.compareAndSet("a", null, bytes("a1"));
+    now.incrementAndGet();
+    store.compareAndSet("b", null, bytes("b1"));
+    now.incrementAndGet();
+    // Rewriting a makes b the least recently written
+    store.compareAndSet("a", bytes("a1"), bytes("a2"));
+    now.incrementAndGet();
+    store.compareAndSet("c", null, bytes("c1"));
+
+    assertArrayEquals(bytes("a2"), store.get("a"));
+    assertNull(store.get("b"));
+    assertArrayEquals(bytes("c1"), store.get("c"));
+    assertEquals(2, store.size());
+  }
+
+  @Test
+  public void rewritesDoNotEvictOtherEntries() throws IOException {
+    OffHeapSessionStore store = store(2);
+    store.compareAndSet("a", null, bytes("0"));
+    store.compareAndSet("b", null, bytes("b"));
+    for (int i = 0; i < 10000; i++) {
+      store.compareAndSet("a", bytes(Integer.toString(i)),
+          bytes(Integer.toString(i + 1)));
+    }
+
+    assertArrayEquals(bytes("10000"), store.get("a"));
+    assertArrayEquals(bytes("b"), store.get("b"));
+  }
+
+  @Test
+  public void concurrentUpdatesOfOneSessionLoseNothing() throws Exception {
+    OffHeapSessionStore store = new OffHeapSessionStore(
+        new OffHeapSessionStore.Config(16, 64, TTL_MILLIS * 60));
+    int threads = 8;
+    int updatesPerThread = 5000;
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    try {
+      List<Future<?>> futures = new ArrayList<>();
+      for (int t = 0; t < threads; t++) {
+        futures.add(executor.submit(() -> {
+          for (int i = 0; i < updatesPerThread; i++) {
+            increment(store, "session");
+          }
+          return null;
+        }));
+      }
+      for (Future<?> future : futures) {
+        future.get();
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+
+    assertEquals(threads * updatesPerThread,
+        ByteBuffer.wrap(store.get("session")).getLong());
+  }
+
+  static void increment(SessionStore store, String key) throws IOException {
+    while (true) {
+      byte[] current = store.get(key);
+      long count = current != null ? ByteBuffer.wrap(current).getLong() : 0;
+      byte[] next = ByteBuffer.allocate(8).putLong(count + 1).array();
+      if (store.compareAndSet(key, current, next)) {
+        return;
+      }
+    }
+  }
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.Test;
+
+public class OrderIdGeneratorTest {
+
+  private static final long NOW = 1571234567890L;
+
+  @Test
+  public void idsAreUniqueAndOrderedAcrossThreads() throws Exception {
+    OrderIdGenerator generator = new OrderIdGenerator(42);
+    int threads = 8;
+    int perThread = 100000;
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    try {
+      List<Future<List<String>>> futures = new ArrayList<>();
+      for (int t = 0; t < threads; t++) {
+        futures.add(executor.submit(() -> {
+          List<String> ids = new ArrayList<>(perThread);
+          for (int i = 0; i < perThread; i++) {
+            ids.add(generator.next());
+          }
+          return ids;
+        }));
+      }
+      Set<String> all = new HashSet<>();
+      for (Future<List<String>> future : futures) {
+        List<String> ids = future.get();
+        for (int i = 1; i < ids.size(); i++) {
+          assertTrue(ids.get(i - 1) + " >= " + ids.get(i),
+              ids.get(i - 1).compareTo(ids.get(i)) < 0);
+        }
+        all.addAll(ids);
+      }
+      assertEquals(threads * perThread, all.size());
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  public void sequenceOverflowCarriesIntoTheNextMillisecond() {
+    OrderIdGenerator generator = new OrderIdGenerator(0, () -> NOW);
+    String previous = generator.next();
+    for (int i = 1; i < 3 * (1 << OrderIdGenerator.SEQUENCE_BITS); i++) {
+      String id = generator.next();
+      assertTrue(previous.compareTo(id) < 0);
+      previous = id;
+    }
+    assertEquals(NOW + 2, OrderIdGenerator.timestampMillis(previous));
+  }
+
+  @Test
+  public void clockSteppingBackwardsKeepsIdsIncreasing() {
+    AtomicLong clock = new AtomicLong(NOW);
+    OrderIdGenerator generator = new OrderIdGenerator(7, clock::get);
+    String before = generator.next();
+    clock.addAndGet(-5000);
+    String after = generator.next();
+    assertTrue(before.compareTo(after) < 0);
+    assertEquals(NOW, OrderIdGenerator.timestampMillis(after));
+  }
+
+  @Test
+  public void nodesSharingAClockIssueDistinctIds() {
+    AtomicLong clock = new AtomicLong(NOW);
+    OrderIdGenerator first = new OrderIdGenerator(1, clock::get);
+    OrderIdGenerator second = new OrderIdGenerator(2, clock::get);
+    Set<String> ids = new HashSet<>();
+    for (int i = 0; i < 10000; i++) {
+      ids.add(first.next());
+      ids.add(second.next());
+      clock.incrementAndGet();
+    }
+    assertEquals(20000, ids.size());
+  }
+
+  @Test
+  public void formatsIdsAndShortForms() {
+    OrderIdGenerator generator =
+        new OrderIdGenerator(OrderIdGenerator.MAX_NODE_ID, () -> NOW);
+    String id = generator.next();
+    assertEquals(OrderIdGenerator.ID_LENGTH, id.length());
+    assertTrue(id.endsWith("ZZZZZZZZZ"));
+    assertEquals(NOW, OrderIdGenerator.timestampMillis(id));
+
+    String userVisible = OrderIdGenerator.userVisible(id);
+    assertEquals(10, userVisible.length());
+    assertEquals(id.substring(3, 13), userVisible);
+    assertEquals("BV3ST005MZ",
+        OrderIdGenerator.userVisible("0WMBV3ST005MZ"));
+    assertNull(OrderIdGenerator.userVisible(null));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void rejectsNodeIdsOutOfRange() {
+    new OrderIdGenerator(OrderIdGenerator.MAX_NODE_ID + 1);
+  }
+
+  @Test
+  public void randomNodeIdsDiffer() {
+    Set<String> nodes = new HashSet<>();
+    for (int i = 0; i < 100; i++) {
+      nodes.add(OrderIdGenerator.fromSystemProperties().next()
+          .substring(OrderIdGenerator.ID_LENGTH - 9));
+    }
+    assertEquals(100, nodes.size());
+  }
+}
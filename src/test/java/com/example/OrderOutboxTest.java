@@ -0,0 +1,244 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class OrderOutboxTest {
+
+  private static final int SEGMENT_SIZE = 4096;
+  // Segment header, then int length | int crc32 | byte type | long sequence
+  private static final int FIRST_RECORD = 8;
+
+  @Rule
+  public final TemporaryFolder folder = new TemporaryFolder();
+
+  private OrderOutbox.Config config(int maxSegments) throws IOException {
+    return new OrderOutbox.Config(folder.getRoot().toPath().resolve("outbox"),
+        SEGMENT_SIZE, maxSegments, false);
+  }
+
+  private static long append(OrderOutbox outbox, String orderId)
+      throws IOException {
+    return outbox.append(OrderUpdates.statusUpdate(orderId, "SHIPPED", null));
+  }
+
+  private static List<Long> sequences(OrderOutbox outbox) throws IOException {
+    List<Long> sequences = new ArrayList<>();
+    for (OrderOutbox.Entry entry : outbox.pending()) {
+      sequences.add(entry.sequence());
+    }
+    return sequences;
+  }
+
+  private static List<String> orderIds(OrderOutbox outbox) throws IOException {
+    List<String> orderIds = new ArrayList<>();
+    for (OrderOutbox.Entry entry : outbox.pending()) {
+      orderIds.add(entry.update().getOrder().getMerchantOrderId());
+    }
+    return orderIds;
+  }
+
+  private static List<Path> segments(Path directory) throws IOException {
+    List<Path> paths = new ArrayList<>();
+    try (DirectoryStream<Path> stream =
+        Files.newDirectoryStream(directory, "outbox-*.seg")) {
+      for (Path path : stream) {
+        paths.add(path);
+      }
+    }
+    Collections.sort(paths);
+    return paths;
+  }
+
+  /** Returns the offsets of the records in a segment, then its end. */
+  private static List<Integer> recordOffsets(Path segment) throws IOException {
+    ByteBuffer data = ByteBuffer.wrap(Files.readAllBytes(segment));
+    List<Integer> offsets = new ArrayList<>();
+    int offset = FIRST_RECORD;
+    while (offset + 4 <= data.limit() && data.getInt(offset) != 0) {
+      offsets.add(offset);
+      offset += 8 + data.getInt(offset);
+    }
+    offsets.add(offset);
+    return offsets;
+  }
+
+  private static void overwrite(Path path, int offset, byte[] bytes)
+      throws IOException {
+    try (FileChannel channel =
+        FileChannel.open(path, StandardOpenOption.WRITE)) {
+      channel.write(ByteBuffer.wrap(bytes), offset);
+    }
+  }
+
+  @Test
+  public void recoversUnackedUpdatesAfterReopening() throws IOException {
+    OrderOutbox.Config config = config(8);
+    try (OrderOutbox outbox = OrderOutbox.open(config)) {
+      append(outbox, "A");
+      long b = append(outbox, "B");
+      append(outbox, "C");
+      outbox.ack(b);
+    }
+    try (OrderOutbox outbox = OrderOutbox.open(config)) {
+      assertEquals(Arrays.asList(1L, 3L), sequences(outbox));
+      assertEquals(Arrays.asList("A", "C"), orderIds(outbox));
+      assertEquals(4L, append(outbox, "D"));
+    }
+  }
+
+  @Test
+  public void ignoresTornWriteAtTheTail() throws IOException {
+    OrderOutbox.Config config = config(8);
+    try (OrderOutbox outbox = OrderOutbox.open(config)) {
+      append(outbox, "A");
+      append(outbox, "B");
+    }
+    Path segment = segments(config.directory).get(0);
+    List<Integer> offsets = recordOffsets(segment);
+    int end = offsets.get(offsets.size() - 1);
+    // A record whose length made it to disk but whose body did not
+    overwrite(segment, end, ByteBuffer.allocate(17)
+        .putInt(200).putInt(0x12345678).put((byte) 1).putLong(3).array());
+
+    try (OrderOutbox outbox = OrderOutbox.open(config)) {
+      assertEquals(Arrays.asList("A", "B"), orderIds(outbox));
+      append(outbox, "C");
+    }
+    // The torn record was overwritten, so later records are readable
+    try (OrderOutbox outbox = OrderOutbox.open(config)) {
+      assertEquals(Arrays.asList("A", "B", "C"), orderIds(outbox));
+    }
+  }
+
+  @Test
+  public void stopsAtRecordWithCrcMismatch() throws IOException {
+    OrderOutbox.Config config = config(8);
+    try (OrderOutbox outbox = OrderOutbox.open(config)) {
+      append(outbox, "A");
+      append(outbox, "B");
+      append(outbox, "C");
+    }
+    Path segment = segments(config.directory).get(0);
+    int second = recordOffsets(segment).get(1);
+    // Flip a byte of the second record's payload
+    byte[] data = Files.readAllBytes(segment);
+    overwrite(segment, second + 20, new byte[] {(byte) ~data[second + 20]});
+
+    try (OrderOutbox outbox = OrderOutbox.open(config)) {
+      assertEquals(Arrays.asList("A"), orderIds(outbox));
+      append(outbox, "D");
+    }
+    try (OrderOutbox outbox = OrderOutbox.open(config)) {
+      assertEquals(Arrays.asList("A", "D"), orderIds(outbox));
+    }
+  }
+
+  @Test
+  public void carriesUnackedUpdatesForwardAcrossSegments()
+      throws IOException {
+    OrderOutbox.Config config = config(2);
+    long stuck;
+    try (OrderOutbox outbox = OrderOutbox.open(config)) {
+      stuck = append(outbox, "stuck");
+      // Fill several segments with updates that are delivered right away
+      for (int i = 0; i < 100; i++) {
+        outbox.ack(append(outbox, "delivered-" + i));
+      }
+      assertTrue(segments(config.directory).size() <= config.maxSegments);
+      assertEquals(Collections.singletonList(stuck), sequences(outbox));
+    }
+    try (OrderOutbox outbox = OrderOutbox.open(config)) {
+      assertEquals(Collections.singletonList(stuck), sequences(outbox));
+      assertEquals(Arrays.asList("stuck"), orderIds(outbox));
+      outbox.ack(stuck);
+    }
+    try (OrderOutbox outbox = OrderOutbox.open(config)) {
+      assertEquals(0, outbox.pendingCount());
+    }
+  }
+
+  @Test
+  public void recoversAfterProcessIsKilledMidBatch() throws Exception {
+    OrderOutbox.Config config = config(4);
+    Process process = new ProcessBuilder(
+        Paths.get(System.getProperty("java.home"), "bin", "java").toString(),
+        "-cp", System.getProperty("java.class.path"),
+        Appender.class.getName(), config.directory.toString())
+        .redirectError(ProcessBuilder.Redirect.INHERIT)
+        .start();
+    long acknowledged = 0;
+    try (BufferedReader output = new BufferedReader(new InputStreamReader(
+        process.getInputStream(), StandardCharsets.UTF_8))) {
+      String line;
+      while (acknowledged < 500 && (line = output.readLine()) != null) {
+        if (line.matches("\\d+")) {
+          acknowledged = Long.parseLong(line);
+        }
+      }
+      process.destroyForcibly();
+      assertTrue(process.waitFor(30, TimeUnit.SECONDS));
+    }
+    assertEquals(500, acknowledged);
+
+    try (OrderOutbox outbox = OrderOutbox.open(config)) {
+      // Every append that returned survived, in order and without gaps
+      List<Long> sequences = sequences(outbox);
+      assertTrue(sequences.size() >= acknowledged);
+      for (int i = 0; i < sequences.size(); i++) {
+        assertEquals(i + 1L, (long) sequences.get(i));
+      }
+      assertEquals(sequences.size(), outbox.pending().size());
+    }
+  }
+
+  /** Appends updates until killed, printing each sequence once journaled. */
+  public static final class Appender {
+
+    public static void main(String[] args) throws IOException {
+      OrderOutbox outbox = OrderOutbox.open(new OrderOutbox.Config(
+          Paths.get(args[0]), SEGMENT_SIZE, 4, false));
+      for (int i = 0; ; i++) {
+        long sequence = append(outbox, "order-" + i);
+        System.out.println(sequence);
+      }
+    }
+  }
+}
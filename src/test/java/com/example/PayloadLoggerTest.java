@@ -0,0 +1,78 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import org.junit.Test;
+
+public class PayloadLoggerTest {
+
+  private static PayloadLogger logger(String... redactedFields) {
+    return new PayloadLogger(0, new HashSet<>(Arrays.asList(redactedFields)));
+  }
+
+  @Test
+  public void redactsAQualifiedFieldInEveryElementOfAnArray() {
+    PayloadLogger logger = logger("phoneNumbers.number");
+
+    String redacted = logger.redact("{\"phoneNumbers\":["
+        + "{\"number\":\"555-0100\",\"type\":\"home\"},"
+        + "{\"number\":\"555-0101\",\"type\":\"work\"},"
+        + "{\"number\":\"555-0102\"}],\"number\":1}");
+
+    assertEquals("{\"phoneNumbers\":["
+        + "{\"number\":\"[redacted]\",\"type\":\"home\"},"
+        + "{\"number\":\"[redacted]\",\"type\":\"work\"},"
+        + "{\"number\":\"[redacted]\"}],\"number\":1}", redacted);
+  }
+
+  @Test
+  public void matchesAQualifiedFieldOnlyUnderItsParent() {
+    PayloadLogger logger = logger("profile.displayName");
+
+    String redacted = logger.redact("{\"profile\":{\"displayName\":\"Ann\","
+        + "\"items\":[[1],[2]]},\"displayName\":\"Shop\"}");
+
+    assertEquals("{\"profile\":{\"displayName\":\"[redacted]\","
+        + "\"items\":[[1],[2]]},\"displayName\":\"Shop\"}", redacted);
+  }
+
+  @Test
+  public void redactsWholeValuesOfNamedFieldsAnywhere() {
+    PayloadLogger logger = logger("email", "userStorage");
+
+    String redacted = logger.redact("{\"user\":{\"email\":\"a@example.com\","
+        + "\"userStorage\":{\"zip\":\"94043\"}},\"ok\":true,\"n\":null}");
+
+    assertEquals("{\"user\":{\"email\":\"[redacted]\","
+        + "\"userStorage\":\"[redacted]\"},\"ok\":true,\"n\":null}", redacted);
+  }
+
+  @Test
+  public void replacesInvalidJsonWithAPlaceholder() {
+    assertEquals("<invalid JSON, 9 chars>",
+        logger("email").redact("{\"email\":"));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void rejectsASampleRateAboveOne() {
+    new PayloadLogger(1.5, new HashSet<>());
+  }
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import com.google.api.services.actions_fulfillment.v2.model.Location;
+import com.google.api.services.actions_fulfillment.v2.model.PostalAddress;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.util.Properties;
+import java.util.Random;
+import org.junit.Test;
+
+/**
+ * Checks the long arithmetic of {@link PriceEngine} against
+ * {@link BigDecimal} on random and edge-case inputs.
+ */
+public class PriceEngineTest {
+
+  private static final int SAMPLES = 200000;
+  private static final RoundingMode[] ROUNDING_MODES = {
+      RoundingMode.UP, RoundingMode.DOWN, RoundingMode.CEILING,
+      RoundingMode.FLOOR, RoundingMode.HALF_UP, RoundingMode.HALF_DOWN,
+      RoundingMode.HALF_EVEN};
+
+  private final Random random = new Random(20191001L);
+
+  private long anyLong() {
+    switch (random.nextInt(4)) {
+      case 0:
+        return random.nextLong();
+      case 1:
+        return random.nextInt(2001) - 1000;
+      case 2:
+        return random.nextBoolean() ? Long.MAX_VALUE - random.nextInt(1000)
+            : Long.MIN_VALUE + random.nextInt(1000);
+      default:
+        return (long) (random.nextGaussian() * 1e9);
+    }
+  }
+
+  private long anyDivisor() {
+    switch (random.nextInt(3)) {
+      case 0:
+        return 1 + (random.nextLong() >>> 1) % Long.MAX_VALUE;
+      case 1:
+        return 1 + random.nextInt(20);
+      default:
+        return (long) Math.pow(10, random.nextInt(13));
+    }
+  }
+
+  private static long expectedDivide(long dividend, long divisor,
+      RoundingMode mode) {
+    return BigDecimal.valueOf(dividend)
+        .divide(BigDecimal.valueOf(divisor), 0, mode)
+        .longValueExact();
+  }
+
+  @Test
+  public void divideMatchesBigDecimal() {
+    for (int i = 0; i < SAMPLES; i++) {
+      long dividend = anyLong();
+      long divisor = anyDivisor();
+      for (RoundingMode mode : ROUNDING_MODES) {
+        assertEquals(dividend + " / " + divisor + " " + mode,
+            expectedDivide(dividend, divisor, mode),
+            PriceEngine.divide(dividend, divisor, mode));
+      }
+    }
+  }
+
+  @Test
+  public void divideRoundsTiesAsBigDecimal() {
+    for (long dividend = -25; dividend <= 25; dividend++) {
+      for (long divisor : new long[] {1, 2, 4, 10}) {
+        for (RoundingMode mode : ROUNDING_MODES) {
+          assertEquals(dividend + " / " + divisor + " " + mode,
+              expectedDivide(dividend, divisor, mode),
+              PriceEngine.divide(dividend, divisor, mode));
+        }
+      }
+    }
+  }
+
+  @Test
+  public void divideUnnecessaryOnlyWhenExact() {
+    assertEquals(-7, PriceEngine.divide(-21, 3, RoundingMode.UNNECESSARY));
+    try {
+      PriceEngine.divide(22, 3, RoundingMode.UNNECESSARY);
+      fail("Divided inexactly");
+    } catch (ArithmeticException expected) {
+    }
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void divideRejectsNonPositiveDivisors() {
+    PriceEngine.divide(1, 0, RoundingMode.HALF_UP);
+  }
+
+  @Test
+  public void formatMatchesBigDecimal() {
+    for (int i = 0; i < SAMPLES; i++) {
+      long micros = anyLong();
+      int fractionDigits = random.nextInt(7);
+      RoundingMode mode = ROUNDING_MODES[random.nextInt(ROUNDING_MODES.length)];
+      String expected = BigDecimal.valueOf(micros, 6)
+          .setScale(fractionDigits, mode)
+          .toPlainString();
+      assertEquals(micros + " " + fractionDigits + " " + mode, expected,
+          PriceEngine.format(micros, fractionDigits, mode));
+    }
+    assertEquals("37.00", PriceEngine.format(37000000, 2, RoundingMode.DOWN));
+    assertEquals("-0.05", PriceEngine.format(-50000, 2, RoundingMode.DOWN));
+    assertEquals("0.00", PriceEngine.format(-1, 2, RoundingMode.HALF_UP));
+    assertEquals("4", PriceEngine.format(3500000, 0, RoundingMode.HALF_EVEN));
+  }
+
+  @Test
+  public void quoteMatchesBigDecimal() {
+    Properties properties = new Properties();
+    properties.setProperty("*.USD.rate", "8.628");
+    properties.setProperty("US-CA.USD.rate", "7.25");
+    properties.setProperty("US-CA.USD.delivery", "true");
+    properties.setProperty("US-CA.USD.rounding", "HALF_EVEN");
+    properties.setProperty("*.JPY.rate", "10");
+    properties.setProperty("*.JPY.rounding", "DOWN");
+    PriceEngine engine = PriceEngine.fromProperties(properties);
+    Location california = new Location().setPostalAddress(
+        new PostalAddress().setRegionCode("US").setAdministrativeArea("CA"));
+    PriceEngine.TaxRule[] rules = {
+        engine.taxRule(null, "USD"),
+        engine.taxRule(california, "USD"),
+        engine.taxRule(null, "JPY")};
+    assertEquals(72500, rules[1].ratePpm);
+
+    PriceEngine.Quote quote = new PriceEngine.Quote();
+    for (int i = 0; i < SAMPLES; i++) {
+      PriceEngine.TaxRule rule = rules[random.nextInt(rules.length)];
+      long subtotal = random.nextInt(1000000) * 10000L;
+      long delivery = random.nextInt(10000) * 10000L;
+      engine.quote(subtotal, delivery, rule, quote);
+
+      BigDecimal taxable = BigDecimal.valueOf(
+          rule.deliveryTaxable ? subtotal + delivery : subtotal, 6);
+      BigDecimal tax = taxable
+          .multiply(BigDecimal.valueOf(rule.ratePpm, 6))
+          .setScale(rule.fractionDigits, rule.rounding);
+      assertEquals(tax.movePointRight(6).longValueExact(), quote.taxMicros);
+      assertEquals(subtotal + delivery + quote.taxMicros, quote.totalMicros);
+      assertEquals(BigDecimal.valueOf(quote.totalMicros, 6)
+          .setScale(rule.fractionDigits, rule.rounding).toPlainString(),
+          quote.totalPrice());
+    }
+  }
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.file.Path;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ProductCatalogTest {
+
+  @Rule
+  public final TemporaryFolder folder = new TemporaryFolder();
+
+  private Path build(String products) throws IOException {
+    Path target = folder.getRoot().toPath().resolve("products.catalog");
+    ProductCatalog.build(
+        new BufferedReader(new StringReader(products)), target);
+    return target;
+  }
+
+  @Test
+  public void looksUpBuiltProducts() throws IOException {
+    StringBuilder products = new StringBuilder();
+    for (int i = 0; i < 3000; i++) {
+      products.append("{\"id\":\"p").append(i).append("\",\"name\":\"Product ")
+          .append(i).append("\",\"priceMicros\":").append(i).append("}\n");
+    }
+
+    try (ProductCatalog catalog =
+        ProductCatalog.open(build(products.toString()), 0)) {
+      ProductCatalog.Snapshot snapshot = catalog.current();
+      assertEquals(3000, snapshot.size());
+      assertEquals("Product 2999", snapshot.lineItem("p2999", 1).getName());
+      assertTrue(snapshot.contains("p0"));
+      assertFalse(snapshot.contains("p3000"));
+    }
+  }
+
+  @Test
+  public void rejectsDuplicateIds() throws IOException {
+    try {
+      build("{\"id\":\"a\",\"name\":\"A\"}\n"
+          + "{\"id\":\"b\",\"name\":\"B\"}\n"
+          + "\n"
+          + "{\"id\":\"a\",\"name\":\"Another A\"}\n");
+      fail("Built a catalog with a duplicate id");
+    } catch (IOException expected) {
+      assertEquals("Line 4: duplicate product id a", expected.getMessage());
+    }
+    assertEquals(0, folder.getRoot().list().length);
+  }
+
+  @Test
+  public void rejectsAProductWithoutAName() throws IOException {
+    try {
+      build("{\"id\":\"a\"}\n");
+      fail("Built a catalog with a nameless product");
+    } catch (IOException expected) {
+      assertEquals("Line 1: a product needs an id and a name",
+          expected.getMessage());
+    }
+  }
+}
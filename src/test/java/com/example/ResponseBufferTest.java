@@ -0,0 +1,59 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class ResponseBufferTest {
+
+  @Test
+  public void acceptsGzipListedWithoutQuality() {
+    assertTrue(ResponseBuffer.acceptsGzip("gzip"));
+    assertTrue(ResponseBuffer.acceptsGzip("deflate, GZIP"));
+    assertTrue(ResponseBuffer.acceptsGzip("x-gzip"));
+  }
+
+  @Test
+  public void rejectsMissingHeaderAndOtherCodings() {
+    assertFalse(ResponseBuffer.acceptsGzip(null));
+    assertFalse(ResponseBuffer.acceptsGzip(""));
+    assertFalse(ResponseBuffer.acceptsGzip("deflate, br"));
+  }
+
+  @Test
+  public void honoursQualityZero() {
+    assertFalse(ResponseBuffer.acceptsGzip("gzip;q=0"));
+    assertFalse(ResponseBuffer.acceptsGzip("gzip; Q = 0.000"));
+    assertTrue(ResponseBuffer.acceptsGzip("gzip;q=0.5"));
+  }
+
+  @Test
+  public void explicitGzipTakesPrecedenceOverWildcard() {
+    assertTrue(ResponseBuffer.acceptsGzip("*;q=0, gzip"));
+    assertFalse(ResponseBuffer.acceptsGzip("*, gzip;q=0"));
+  }
+
+  @Test
+  public void wildcardCoversGzip() {
+    assertTrue(ResponseBuffer.acceptsGzip("*"));
+    assertTrue(ResponseBuffer.acceptsGzip("br, *;q=0.1"));
+    assertFalse(ResponseBuffer.acceptsGzip("*;q=0"));
+  }
+}
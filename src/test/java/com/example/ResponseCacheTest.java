@@ -0,0 +1,148 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.Test;
+
+public class ResponseCacheTest {
+
+  private static final long TTL_MILLIS = 1000;
+
+  private final AtomicLong now = new AtomicLong();
+  private final AtomicInteger runs = new AtomicInteger();
+  private final AtomicInteger replays = new AtomicInteger();
+
+  private ResponseCache cache(int maxEntries) {
+    return new ResponseCache(
+        new ResponseCache.Config(TTL_MILLIS, maxEntries), now::get);
+  }
+
+  private CompletableFuture<String> get(ResponseCache cache,
+      String responseId, CompletableFuture<String> response) {
+    return cache.get("session", responseId, "intent", failed -> {
+      runs.incrementAndGet();
+      return response;
+    }, replays::incrementAndGet);
+  }
+
+  @Test
+  public void answersDuplicatesWithTheFirstResponse() throws Exception {
+    ResponseCache cache = cache(4);
+
+    get(cache, "r1", CompletableFuture.completedFuture("first"));
+    String replayed =
+        get(cache, "r1", CompletableFuture.completedFuture("second")).get();
+
+    assertEquals("first", replayed);
+    assertEquals(1, runs.get());
+    assertEquals(1, replays.get());
+  }
+
+  @Test
+  public void runsTheHandlerAgainAfterAFailure() throws Exception {
+    ResponseCache cache = cache(4);
+    CompletableFuture<String> failure = new CompletableFuture<>();
+    failure.completeExceptionally(new IllegalStateException("failed"));
+
+    get(cache, "r1", failure);
+    String retried =
+        get(cache, "r1", CompletableFuture.completedFuture("second")).get();
+
+    assertEquals("second", retried);
+    assertEquals(2, runs.get());
+    assertEquals(0, replays.get());
+  }
+
+  @Test
+  public void aLateFailureDropsOnlyItsOwnEntry() throws Exception {
+    ResponseCache cache = cache(4);
+    AtomicReference<Runnable> firstFailed = new AtomicReference<>();
+    cache.get("session", "r1", "intent", failed -> {
+      firstFailed.set(failed);
+      return new CompletableFuture<>();
+    }, replays::incrementAndGet);
+    now.addAndGet(TTL_MILLIS * 1_000_000);
+    // The first entry has expired, so this one takes its place
+    get(cache, "r1", CompletableFuture.completedFuture("second"));
+
+    firstFailed.get().run();
+
+    assertEquals("second",
+        get(cache, "r1", CompletableFuture.completedFuture("third")).get());
+    assertEquals(1, runs.get());
+    assertEquals(1, replays.get());
+  }
+
+  @Test
+  public void evictsTheOldestEntriesToMakeRoom() {
+    ResponseCache cache = cache(2);
+
+    for (int i = 0; i < 5; i++) {
+      get(cache, "r" + i, CompletableFuture.completedFuture("json"));
+    }
+
+    assertEquals(2, cache.size());
+    get(cache, "r4", CompletableFuture.completedFuture("json"));
+    assertEquals(1, replays.get());
+  }
+
+  @Test
+  public void concurrentDuplicatesRunTheHandlerOnce() throws Exception {
+    ResponseCache cache = cache(16);
+    CompletableFuture<String> response = new CompletableFuture<>();
+    int threads = 8;
+    CountDownLatch start = new CountDownLatch(1);
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    try {
+      List<Future<CompletableFuture<String>>> futures = new ArrayList<>();
+      for (int t = 0; t < threads; t++) {
+        futures.add(executor.submit(() -> {
+          start.await();
+          return get(cache, "r1", response);
+        }));
+      }
+      start.countDown();
+      List<CompletableFuture<String>> responses = new ArrayList<>();
+      for (Future<CompletableFuture<String>> future : futures) {
+        responses.add(future.get());
+      }
+      response.complete("json");
+
+      for (CompletableFuture<String> each : responses) {
+        assertEquals("json", each.get());
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+
+    assertEquals(1, runs.get());
+    assertEquals(threads - 1, replays.get());
+    assertEquals(1, cache.size());
+  }
+}